@@ -0,0 +1,60 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything the app does for a search, apart from the HTTP round trip: rendering the request, parsing
+ * the response and rendering the hits. Run with the GC profiler, gc.alloc.rate.norm is the number to watch.
+ *
+ * Without thread local buffer recycling Jackson starts from scratch for every parser and generator, which
+ * is what happens on a virtual thread per request, as no virtual thread is ever reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AllocationBenchmark {
+
+    @Param({"10", "100"})
+    private int hits;
+
+    @Param({"true", "false"})
+    private boolean threadLocalRecycling;
+
+    private Renderer renderer;
+    private Parser parser;
+    private byte[] response;
+
+    @Setup
+    public void setup() {
+        final ObjectMapper mapper = new ObjectMapper();
+        mapper.getFactory().configure(JsonFactory.Feature.USE_THREAD_LOCAL_FOR_BUFFER_RECYCLING, threadLocalRecycling);
+        renderer = Renderer.precompiled(mapper);
+        parser = new Parser(mapper);
+        response = Fixtures.searchResponse(hits);
+    }
+
+    @Benchmark
+    public byte[] search() throws IOException {
+        renderer.renderBytes("search", Map.of("query", "first", "from", 0, "size", hits));
+        return renderer.searchResponse(parser.toSearchResponse(response));
+    }
+}
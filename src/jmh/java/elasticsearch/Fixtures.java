@@ -0,0 +1,34 @@
+package elasticsearch;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Search responses as returned by Elasticsearch, including the fields we do not read
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static byte[] searchResponse(int hits) {
+        final StringBuilder builder = new StringBuilder("""
+                {"took":5,"timed_out":false,"_shards":{"total":1,"successful":1,"skipped":0,"failed":0},
+                "hits":{"total":{"value":%d,"relation":"eq"},"max_score":1.0,"hits":[""".formatted(hits));
+        for (int i = 0; i < hits; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("""
+                    {"_index":"persons","_type":"_doc","_id":"id-%d","_score":1.0,"_source":{
+                    "name":{"first":"first %d","last":"last %d"},"employer":"Elastic",
+                    "address":{"street":"Main Street %d","city":"Munich","country":"DE"},"tags":["a","b","c"]}}""".formatted(i, i, i, i));
+        }
+        builder.append("]}}");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] person() {
+        return """
+                {"name":{"first":"first","last":"last"},"employer":"Elastic"}""".getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,52 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import model.Person;
+import model.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int hits;
+
+    private Parser parser;
+    private byte[] searchResponse;
+    private byte[] person;
+
+    @Setup
+    public void setup() {
+        parser = new Parser(new ObjectMapper());
+        searchResponse = Fixtures.searchResponse(hits);
+        person = Fixtures.person();
+    }
+
+    @Benchmark
+    public SearchResponse toSearchResponse() throws IOException {
+        return parser.toSearchResponse(searchResponse);
+    }
+
+    @Benchmark
+    public Person toPerson() throws IOException {
+        return parser.toPerson(person);
+    }
+}
@@ -0,0 +1,68 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import model.Person;
+import model.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RendererBenchmark {
+
+    private static final String ASCII = "John Doe working at Elastic in Munich, Germany";
+    private static final String ESCAPE_HEAVY = "\"John\"\t\"Doe\"\n\\working\\ at \"Elastic\"\r\n\u0001\u2028";
+
+    private Renderer renderer;
+    private Person person;
+    private SearchResponse searchResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        renderer = Renderer.precompiled(mapper);
+        person = new Person("John", "Doe", "Elastic");
+        searchResponse = new Parser(mapper).toSearchResponse(Fixtures.searchResponse(100));
+    }
+
+    @Benchmark
+    public byte[] renderSearch() {
+        return renderer.renderBytes("search", Map.of("query", ASCII));
+    }
+
+    @Benchmark
+    public byte[] renderPerson() {
+        return renderer.person(person);
+    }
+
+    @Benchmark
+    public String escapeAscii() {
+        return Renderer.escape(ASCII);
+    }
+
+    @Benchmark
+    public String escapeHeavy() {
+        return Renderer.escape(ESCAPE_HEAVY);
+    }
+
+    @Benchmark
+    public byte[] searchResponse() throws IOException {
+        return renderer.searchResponse(searchResponse);
+    }
+}
@@ -0,0 +1,60 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import model.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse time of the same search response in JSON, Smile and CBOR. The size of each encoding, the bytes
+ * sent over the wire, is printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseFormatBenchmark {
+
+    @Param({"JSON", "SMILE", "CBOR"})
+    private ResponseFormat format;
+
+    @Param({"10", "1000"})
+    private int hits;
+
+    private Parser parser;
+    private byte[] searchResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        parser = new Parser(mapper);
+        final byte[] json = Fixtures.searchResponse(hits);
+        searchResponse = switch (format) {
+            case JSON -> json;
+            case SMILE -> new ObjectMapper(new SmileFactory()).writeValueAsBytes(mapper.readTree(json));
+            case CBOR -> new ObjectMapper(new CBORFactory()).writeValueAsBytes(mapper.readTree(json));
+        };
+        System.out.printf("%n%s response with %d hits: %d bytes (JSON %d bytes)%n", format, hits, searchResponse.length, json.length);
+    }
+
+    @Benchmark
+    public SearchResponse toSearchResponse() throws IOException {
+        return parser.toSearchResponse(searchResponse, format);
+    }
+}
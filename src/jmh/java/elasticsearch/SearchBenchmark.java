@@ -0,0 +1,72 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import model.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end latency of a search, including rendering the request, the HTTP round trip
+ * to an in-process stub Elasticsearch and parsing the response
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// without nodelay every response of the stub waits for the delayed ack of the client
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class SearchBenchmark {
+
+    @Param({"10", "100"})
+    private int hits;
+
+    private HttpServer httpServer;
+    private ElasticsearchClient client;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[] response = Fixtures.searchResponse(hits);
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        httpServer.createContext("/persons/_search", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        httpServer.start();
+
+        final ObjectMapper mapper = new ObjectMapper();
+        final InetSocketAddress address = httpServer.getAddress();
+        client = ElasticsearchClient.newBuilder(Renderer.precompiled(mapper), new Parser(mapper))
+                .withUri("http://" + address.getHostString() + ":" + address.getPort())
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        httpServer.stop(0);
+    }
+
+    @Benchmark
+    public SearchResponse search() throws IOException, InterruptedException {
+        return client.search("search", "first");
+    }
+}
@@ -0,0 +1,73 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import model.Person;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Latency of accepting a person into the spool while Elasticsearch cannot be reached, so the shipper
+ * keeps retrying in the background
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpoolBenchmark {
+
+    @Param({"false", "true"})
+    private boolean sync;
+
+    private Path directory;
+    private Spool spool;
+    private final Person person = new Person("John", "Doe", "Elastic");
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        final Renderer renderer = Renderer.precompiled(mapper);
+        final Parser parser = new Parser(mapper);
+        // nothing listens on the port
+        final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri("http://127.0.0.1:1").build();
+        directory = Files.createTempDirectory("spool");
+        spool = Spool.newBuilder(client, renderer, parser, directory)
+                .withSync(sync)
+                .withMaxSegments(1024)
+                .withBackoff(Duration.ofSeconds(1), Duration.ofSeconds(1))
+                .build();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        spool.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        spool.append(person);
+    }
+}
@@ -0,0 +1,59 @@
+package elasticsearch;
+
+import model.Person;
+import model.Suggestion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SuggesterBenchmark {
+
+    private static final String[] SYLLABLES = { "al", "an", "be", "ca", "de", "el", "fr", "ja", "ka", "le", "ma", "ni", "ro", "sa", "th", "vi" };
+
+    // a short prefix matches many values, a long one only a few
+    @Param({"a", "ale"})
+    private String prefix;
+
+    private Suggester suggester;
+
+    @Setup
+    public void setup() {
+        suggester = new Suggester();
+        final Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            suggester.add(new Person(name(random, 3), name(random, 4), name(random, 2) + " Inc"));
+        }
+    }
+
+    private static String name(Random random, int syllables) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < syllables; i++) {
+            // skewed, so that some names are a lot more frequent than others
+            builder.append(SYLLABLES[(int) (SYLLABLES.length * Math.pow(random.nextDouble(), 3))]);
+        }
+        return builder.toString();
+    }
+
+    @Benchmark
+    public List<Suggestion> suggest() {
+        return suggester.suggest(prefix, 10);
+    }
+}
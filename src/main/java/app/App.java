@@ -1,36 +1,479 @@
 package app;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import elasticsearch.BulkIndexer;
+import elasticsearch.CircuitOpenException;
+import elasticsearch.ConcurrencyLimiter;
 import elasticsearch.ElasticsearchClient;
+import elasticsearch.ElasticsearchException;
+import elasticsearch.Exporter;
+import elasticsearch.Importer;
+import elasticsearch.LimitExceededException;
 import elasticsearch.Parser;
 import elasticsearch.Renderer;
+import elasticsearch.ResponseFormat;
+import elasticsearch.SearchCache;
+import elasticsearch.SlowQueryLog;
+import elasticsearch.Spool;
+import elasticsearch.Suggester;
+import elasticsearch.Trace;
+import elasticsearch.Warmup;
 import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.plugin.metrics.MicrometerPlugin;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ClassLoaderMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
+import io.micrometer.core.instrument.binder.system.UptimeMetrics;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import model.BulkItem;
+import model.ImportSummary;
 import model.Person;
+import model.Projection;
+import model.SearchCursor;
+import model.SearchPage;
 import model.SearchResponse;
+import org.eclipse.jetty.server.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
 public class App {
 
+    private static final Logger logger = LoggerFactory.getLogger(App.class);
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
     public static void main(String[] args) {
+        // "warmup" starts the app, runs the warmup and exits, i.e. to create a class data sharing archive
+        final boolean trainingRun = args.length > 0 && "warmup".equals(args[0]);
+        final PrometheusMeterRegistry registry = createMeterRegistry();
         final ObjectMapper mapper = new ObjectMapper();
-        final Renderer renderer = new Renderer(mapper);
+        final Renderer renderer = Renderer.precompiled(mapper);
         final Parser parser = new Parser(mapper);
-        final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).fromEnvironment().build();
+        // run request handling and the http client on virtual threads, so that blocking calls are cheap
+        final boolean virtualThreads = Boolean.parseBoolean(System.getenv("APP_VIRTUAL_THREADS"));
+        // write search hits to the client while the elasticsearch response is still being read
+        final boolean streamingSearch = Boolean.parseBoolean(System.getenv("APP_STREAMING_SEARCH"));
+        final ElasticsearchClient.Builder builder = ElasticsearchClient.newBuilder(renderer, parser).fromEnvironment()
+                .withSearchCoalescing(Boolean.parseBoolean(System.getenv("APP_SEARCH_COALESCING")))
+                .withMeterRegistry(registry);
+        if (virtualThreads) {
+            builder.withExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        } else if (System.getenv("APP_CLIENT_THREADS") != null) {
+            // a dedicated pool for the response handling of async requests, instead of the default cached pool
+            builder.withExecutor(Executors.newFixedThreadPool(Integer.parseInt(System.getenv("APP_CLIENT_THREADS"))));
+        }
+        // i.e. HTTP_2 when talking to a proxy that supports it
+        if (System.getenv("APP_HTTP_VERSION") != null) {
+            builder.withHttpVersion(HttpClient.Version.valueOf(System.getenv("APP_HTTP_VERSION")));
+        }
+        // gzip compressed bulk and index requests as well as search responses
+        if (Boolean.parseBoolean(System.getenv("APP_COMPRESSION"))) {
+            builder.withRequestCompression(true).withResponseCompression(true);
+        }
+        // search and bulk responses in smile or cbor instead of JSON
+        if (System.getenv("APP_RESPONSE_FORMAT") != null) {
+            builder.withResponseFormat(ResponseFormat.valueOf(System.getenv("APP_RESPONSE_FORMAT").toUpperCase(Locale.ROOT)));
+        }
+        // spread requests across nodes by the number of requests in flight instead of round robin
+        if ("least_outstanding_requests".equalsIgnoreCase(System.getenv("APP_NODE_SELECTOR"))) {
+            builder.withNodeSelector(ElasticsearchClient.NodeSelector.LEAST_OUTSTANDING_REQUESTS);
+        }
+        // discover all nodes of the cluster once a minute, starting with the configured ones
+        if (Boolean.parseBoolean(System.getenv("APP_SNIFFING"))) {
+            builder.withSniffing(Duration.ofMinutes(1));
+        }
+        // reject searches and index requests early, once elasticsearch slows down
+        if (Boolean.parseBoolean(System.getenv("APP_CONCURRENCY_LIMIT"))) {
+            builder.withSearchLimiter(ConcurrencyLimiter.newBuilder("search").build())
+                    .withIndexLimiter(ConcurrencyLimiter.newBuilder("index").build());
+        }
+        // retry overloaded and unreachable nodes, i.e. APP_RETRIES=3
+        if (System.getenv("APP_RETRIES") != null) {
+            builder.withRetries(Integer.parseInt(System.getenv("APP_RETRIES")), Duration.ofMillis(50), Duration.ofSeconds(2));
+        }
+        // trims the tail latency of searches at the cost of a few percent more search requests
+        if (Boolean.parseBoolean(System.getenv("APP_SEARCH_HEDGING"))) {
+            builder.withSearchHedging(true);
+        }
+        // concurrent searches within half a millisecond share a single multi search request
+        if (Boolean.parseBoolean(System.getenv("APP_SEARCH_BATCHING"))) {
+            final String window = System.getenv().getOrDefault("APP_SEARCH_BATCHING_WINDOW_MICROS", "500");
+            final String size = System.getenv().getOrDefault("APP_SEARCH_BATCHING_SIZE", "64");
+            builder.withSearchBatching(Duration.ofNanos(Long.parseLong(window) * 1000), Integer.parseInt(size));
+        }
+        // stop calling an endpoint for ten seconds once half of its requests fail
+        if (Boolean.parseBoolean(System.getenv("APP_CIRCUIT_BREAKER"))) {
+            builder.withCircuitBreaker(0.5, Duration.ofSeconds(10));
+        }
+        final ElasticsearchClient client = builder.build();
+        // batch incoming persons into bulk requests instead of sending one request per person
+        final BulkIndexer bulkIndexer = Boolean.parseBoolean(System.getenv("APP_BULK_INDEXING")) ? BulkIndexer.newBuilder(client, renderer).build() : null;
+        if (bulkIndexer != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(bulkIndexer::close));
+        }
+
+        // persons are acknowledged once they are in the spool on local disk, and shipped whenever elasticsearch takes them
+        final Spool spool = System.getenv("APP_SPOOL_DIR") != null && !trainingRun ? createSpool(client, renderer, parser) : null;
+
+        // serve repeated queries from memory, all entries are dropped when persons are indexed
+        final SearchCache searchCache = Boolean.parseBoolean(System.getenv("APP_SEARCH_CACHE")) ? SearchCache.newBuilder().build() : null;
+        if (searchCache != null) {
+            client.addIndexListener(searchCache);
+            bindSearchCache(registry, searchCache);
+        }
+
+        // traces every search and logs the ones slower than the threshold, i.e. APP_SLOW_QUERY_THRESHOLD_MS=500
+        final SlowQueryLog slowQueryLog = System.getenv("APP_SLOW_QUERY_THRESHOLD_MS") != null ? createSlowQueryLog() : null;
+
+        // reads all persons of the index in slices, APP_EXPORT_SLICES should not exceed the number of shards
+        final Exporter.Builder exporterBuilder = Exporter.newBuilder(client, renderer);
+        final String exportSlices = System.getenv("APP_EXPORT_SLICES");
+        if (exportSlices != null) {
+            exporterBuilder.withSlices(Integer.parseInt(exportSlices));
+        }
+        if (virtualThreads) {
+            exporterBuilder.withExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        }
+        final Exporter exporter = exporterBuilder.build();
+
+        // typeahead from memory, filled from the index in the background and kept current on indexing
+        final Suggester suggester = new Suggester();
+        client.addIndexListener(suggester);
+        if (!trainingRun) {
+            final Thread suggesterLoader = new Thread(() -> {
+                try {
+                    logger.info("loaded {} persons for suggestions", suggester.load(exporter));
+                } catch (Exception e) {
+                    logger.warn("could not load persons for suggestions", e);
+                }
+            }, "suggester-loader");
+            suggesterLoader.setDaemon(true);
+            suggesterLoader.start();
+        }
 
-        Javalin app = Javalin.create().start(7000);
+        // exercise rendering, parsing and the http client before the port is opened, so the first searches are not slow
+        final boolean warmup = trainingRun || Boolean.parseBoolean(System.getenv("APP_WARMUP"));
+        if (warmup) {
+            warmup(renderer, parser);
+        }
+
+        Javalin app = Javalin.create(config -> {
+            if (virtualThreads) {
+                config.server(() -> new Server(new VirtualThreadPool()));
+            }
+            // latency per endpoint and status, as well as the jetty thread pool and connections
+            config.registerPlugin(new MicrometerPlugin(registry));
+        });
+        // only registered routes get their own meter, so clients cannot create meters by requesting arbitrary paths
+        final Set<String> routes = ConcurrentHashMap.newKeySet();
+        app.events(event -> event.handlerAdded(handler -> {
+            if (handler.getHttpMethod().isHttpMethod()) {
+                routes.add(handler.getHttpMethod().name() + " " + handler.getPath());
+            }
+        }));
+        final Map<String, DistributionSummary> responseSizes = new ConcurrentHashMap<>();
+        // the request log is called once the response is complete, also for async responses
+        app.server().server().setRequestLog((request, response) -> {
+            final String route = request.getMethod() + " " + request.getRequestURI();
+            final String key = response.getStatus() == 404 ? "UNKNOWN NOT_FOUND" : routes.contains(route) ? route : "UNKNOWN UNKNOWN";
+            responseSizes.computeIfAbsent(key, k -> responseSize(registry, k)).record(response.getHttpChannel().getBytesWritten());
+        });
+        app.start(trainingRun ? 0 : 7000);
+
+        // rendering the hits for the client, the last stage after parsing the elasticsearch response
+        final Timer renderTimer = Timer.builder("app.render")
+                .description("Rendering of search responses")
+                .publishPercentileHistogram()
+                .register(registry);
 
         final String result = "{\"healthy\":\"ok\"}";
         // usually you check for the reachability of the Elasticsearch instance
         app.get("/", ctx -> ctx.contentType("application/json").result(result));
 
+        app.get("/metrics", ctx -> ctx.contentType(TextFormat.CONTENT_TYPE_004).result(registry.scrape()));
+
+        // invalid paging parameters or cursors
+        app.exception(IllegalArgumentException.class, (e, ctx) -> ctx.status(400).contentType("text/plain").result(e.getMessage()));
+        // shed load while elasticsearch is overloaded, instead of piling up waiting requests
+        app.exception(LimitExceededException.class, (e, ctx) -> serviceUnavailable(ctx, e.getMessage(), e.retryAfter()));
+        app.exception(CircuitOpenException.class, (e, ctx) -> serviceUnavailable(ctx, e.getMessage(), e.retryAfter()));
+        // elasticsearch is still overloaded after all retries, rejected the request of the client or failed it
+        app.exception(ElasticsearchException.class, (e, ctx) -> {
+            if (e.isRetryable()) {
+                serviceUnavailable(ctx, e.getMessage(), Duration.ofSeconds(1));
+            } else if (e.status() == 400 || e.status() == 404) {
+                // a query string elasticsearch cannot parse, or a cursor whose point in time has expired
+                ctx.status(e.status()).contentType("text/plain").result(e.getMessage());
+            } else {
+                ctx.status(502).contentType("text/plain").result(e.getMessage());
+            }
+        });
+
         app.get("/search", ctx -> {
-            final SearchResponse searchResponse = client.search("search", ctx.queryParam("q"));
-            ctx.contentType("application/json").status(200).result(renderer.searchResponse(searchResponse));
+            final String query = ctx.queryParam("q");
+            final int size = ctx.queryParam("size", Integer.class, String.valueOf(ElasticsearchClient.DEFAULT_SIZE)).get();
+            ctx.contentType("application/json").status(200);
+
+            // deep pagination, the first page is requested with pit=true, every further page with the returned cursor
+            final String cursorToken = ctx.queryParam("cursor");
+            if (cursorToken != null || Boolean.parseBoolean(ctx.queryParam("pit"))) {
+                if (cursorToken == null && query == null) {
+                    throw new IllegalArgumentException("q must be set for the first page");
+                }
+                final SearchCursor cursor = cursorToken != null ? SearchCursor.decode(cursorToken) : SearchCursor.first(query, size);
+                if (virtualThreads) {
+                    ctx.result(renderPage(renderer, renderTimer, client.searchPage("search", cursor), ctx));
+                } else {
+                    ctx.result(client.searchPageAsync("search", cursor).thenApply(page -> new ByteArrayInputStream(renderPage(renderer, renderTimer, page, ctx))));
+                }
+                return;
+            }
+
+            final int from = ctx.queryParam("from", Integer.class, "0").get();
+            // i.e. projection=names to only return first and last names
+            final Projection projection = Projection.parse(ctx.queryParam("projection"));
+            if (streamingSearch) {
+                client.searchStreaming("search", query, from, size, projection, ctx.res.getOutputStream());
+                return;
+            }
+
+            // continues the trace of the caller, if it sent a traceparent header
+            final Trace trace = slowQueryLog != null ? Trace.start(ctx.header("traceparent")) : null;
+            if (virtualThreads) {
+                // blocking only parks the virtual thread
+                final SearchCache.Loader loader = () -> render(renderer, renderTimer, client.search("search", query, from, size, projection, trace), projection, trace);
+                ctx.result(searchCache != null ? searchCache.get("search", query, from, size, projection, loader) : loader.load());
+                if (trace != null) {
+                    slowQueryLog.log("search", query, trace);
+                }
+                return;
+            }
+
+            // the jetty thread is released while waiting for elasticsearch, the response is written once the future completes
+            final Supplier<CompletableFuture<byte[]>> loader = () -> client.searchAsync("search", query, from, size, projection, trace)
+                    .thenApply(searchResponse -> render(renderer, renderTimer, searchResponse, projection, trace));
+            CompletableFuture<byte[]> future = searchCache != null ? searchCache.getAsync("search", query, from, size, projection, loader) : loader.get();
+            if (trace != null) {
+                future = future.whenComplete((data, e) -> slowQueryLog.log("search", query, trace));
+            }
+            // javalin only supports strings and input streams as result of a future
+            ctx.result(future.thenApply(ByteArrayInputStream::new));
+        });
+
+        // first names, last names and employers starting with the prefix, the most frequent first
+        app.get("/suggest", ctx -> {
+            final String prefix = ctx.queryParam("prefix");
+            if (prefix == null || prefix.isBlank()) {
+                throw new IllegalArgumentException("prefix must not be empty");
+            }
+            final int size = ctx.queryParam("size", Integer.class, "10").get();
+            ctx.contentType("application/json").result(renderer.suggestions(suggester.suggest(prefix, size)));
+        });
+
+        // all persons as newline delimited JSON, written while the index is still being read
+        app.get("/export", ctx -> {
+            ctx.contentType("application/x-ndjson").status(200);
+            exporter.export(ctx.res.getOutputStream());
+        });
+
+        // a stream of persons as newline delimited JSON or CSV, indexed while the body is still being uploaded
+        final Importer importer = Importer.newBuilder(client, renderer, parser).build();
+        app.post("/persons/_import", ctx -> {
+            final String contentType = ctx.contentType();
+            final boolean csv = "csv".equalsIgnoreCase(ctx.queryParam("format")) || (contentType != null && contentType.startsWith("text/csv"));
+            final ImportSummary summary = importer.importPersons(ctx.req.getInputStream(), csv ? Importer.Format.CSV : Importer.Format.NDJSON);
+            ctx.contentType("application/json").result(renderer.importSummary(summary));
         });
 
         app.post("/person", ctx -> {
             final Person person = parser.toPerson(ctx.bodyAsBytes());
-            client.index(person);
-            ctx.status(200);
+            if (spool != null) {
+                spool.append(person);
+                ctx.status(202);
+                return;
+            }
+            if (bulkIndexer == null && virtualThreads) {
+                client.index(person);
+                ctx.status(200);
+                return;
+            } else if (bulkIndexer == null) {
+                ctx.status(200).result(client.indexAsync(person).thenApply(v -> ""));
+                return;
+            }
+
+            final CompletableFuture<BulkItem> future = bulkIndexer.add(person);
+            // only wait for the bulk request if the caller asks for it, otherwise acknowledge right away
+            if (Boolean.parseBoolean(ctx.queryParam("wait"))) {
+                ctx.result(future.thenApply(item -> {
+                    ctx.status(item.failed() ? item.status() : 200);
+                    return "";
+                }));
+            } else {
+                ctx.status(202);
+            }
+        });
+
+        if (warmup) {
+            warmupEndpoints(app.port());
+        }
+        if (trainingRun) {
+            app.stop();
+            System.exit(0);
+        }
+    }
+
+    private static void bindSearchCache(MeterRegistry registry, SearchCache searchCache) {
+        FunctionCounter.builder("app.search.cache.hits", searchCache, SearchCache::hits)
+                .description("Searches answered from the cache")
+                .register(registry);
+        FunctionCounter.builder("app.search.cache.misses", searchCache, SearchCache::misses)
+                .description("Searches sent to elasticsearch, because they were not cached")
+                .register(registry);
+        FunctionCounter.builder("app.search.cache.evictions", searchCache, SearchCache::evictions)
+                .description("Entries evicted, because the cache was full")
+                .register(registry);
+    }
+
+    // the key is the method and the path of the route
+    private static DistributionSummary responseSize(MeterRegistry registry, String key) {
+        final int separator = key.indexOf(' ');
+        return DistributionSummary.builder("http.server.response.size")
+                .description("Size of response bodies sent to clients")
+                .baseUnit("bytes")
+                .tag("method", key.substring(0, separator))
+                .tag("uri", key.substring(separator + 1))
+                .publishPercentileHistogram()
+                .minimumExpectedValue(64.0)
+                .maximumExpectedValue(64.0 * 1024 * 1024)
+                .register(registry);
+    }
+
+    private static Spool createSpool(ElasticsearchClient client, Renderer renderer, Parser parser) {
+        final Spool.Builder builder = Spool.newBuilder(client, renderer, parser, Path.of(System.getenv("APP_SPOOL_DIR")))
+                .withSync(Boolean.parseBoolean(System.getenv("APP_SPOOL_SYNC")));
+        try {
+            final Spool spool = builder.build();
+            Runtime.getRuntime().addShutdownHook(new Thread(spool::close));
+            return spool;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open spool", e);
+        }
+    }
+
+    private static SlowQueryLog createSlowQueryLog() {
+        final Duration threshold = Duration.ofMillis(Long.parseLong(System.getenv("APP_SLOW_QUERY_THRESHOLD_MS")));
+        final double sampleRate = Double.parseDouble(System.getenv().getOrDefault("APP_SLOW_QUERY_SAMPLE_RATE", "1.0"));
+        return SlowQueryLog.newBuilder().withThreshold(threshold).withSampleRate(sampleRate).build();
+    }
+
+    private static void warmup(Renderer renderer, Parser parser) {
+        try {
+            logger.info("warmup took {}ms", Warmup.newBuilder(renderer, parser).build().run().toMillis());
+        } catch (Exception e) {
+            // a cold start is slower, but still works
+            logger.warn("warmup failed", e);
+        }
+    }
+
+    // requests to the endpoints that do not need elasticsearch, to load the classes of javalin and jetty
+    private static void warmupEndpoints(int port) {
+        final HttpClient httpClient = HttpClient.newHttpClient();
+        try {
+            for (String path : List.of("/", "/suggest?prefix=a", "/metrics")) {
+                final HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + path)).build();
+                for (int i = 0; i < 100; i++) {
+                    httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("warmup of endpoints failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void serviceUnavailable(Context ctx, String message, Duration retryAfter) {
+        ctx.status(503)
+                .header("Retry-After", String.valueOf(Math.max(1, retryAfter.toSeconds())))
+                .contentType("text/plain")
+                .result(message);
+    }
+
+    // the cursor of the next page is returned as header, so the response body stays the same
+    private static byte[] renderPage(Renderer renderer, Timer timer, SearchPage page, Context ctx) {
+        if (page.next() != null) {
+            ctx.header(NEXT_CURSOR_HEADER, page.next().encode());
+        }
+        return render(renderer, timer, page.response());
+    }
+
+    private static byte[] render(Renderer renderer, Timer timer, SearchResponse searchResponse) {
+        return render(renderer, timer, searchResponse, Projection.PERSON, null);
+    }
+
+    private static byte[] render(Renderer renderer, Timer timer, SearchResponse searchResponse, Projection projection, Trace trace) {
+        final long start = System.nanoTime();
+        final byte[] data = timer.record(() -> {
+            try {
+                return renderer.searchResponse(searchResponse, projection);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        if (trace != null) {
+            trace.record(Trace.Stage.RENDER_RESPONSE, start);
+        }
+        return data;
+    }
+
+    // scraped by prometheus from /metrics
+    private static PrometheusMeterRegistry createMeterRegistry() {
+        final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        // histogram buckets for the request timings of the micrometer plugin, so percentiles can be aggregated across instances
+        registry.config().meterFilter(new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                if (id.getName().startsWith("jetty.server.requests")) {
+                    return DistributionStatisticConfig.builder().percentilesHistogram(true).build().merge(config);
+                }
+                return config;
+            }
         });
+        new ClassLoaderMetrics().bindTo(registry);
+        new JvmMemoryMetrics().bindTo(registry);
+        new JvmGcMetrics().bindTo(registry);
+        new JvmThreadMetrics().bindTo(registry);
+        new ProcessorMetrics().bindTo(registry);
+        new UptimeMetrics().bindTo(registry);
+        return registry;
     }
 }
\ No newline at end of file
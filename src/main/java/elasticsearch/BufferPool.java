@@ -0,0 +1,155 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.util.BufferRecycler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of byte and char arrays shared by rendering, parsing and the HTTP client, so the buffers of a
+ * request are reused by the next one, no matter which thread it runs on. Thread locals do not help with
+ * a virtual thread per request, as no virtual thread is ever reused.
+ *
+ * Buffers come in power of two size classes, and every class keeps only a bounded number of them. Larger
+ * buffers are neither pooled nor retained. A buffer that is not released is simply garbage collected, so
+ * forgetting to release one costs an allocation, but never breaks anything.
+ */
+final class BufferPool {
+
+    private static final int MIN_SHIFT = 8;
+    private static final BufferPool SHARED = new BufferPool(1024 * 1024, 512 * 1024);
+
+    private final int maxBufferSize;
+    private final ArrayBlockingQueue<byte[]>[] bytes;
+    private final ArrayBlockingQueue<char[]>[] chars;
+    private final BufferRecycler recycler = new Recycler();
+
+    BufferPool(int maxBufferSize, int retainedBytesPerClass) {
+        if (Integer.bitCount(maxBufferSize) != 1 || maxBufferSize < 1 << MIN_SHIFT) {
+            throw new IllegalArgumentException("max buffer size must be a power of two of at least " + (1 << MIN_SHIFT));
+        }
+        this.maxBufferSize = maxBufferSize;
+        final int classes = sizeClass(maxBufferSize) + 1;
+        // generic arrays cannot be created, the queues are typed when they are filled below
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayBlockingQueue<byte[]>[] bytes = new ArrayBlockingQueue[classes];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayBlockingQueue<char[]>[] chars = new ArrayBlockingQueue[classes];
+        for (int i = 0; i < classes; i++) {
+            // the small classes hold many buffers, the large ones only a few
+            final int capacity = Math.max(1, retainedBytesPerClass >> (MIN_SHIFT + i));
+            bytes[i] = new ArrayBlockingQueue<>(capacity);
+            chars[i] = new ArrayBlockingQueue<>(Math.max(1, capacity / 2));
+        }
+        this.bytes = bytes;
+        this.chars = chars;
+    }
+
+    static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns a buffer of at least the given size, its content is undefined
+     */
+    byte[] bytes(int minSize) {
+        if (minSize > maxBufferSize) {
+            return new byte[minSize];
+        }
+        final int sizeClass = sizeClass(minSize);
+        final byte[] buffer = bytes[sizeClass].poll();
+        return buffer != null ? buffer : new byte[1 << (MIN_SHIFT + sizeClass)];
+    }
+
+    void release(byte[] buffer) {
+        if (buffer != null && isPooled(buffer.length)) {
+            bytes[sizeClass(buffer.length)].offer(buffer);
+        }
+    }
+
+    char[] chars(int minSize) {
+        if (minSize > maxBufferSize) {
+            return new char[minSize];
+        }
+        final int sizeClass = sizeClass(minSize);
+        final char[] buffer = chars[sizeClass].poll();
+        return buffer != null ? buffer : new char[1 << (MIN_SHIFT + sizeClass)];
+    }
+
+    void release(char[] buffer) {
+        if (buffer != null && isPooled(buffer.length)) {
+            chars[sizeClass(buffer.length)].offer(buffer);
+        }
+    }
+
+    // buffers of other sizes, i.e. grown by jackson itself, are not taken back
+    private boolean isPooled(int length) {
+        return Integer.bitCount(length) == 1 && length >= 1 << MIN_SHIFT && length <= maxBufferSize;
+    }
+
+    private static int sizeClass(int size) {
+        return size <= 1 << MIN_SHIFT ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * A JSON factory with the same configuration as the one of the mapper, whose parsers and generators
+     * take their buffers from this pool instead of a thread local
+     */
+    JsonFactory jsonFactory(ObjectMapper mapper) {
+        return new JsonFactory(mapper.getFactory(), mapper) {
+            @Override
+            public BufferRecycler _getBufferRecycler() {
+                return recycler;
+            }
+        };
+    }
+
+    SmileFactory smileFactory() {
+        return new SmileFactory() {
+            @Override
+            public BufferRecycler _getBufferRecycler() {
+                return recycler;
+            }
+        };
+    }
+
+    CBORFactory cborFactory() {
+        return new CBORFactory() {
+            @Override
+            public BufferRecycler _getBufferRecycler() {
+                return recycler;
+            }
+        };
+    }
+
+    // a single instance shared by all threads, as every buffer is handed out only once
+    private final class Recycler extends BufferRecycler {
+
+        private Recycler() {
+            super(0, 0);
+        }
+
+        @Override
+        public byte[] allocByteBuffer(int ix, int minSize) {
+            return bytes(Math.max(byteBufferLength(ix), minSize));
+        }
+
+        @Override
+        public void releaseByteBuffer(int ix, byte[] buffer) {
+            release(buffer);
+        }
+
+        @Override
+        public char[] allocCharBuffer(int ix, int minSize) {
+            return chars(Math.max(charBufferLength(ix), minSize));
+        }
+
+        @Override
+        public void releaseCharBuffer(int ix, char[] buffer) {
+            release(buffer);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package elasticsearch;
+
+import model.BulkItem;
+import model.BulkResponse;
+import model.Person;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Collects single index operations and sends them as bulk requests from a background thread.
+ * A bulk request is sent as soon as the number of documents, the size of the bulk body or the
+ * time the oldest document has been waiting reaches its configured limit.
+ */
+public class BulkIndexer implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkIndexer.class);
+
+    // elasticsearch rejected the item because its write queue was full, so it is safe to send it again
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ElasticsearchClient client;
+    private final Renderer renderer;
+    private final BlockingQueue<Request> queue;
+    private final int maxActions;
+    private final long maxBytes;
+    private final long maxLatencyNanos;
+    private final int maxRetries;
+    private final Thread flusher;
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean closed = false;
+
+    private record Request(Person person, byte[] data, CompletableFuture<BulkItem> future, long enqueuedAt, int attempt) {
+
+        private Request retry() {
+            return new Request(person, data, future, System.nanoTime(), attempt + 1);
+        }
+    }
+
+    private BulkIndexer(ElasticsearchClient client, Renderer renderer, int queueCapacity, int maxActions,
+                        long maxBytes, Duration maxLatency, int maxRetries) {
+        this.client = client;
+        this.renderer = renderer;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.maxLatencyNanos = maxLatency.toNanos();
+        this.maxRetries = maxRetries;
+        this.flusher = new Thread(this::run, "bulk-indexer");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues a person for indexing, blocking while the queue is full. The returned future completes
+     * once the bulk request containing this person has been executed, callers not interested in the
+     * outcome can just ignore it.
+     */
+    public CompletableFuture<BulkItem> add(Person person) throws InterruptedException {
+        final Request request = new Request(person, renderer.bulkIndexAction(person), new CompletableFuture<>(), System.nanoTime(), 0);
+        // close() waits for adds in progress, so nothing is queued once the flusher may see the indexer as closed
+        closeLock.readLock().lockInterruptibly();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Bulk indexer is already closed");
+            }
+            queue.put(request);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        return request.future();
+    }
+
+    /**
+     * Stops accepting new documents and waits until all queued documents have been sent
+     */
+    @Override
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Request> retries = new ArrayList<>();
+        while (true) {
+            final List<Request> batch = new ArrayList<>(retries);
+            try {
+                if (batch.isEmpty()) {
+                    // poll in short intervals when idle to notice a close() call
+                    final Request first = queue.poll(POLL_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+                    if (first == null) {
+                        // a document may have been queued between the poll and close()
+                        if (closed && queue.isEmpty()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                }
+                fill(batch);
+            } catch (InterruptedException e) {
+                batch.addAll(queue);
+                batch.forEach(request -> request.future().completeExceptionally(e));
+                return;
+            }
+            try {
+                retries = send(batch);
+            } catch (RuntimeException e) {
+                // the flusher must keep running, otherwise nobody waiting for a result would ever be completed
+                logger.error("Error processing bulk request with [{}] documents", batch.size(), e);
+                batch.forEach(request -> request.future().completeExceptionally(e));
+                retries = new ArrayList<>();
+            }
+        }
+    }
+
+    private void fill(List<Request> batch) throws InterruptedException {
+        long bytes = batch.stream().mapToLong(request -> request.data().length).sum();
+        final long deadline = batch.get(0).enqueuedAt() + maxLatencyNanos;
+        while (batch.size() < maxActions && bytes < maxBytes) {
+            final Request request;
+            if (closed) {
+                // no need to wait for more documents on close, just send everything that is left
+                request = queue.poll();
+                if (request == null) {
+                    return;
+                }
+            } else {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                // wait in short intervals to notice a close() call
+                request = queue.poll(Math.min(remaining, POLL_INTERVAL_NANOS), TimeUnit.NANOSECONDS);
+                if (request == null) {
+                    continue;
+                }
+            }
+            batch.add(request);
+            bytes += request.data().length;
+        }
+    }
+
+    private List<Request> send(List<Request> batch) {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        batch.forEach(request -> bos.writeBytes(request.data()));
+
+        final BulkResponse response;
+        try {
+            response = client.bulk(bos.toByteArray());
+        } catch (Exception e) {
+            logger.error("Error sending bulk request with [{}] documents", batch.size(), e);
+            batch.forEach(request -> request.future().completeExceptionally(e));
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of();
+        }
+
+        // without an item per document, it is unknown which of the documents were indexed
+        if (response.items().size() != batch.size()) {
+            final IOException e = new IOException("Bulk response has [" + response.items().size() + "] items for [" + batch.size() + "] documents");
+            logger.error("Error sending bulk request with [{}] documents", batch.size(), e);
+            batch.forEach(request -> request.future().completeExceptionally(e));
+            return List.of();
+        }
+
+        // items in the response are in the same order than in the request
+        final List<Request> retries = new ArrayList<>();
+        final List<Person> indexed = new ArrayList<>(batch.size());
+        final boolean[] retried = new boolean[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            final Request request = batch.get(i);
+            final BulkItem item = response.items().get(i);
+            if (item.status() == TOO_MANY_REQUESTS && request.attempt() < maxRetries) {
+                retries.add(request.retry());
+                retried[i] = true;
+            } else if (item.failed()) {
+                logger.warn("Error indexing document, status [{}]: {}", item.status(), item.error());
+            } else {
+                indexed.add(request.person());
+            }
+        }
+        // listeners are notified before anyone waiting for the result continues
+        client.notifyIndexed(indexed);
+        for (int i = 0; i < batch.size(); i++) {
+            if (!retried[i]) {
+                batch.get(i).future().complete(response.items().get(i));
+            }
+        }
+        return retries;
+    }
+
+    public static Builder newBuilder(ElasticsearchClient client, Renderer renderer) {
+        return new Builder(client, renderer);
+    }
+
+    public static class Builder {
+
+        private final ElasticsearchClient client;
+        private final Renderer renderer;
+        private int queueCapacity = 10_000;
+        private int maxActions = 1_000;
+        private long maxBytes = 5 * 1024 * 1024;
+        private Duration maxLatency = Duration.ofMillis(200);
+        private int maxRetries = 3;
+
+        public Builder(ElasticsearchClient client, Renderer renderer) {
+            this.client = client;
+            this.renderer = renderer;
+        }
+
+        public Builder withQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder withMaxActions(int maxActions) {
+            this.maxActions = maxActions;
+            return this;
+        }
+
+        public Builder withMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public Builder withMaxLatency(Duration maxLatency) {
+            this.maxLatency = maxLatency;
+            return this;
+        }
+
+        // number of times an item rejected by elasticsearch is added to one of the next bulk requests
+        public Builder withMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public BulkIndexer build() {
+            return new BulkIndexer(client, renderer, queueCapacity, maxActions, maxBytes, maxLatency, maxRetries);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package elasticsearch;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops sending requests to an endpoint that fails most of them. The breaker opens once the failure
+ * rate of the last requests reaches the threshold, and rejects all requests for the open duration.
+ * After that it is half open and lets a single request through as a probe, which either closes the
+ * breaker again or opens it for another period.
+ */
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    // the failure rate is calculated over the outcomes of the last requests
+    static final int WINDOW_SIZE = 20;
+    // a few failures right after start or after closing must not open the breaker
+    static final int MIN_REQUESTS = 10;
+
+    private final String endpoint;
+    private final double failureRateThreshold;
+    private final long openNanos;
+    private final boolean[] failed = new boolean[WINDOW_SIZE];
+    private final LongAdder rejected = new LongAdder();
+    private int next = 0;
+    private int requests = 0;
+    private int failures = 0;
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing = false;
+
+    CircuitBreaker(String endpoint, double failureRateThreshold, Duration openDuration) {
+        this.endpoint = endpoint;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openNanos = openDuration.toNanos();
+    }
+
+    /**
+     * Throws a CircuitOpenException if the request must not be sent. Every request that is let
+     * through has to report its outcome with onSuccess, onFailure or onIgnore.
+     */
+    synchronized void acquire() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (state == State.OPEN && now - openedAt >= openNanos) {
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN && !probing) {
+            probing = true;
+            return;
+        }
+        rejected.increment();
+        final long remaining = Math.max(0, openNanos - (now - openedAt));
+        throw new CircuitOpenException("Circuit breaker for " + endpoint + " is open", Duration.ofNanos(remaining));
+    }
+
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            close();
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (requests >= MIN_REQUESTS && failures >= failureRateThreshold * requests) {
+                open();
+            }
+        }
+    }
+
+    // the request ended without telling anything about the endpoint, i.e. it was interrupted
+    synchronized void onIgnore() {
+        probing = false;
+    }
+
+    private void record(boolean failure) {
+        if (requests == WINDOW_SIZE) {
+            if (failed[next]) {
+                failures--;
+            }
+        } else {
+            requests++;
+        }
+        failed[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % WINDOW_SIZE;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        probing = false;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        probing = false;
+        requests = 0;
+        failures = 0;
+        next = 0;
+    }
+
+    String endpoint() {
+        return endpoint;
+    }
+
+    State state() {
+        return state;
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,22 @@
+package elasticsearch;
+
+import java.time.Duration;
+
+/**
+ * Thrown when a request is rejected by an open {@link CircuitBreaker}, before it has been sent to Elasticsearch
+ */
+public class CircuitOpenException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Duration retryAfter;
+
+    public CircuitOpenException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration retryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,200 @@
+package elasticsearch;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Meters of every stage of a request to Elasticsearch: rendering the request body, the HTTP call and
+ * parsing the response. Besides the timings it counts the status codes per endpoint and records the
+ * size of responses as well as the number of requests in flight.
+ */
+final class ClientMetrics {
+
+    // status of requests that failed without a response
+    static final String IO_ERROR = "IO_ERROR";
+
+    @FunctionalInterface
+    interface IOSupplier<T> {
+        T get() throws IOException;
+    }
+
+    private final MeterRegistry registry;
+
+    ClientMetrics(MeterRegistry registry, NodePool nodePool) {
+        this.registry = registry;
+        Gauge.builder("elasticsearch.client.requests.in_flight", nodePool, NodePool::outstanding)
+                .description("Requests sent to elasticsearch, that have not been answered yet")
+                .register(registry);
+    }
+
+    void limiter(ConcurrencyLimiter limiter) {
+        Gauge.builder("elasticsearch.client.limit", limiter, ConcurrencyLimiter::limit)
+                .description("Current adaptive limit of requests in flight")
+                .tag("budget", limiter.name())
+                .register(registry);
+        FunctionCounter.builder("elasticsearch.client.rejected", limiter, ConcurrencyLimiter::rejected)
+                .description("Requests rejected, because the limit was reached")
+                .tag("budget", limiter.name())
+                .register(registry);
+    }
+
+    void circuitBreaker(CircuitBreaker breaker) {
+        Gauge.builder("elasticsearch.client.circuit_breaker.state", breaker, b -> b.state().ordinal())
+                .description("State of the circuit breaker, 0 is closed, 1 open and 2 half open")
+                .tag("endpoint", breaker.endpoint())
+                .register(registry);
+        FunctionCounter.builder("elasticsearch.client.circuit_breaker.rejected", breaker, CircuitBreaker::rejected)
+                .description("Requests rejected by an open circuit breaker")
+                .tag("endpoint", breaker.endpoint())
+                .register(registry);
+    }
+
+    void singleFlight(SingleFlight<?, ?> searches) {
+        FunctionCounter.builder("elasticsearch.client.searches.coalesced", searches, SingleFlight::coalesced)
+                .description("Searches answered by an identical search already in flight")
+                .register(registry);
+    }
+
+    void retry(String path) {
+        Counter.builder("elasticsearch.client.retries")
+                .description("Requests sent again after a failure")
+                .tag("endpoint", endpoint(path))
+                .register(registry)
+                .increment();
+    }
+
+    void hedge(String path) {
+        Counter.builder("elasticsearch.client.hedges")
+                .description("Additional requests sent, because the first one was slow")
+                .tag("endpoint", endpoint(path))
+                .register(registry)
+                .increment();
+    }
+
+    void hedgeWon(String path) {
+        Counter.builder("elasticsearch.client.hedges.won")
+                .description("Additional requests that returned before the first one")
+                .tag("endpoint", endpoint(path))
+                .register(registry)
+                .increment();
+    }
+
+    void searchBatch(int size) {
+        DistributionSummary.builder("elasticsearch.client.msearch.batch.size")
+                .description("Searches sent together in a single multi search request")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(1.0)
+                .maximumExpectedValue(1024.0)
+                .register(registry)
+                .record(size);
+    }
+
+    void searchQueueDelay(long nanos) {
+        Timer.builder("elasticsearch.client.msearch.queue.delay")
+                .description("Time a search waited for its multi search batch to be sent")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    byte[] render(String template, Supplier<byte[]> body) {
+        return Timer.builder("elasticsearch.client.render")
+                .description("Rendering of request bodies")
+                .tag("template", template)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(body);
+    }
+
+    <T> T parse(String response, IOSupplier<T> parser) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return parser.get();
+        } finally {
+            Timer.builder("elasticsearch.client.parse")
+                    .description("Parsing of response bodies")
+                    .tag("response", response)
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    Timer.Sample startRequest() {
+        return Timer.start(registry);
+    }
+
+    /**
+     * Bodies read into a byte array are part of the timing, streamed bodies are not, so their
+     * timing ends with the response headers and their size is only known from the header
+     */
+    void onResponse(Timer.Sample sample, String path, HttpResponse<?> response) {
+        final String endpoint = endpoint(path);
+        final String status = String.valueOf(response.statusCode());
+        sample.stop(requestTimer(endpoint, status));
+        Counter.builder("elasticsearch.client.responses")
+                .description("Responses by status code")
+                .tag("endpoint", endpoint)
+                .tag("status", status)
+                .register(registry)
+                .increment();
+        final long size = bodySize(response);
+        if (size >= 0) {
+            DistributionSummary.builder("elasticsearch.client.response.size")
+                    .description("Size of response bodies as sent over the wire")
+                    .baseUnit("bytes")
+                    .tag("endpoint", endpoint)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(64.0)
+                    .maximumExpectedValue(64.0 * 1024 * 1024)
+                    .register(registry)
+                    .record(size);
+        }
+    }
+
+    // pooled bodies are still compressed at this point, so they have the size on the wire as well
+    private static long bodySize(HttpResponse<?> response) {
+        if (response.body() instanceof byte[]) {
+            return ((byte[]) response.body()).length;
+        }
+        if (response.body() instanceof PooledOutput) {
+            return ((PooledOutput) response.body()).size();
+        }
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    void onFailure(Timer.Sample sample, String path) {
+        sample.stop(requestTimer(endpoint(path), IO_ERROR));
+    }
+
+    private Timer requestTimer(String endpoint, String status) {
+        return Timer.builder("elasticsearch.client.requests")
+                .description("HTTP calls to elasticsearch")
+                .tag("endpoint", endpoint)
+                .tag("status", status)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    // the API of a path, i.e. _search for /persons/_search, so the number of tag values stays small
+    static String endpoint(String path) {
+        final int start = path.indexOf("/_");
+        if (start < 0) {
+            return "other";
+        }
+        int end = start + 2;
+        while (end < path.length() && path.charAt(end) != '/' && path.charAt(end) != '?') {
+            end++;
+        }
+        return path.substring(start + 1, end);
+    }
+}
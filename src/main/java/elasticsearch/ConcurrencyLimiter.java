@@ -0,0 +1,160 @@
+package elasticsearch;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of requests in flight with additive increase, multiplicative decrease (AIMD). The
+ * limit grows by one with every fast request while at least half of it is used, and shrinks by the
+ * backoff ratio whenever a request fails or is slower than the latency threshold. Requests above the
+ * limit are rejected right away, so callers fail fast instead of queueing up in front of an
+ * overloaded cluster.
+ */
+public class ConcurrencyLimiter {
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyThresholdNanos;
+    private final Duration retryAfter;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    // updates are synchronized, reads on the request path are not
+    private volatile int limit;
+
+    private ConcurrencyLimiter(String name, int initialLimit, int minLimit, int maxLimit, double backoffRatio,
+                               Duration latencyThreshold, Duration retryAfter) {
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThresholdNanos = latencyThreshold.toNanos();
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Returns a permit that has to be released once the request finished, or throws a
+     * LimitExceededException if the limit is reached
+     */
+    Permit acquire() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                throw new LimitExceededException("Too many concurrent " + name + " requests, limit is " + limit, retryAfter);
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return new Permit(System.nanoTime());
+            }
+        }
+    }
+
+    final class Permit {
+
+        private final long start;
+
+        private Permit(long start) {
+            this.start = start;
+        }
+
+        void onSuccess() {
+            final int current = inFlight.getAndDecrement();
+            update(System.nanoTime() - start > latencyThresholdNanos, current);
+        }
+
+        // the request failed or timed out, which is a sign of overload as well
+        void onDropped() {
+            final int current = inFlight.getAndDecrement();
+            update(true, current);
+        }
+
+        // the request failed for reasons unrelated to load, i.e. invalid input
+        void onIgnore() {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private synchronized void update(boolean overloaded, int inFlight) {
+        if (overloaded) {
+            limit = Math.max(minLimit, (int) (limit * backoffRatio));
+        } else if (inFlight * 2 >= limit) {
+            // only grow while the limit is actually used, otherwise it grows without bounds when idle
+            limit = Math.min(maxLimit, limit + 1);
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    public static Builder newBuilder(String name) {
+        return new Builder(name);
+    }
+
+    public static class Builder {
+
+        private final String name;
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 200;
+        private double backoffRatio = 0.9;
+        private Duration latencyThreshold = Duration.ofSeconds(1);
+        private Duration retryAfter = Duration.ofSeconds(1);
+
+        // the name shows up in the error message of rejected requests, i.e. search
+        public Builder(String name) {
+            this.name = name;
+        }
+
+        public Builder withInitialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        public Builder withLimits(int minLimit, int maxLimit) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        // the limit is multiplied with this ratio on every slow or failed request
+        public Builder withBackoffRatio(double backoffRatio) {
+            this.backoffRatio = backoffRatio;
+            return this;
+        }
+
+        // requests slower than this count as a sign of overload, should be well below the request timeout
+        public Builder withLatencyThreshold(Duration latencyThreshold) {
+            this.latencyThreshold = latencyThreshold;
+            return this;
+        }
+
+        // how long rejected callers are asked to wait before trying again
+        public Builder withRetryAfter(Duration retryAfter) {
+            this.retryAfter = retryAfter;
+            return this;
+        }
+
+        public ConcurrencyLimiter build() {
+            if (minLimit < 1 || minLimit > maxLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+                throw new IllegalArgumentException("limits must satisfy 1 <= min <= initial <= max");
+            }
+            return new ConcurrencyLimiter(name, initialLimit, minLimit, maxLimit, backoffRatio, latencyThreshold, retryAfter);
+        }
+    }
+}
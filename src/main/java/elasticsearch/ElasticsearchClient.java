@@ -1,74 +1,1121 @@
 package elasticsearch;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import kotlin.text.Charsets;
+import model.BulkResponse;
 import model.Person;
+import model.Projection;
+import model.SearchCursor;
+import model.SearchHit;
+import model.SearchPage;
 import model.SearchResponse;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.URI;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
 import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
-public class ElasticsearchClient {
+public class ElasticsearchClient implements Closeable {
 
     private static final String INDEX = "persons";
+    private static final String SEARCH_PATH = "/" + INDEX + "/_search";
+    private static final String INDEX_PATH = "/" + INDEX + "/_doc/";
+    private static final String BULK_PATH = "/" + INDEX + "/_bulk";
+    private static final String PIT_PATH = "/" + INDEX + "/_pit";
+    // searches against a point in time must not specify an index
+    private static final String PIT_SEARCH_PATH = "/_search";
+    private static final String MULTI_SEARCH_PATH = "/" + INDEX + "/_msearch";
+    // how long a point in time is kept open between two pages
+    private static final String PIT_KEEP_ALIVE = "1m";
+
+    // compressing small bodies costs more time than it saves on the wire
+    private static final int MIN_COMPRESSION_SIZE = 1024;
+
+    // searches are hedged after the 95th percentile of the latency of the last searches
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final int HEDGE_WINDOW_SIZE = 256;
+    // fast searches are never hedged, a jitter of a few milliseconds does not justify a second request
+    private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    public static final int DEFAULT_SIZE = 10;
+    // same as the default of index.max_result_window, deeper pages need a cursor
+    public static final int MAX_RESULT_WINDOW = 10_000;
+
+    /**
+     * How requests are spread across the nodes
+     */
+    public enum NodeSelector {
+        ROUND_ROBIN,
+        // prefers the node with the fewest requests in flight, so slow nodes get less traffic
+        LEAST_OUTSTANDING_REQUESTS
+    }
 
     private final HttpClient client;
-    private final String endpoint;
+    private final NodePool nodePool;
+    private final ClientMetrics metrics;
     private final Map<String, String> headers;
     private final Renderer renderer;
     private final Parser parser;
+    private final List<IndexListener> indexListeners = new CopyOnWriteArrayList<>();
+    // identical searches running at the same time share a single request, if enabled
+    private final SingleFlight<SearchKey, SearchResponse> searches;
+    // searches and writes have separate budgets, so slow indexing does not starve searches and vice versa
+    private final ConcurrencyLimiter searchLimiter;
+    private final ConcurrencyLimiter indexLimiter;
+
+    private final int maxRetries;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    // latencies of recent searches, only tracked if searches are hedged
+    private final LatencyWindow searchLatencies;
+    private final double circuitBreakerFailureRate;
+    private final Duration circuitBreakerOpenDuration;
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    // concurrent searches are sent as multi search requests, if enabled
+    private final SearchBatcher searchBatcher;
+
+    private final Duration requestTimeout;
+    private final boolean compressRequests;
+    private final boolean compressResponses;
+    private final ResponseFormat responseFormat;
+
+    private record SearchKey(String templateName, String query, int from, int size, Projection projection) {
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws IOException, InterruptedException;
+    }
 
-    private ElasticsearchClient(Renderer renderer, Parser parser, String endpoint, Map<String, String> headers) {
-        this.renderer = renderer;
-        this.parser = parser;
-        this.client = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(5))
-                .build();
-        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length()-1) : endpoint;
+    private ElasticsearchClient(Builder settings, NodePool nodePool, Map<String, String> headers) {
+        this.renderer = settings.renderer;
+        this.parser = settings.parser;
+        this.searches = settings.coalesceSearches ? new SingleFlight<>() : null;
+        this.requestTimeout = settings.requestTimeout;
+        this.compressRequests = settings.compressRequests;
+        this.compressResponses = settings.compressResponses;
+        this.responseFormat = settings.responseFormat;
+        final HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(settings.httpVersion)
+                .connectTimeout(settings.connectTimeout);
+        // the executor is used for the async handling of requests and responses
+        if (settings.executor != null) {
+            builder.executor(settings.executor);
+        }
+        this.client = builder.build();
+        this.nodePool = nodePool;
+        this.metrics = new ClientMetrics(settings.meterRegistry, nodePool);
+        this.searchLimiter = settings.searchLimiter;
+        this.indexLimiter = settings.indexLimiter;
+        this.maxRetries = settings.maxRetries;
+        this.initialBackoffNanos = settings.initialRetryBackoff.toNanos();
+        this.maxBackoffNanos = settings.maxRetryBackoff.toNanos();
+        this.searchLatencies = settings.hedgeSearches ? new LatencyWindow(HEDGE_WINDOW_SIZE, HEDGE_PERCENTILE) : null;
+        this.circuitBreakerFailureRate = settings.circuitBreakerFailureRate;
+        this.circuitBreakerOpenDuration = settings.circuitBreakerOpenDuration;
+        if (searchLimiter != null) {
+            metrics.limiter(searchLimiter);
+        }
+        if (indexLimiter != null) {
+            metrics.limiter(indexLimiter);
+        }
+        if (searches != null) {
+            metrics.singleFlight(searches);
+        }
         // map might be immutable, so create a new one
         this.headers = new HashMap<>(headers);
         this.headers.putIfAbsent("Content-Type", "application/json");
+        // last, as its thread may use the client right away
+        this.searchBatcher = settings.searchBatchSize > 0 ? new SearchBatcher(this, metrics, settings.searchBatchWindow, settings.searchBatchSize) : null;
     }
 
     public SearchResponse search(String templateName, String query) throws IOException, InterruptedException {
-        final String body = renderer.render(templateName, Map.of("query", query));
-        final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
-                .POST(HttpRequest.BodyPublishers.ofString(body))
-                .uri(URI.create(endpoint + "/" + INDEX + "/_search"))
-                .timeout(Duration.ofSeconds(10));
-        headers.forEach((key, value) -> requestBuilder.setHeader(key, value));
-        final HttpResponse<byte[]> response = client.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofByteArray());
-        return parser.toSearchResponse(response.body());
+        return search(templateName, query, 0, DEFAULT_SIZE);
+    }
+
+    public SearchResponse search(String templateName, String query, int from, int size) throws IOException, InterruptedException {
+        return search(templateName, query, from, size, Projection.PERSON, null);
+    }
+
+    /**
+     * Only returns the fields of the projection, and records the stages of the search in the trace, if there is one
+     */
+    public SearchResponse search(String templateName, String query, int from, int size, Projection projection, Trace trace) throws IOException, InterruptedException {
+        final SearchResponse response = searches != null
+                ? searches.execute(new SearchKey(templateName, query, from, size, projection), () -> executeSearch(templateName, query, from, size, projection, trace))
+                : executeSearch(templateName, query, from, size, projection, trace);
+        if (trace != null) {
+            trace.elasticsearch(response);
+        }
+        return response;
+    }
+
+    private SearchResponse executeSearch(String templateName, String query, int from, int size, Projection projection, Trace trace) throws IOException, InterruptedException {
+        if (searchBatcher != null) {
+            return limit(searchLimiter, () -> {
+                final byte[] body = searchBody(templateName, query, from, size, projection, trace);
+                final long start = System.nanoTime();
+                final SearchResponse response = await(searchBatcher.search(body));
+                record(trace, Trace.Stage.SEND, start);
+                return response;
+            });
+        }
+        return limit(searchLimiter, () -> {
+            final HttpRequest.Builder request = searchRequest(templateName, query, from, size, projection, trace);
+            final long start = System.nanoTime();
+            final HttpResponse<PooledOutput> response = searchLatencies != null
+                    ? sendHedgedAndWait(SEARCH_PATH, request)
+                    : send(SEARCH_PATH, request, pooledBody());
+            record(trace, Trace.Stage.SEND, start);
+            return toSearchResponse(response, "Error searching", trace);
+        });
+    }
+
+    public CompletableFuture<SearchResponse> searchAsync(String templateName, String query) {
+        return searchAsync(templateName, query, 0, DEFAULT_SIZE);
+    }
+
+    public CompletableFuture<SearchResponse> searchAsync(String templateName, String query, int from, int size) {
+        return searchAsync(templateName, query, from, size, Projection.PERSON, null);
+    }
+
+    /**
+     * Only returns the fields of the projection, and records the stages of the search in the trace, if there is one.
+     * The trace must not be used before the future completes.
+     */
+    public CompletableFuture<SearchResponse> searchAsync(String templateName, String query, int from, int size, Projection projection, Trace trace) {
+        final CompletableFuture<SearchResponse> future = searches != null
+                ? searches.executeAsync(new SearchKey(templateName, query, from, size, projection), () -> executeSearchAsync(templateName, query, from, size, projection, trace))
+                : executeSearchAsync(templateName, query, from, size, projection, trace);
+        if (trace == null) {
+            return future;
+        }
+        return future.thenApply(response -> {
+            trace.elasticsearch(response);
+            return response;
+        });
+    }
+
+    private CompletableFuture<SearchResponse> executeSearchAsync(String templateName, String query, int from, int size, Projection projection, Trace trace) {
+        if (searchBatcher != null) {
+            return limitAsync(searchLimiter, () -> {
+                final byte[] body = searchBody(templateName, query, from, size, projection, trace);
+                final long start = System.nanoTime();
+                return searchBatcher.search(body).thenApply(response -> {
+                    record(trace, Trace.Stage.SEND, start);
+                    return response;
+                });
+            });
+        }
+        return limitAsync(searchLimiter, () -> {
+            final HttpRequest.Builder request = searchRequest(templateName, query, from, size, projection, trace);
+            final long start = System.nanoTime();
+            final CompletableFuture<HttpResponse<PooledOutput>> response = searchLatencies != null
+                    ? sendHedged(SEARCH_PATH, request)
+                    : sendAsync(SEARCH_PATH, request, pooledBody());
+            return response.thenApply(r -> {
+                record(trace, Trace.Stage.SEND, start);
+                try {
+                    return toSearchResponse(r, "Error searching", trace);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        });
+    }
+
+    /**
+     * Runs a search and writes the rendered hits to the output stream while the response of
+     * Elasticsearch is still being read, so memory usage does not depend on the number of hits
+     */
+    public void searchStreaming(String templateName, String query, OutputStream out) throws IOException, InterruptedException {
+        searchStreaming(templateName, query, 0, DEFAULT_SIZE, out);
+    }
+
+    public void searchStreaming(String templateName, String query, int from, int size, OutputStream out) throws IOException, InterruptedException {
+        searchStreaming(templateName, query, from, size, Projection.PERSON, out);
+    }
+
+    public void searchStreaming(String templateName, String query, int from, int size, Projection projection, OutputStream out) throws IOException, InterruptedException {
+        limit(searchLimiter, () -> {
+            final HttpResponse<InputStream> response = send(SEARCH_PATH, searchRequest(templateName, query, from, size, projection, null), HttpResponse.BodyHandlers.ofInputStream());
+            // nothing is written on errors, so the caller can still answer with an error status
+            if (response.statusCode() != 200) {
+                try (InputStream input = decompress(response, response.body())) {
+                    throw error("Error searching", response, input.readAllBytes());
+                }
+            }
+            try (InputStream input = decompress(response, response.body());
+                 JsonParser jsonParser = parser.createParser(input, format(response));
+                 Renderer.SearchHitWriter writer = renderer.searchHitWriter(out, projection)) {
+                parser.parseSearchResponse(jsonParser, writer);
+                // read up to the end of the body, so the connection can be reused
+                input.transferTo(OutputStream.nullOutputStream());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Number of searches, that were answered by an identical search already in flight
+     */
+    public long coalescedSearches() {
+        return searches != null ? searches.coalesced() : 0;
+    }
+
+    // elasticsearch adds the X-Opaque-Id to its slow logs and tasks, so they can be related to the trace
+    private HttpRequest.Builder searchRequest(String templateName, String query, int from, int size, Projection projection, Trace trace) {
+        final HttpRequest.Builder request = newSearchRequest().POST(HttpRequest.BodyPublishers.ofByteArray(searchBody(templateName, query, from, size, projection, trace)));
+        if (trace != null) {
+            request.setHeader("X-Opaque-Id", trace.traceparent());
+        }
+        return request;
+    }
+
+    // elasticsearch only returns the fields of the projection from the source of the hits
+    private byte[] searchBody(String templateName, String query, int from, int size, Projection projection, Trace trace) {
+        if (from < 0 || size < 0) {
+            throw new IllegalArgumentException("from and size must not be negative");
+        }
+        // deep pages are expensive on the data nodes, as every shard has to collect from + size hits
+        if (from + size > MAX_RESULT_WINDOW) {
+            throw new IllegalArgumentException("from + size must not exceed " + MAX_RESULT_WINDOW + ", use a cursor to page deeper");
+        }
+        final long start = System.nanoTime();
+        final byte[] body = metrics.render(templateName, () -> renderer.renderBytes(templateName, Map.of("query", query, "from", from, "size", size, "projection", projection)));
+        record(trace, Trace.Stage.RENDER_REQUEST, start);
+        return body;
+    }
+
+    /**
+     * Sends the rendered searches as a single multi search request, the responses are in the same order
+     */
+    CompletableFuture<List<Parser.MultiSearchItem>> multiSearchAsync(List<byte[]> searches) {
+        final byte[] body = metrics.render("msearch", () -> renderer.multiSearch(searches));
+        final HttpRequest.Builder request = post(newSearchRequest(), body).setHeader("Content-Type", "application/x-ndjson");
+        return sendAsync(MULTI_SEARCH_PATH, request, pooledBody())
+                .thenApply(response -> {
+                    try (PooledOutput responseBody = response.body()) {
+                        if (response.statusCode() != 200) {
+                            throw error("Error sending multi search", response);
+                        }
+                        return metrics.parse("msearch", () -> {
+                            try (InputStream input = decompress(response, responseBody.toInputStream())) {
+                                return parser.toMultiSearchResponse(input, format(response));
+                            }
+                        });
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Returns the page of hits the cursor points to, sorted by score. The first page opens a point in time,
+     * so that all pages see the same data, and the following pages continue after the last hit of the
+     * previous page with search_after. The point in time is closed after the last page.
+     */
+    public SearchPage searchPage(String templateName, SearchCursor cursor) throws IOException, InterruptedException {
+        return limit(searchLimiter, () -> {
+            final String pitId = cursor.pitId() != null ? cursor.pitId() : openPointInTime();
+            final HttpResponse<PooledOutput> response = send(PIT_SEARCH_PATH, pitSearchRequest(templateName, cursor, pitId), pooledBody());
+            return toSearchPage(cursor, pitId, response);
+        });
+    }
+
+    public CompletableFuture<SearchPage> searchPageAsync(String templateName, SearchCursor cursor) {
+        return limitAsync(searchLimiter, () -> {
+            final CompletableFuture<String> pitId = cursor.pitId() != null ? CompletableFuture.completedFuture(cursor.pitId()) : openPointInTimeAsync();
+            return pitId.thenCompose(id -> sendAsync(PIT_SEARCH_PATH, pitSearchRequest(templateName, cursor, id), pooledBody())
+                    .thenApply(response -> {
+                        try {
+                            return toSearchPage(cursor, id, response);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+        });
+    }
+
+    private HttpRequest.Builder pitSearchRequest(String templateName, SearchCursor cursor, String pitId) {
+        if (cursor.size() < 1 || cursor.size() > MAX_RESULT_WINDOW) {
+            throw new IllegalArgumentException("size must be between 1 and " + MAX_RESULT_WINDOW);
+        }
+        final Map<String, Object> params = new HashMap<>();
+        params.put("query", cursor.query());
+        params.put("size", cursor.size());
+        params.put("pitId", pitId);
+        params.put("keepAlive", PIT_KEEP_ALIVE);
+        params.put("searchAfter", cursor.sortValues());
+        final byte[] body = metrics.render(templateName, () -> renderer.renderBytes(templateName, params));
+        return newSearchRequest().POST(HttpRequest.BodyPublishers.ofByteArray(body));
+    }
+
+    private SearchPage toSearchPage(SearchCursor cursor, String pitId, HttpResponse<PooledOutput> response) throws IOException {
+        // an expired point in time is reported as 404
+        final SearchResponse searchResponse = toSearchResponse(response, "Error searching point in time");
+        // elasticsearch may return a new id on every search, that has to be used for the next one
+        final String nextPitId = searchResponse.pitId() != null ? searchResponse.pitId() : pitId;
+        final List<SearchHit> hits = searchResponse.hits();
+        if (hits.size() < cursor.size()) {
+            closePointInTime(nextPitId);
+            return new SearchPage(searchResponse, null);
+        }
+        final SearchHit last = hits.get(hits.size() - 1);
+        return new SearchPage(searchResponse, new SearchCursor(cursor.query(), cursor.size(), nextPitId, last.sort()));
+    }
+
+    /**
+     * Runs one page of a sliced export of all persons of a point in time, sorted by shard and doc id.
+     * Every hit is handed over to the consumer while the response is read, returns the point in time
+     * id to use for the next page.
+     */
+    String searchSlice(String pitId, int slice, int slices, int size, List<Number> searchAfter, Parser.SearchHitConsumer consumer)
+            throws IOException, InterruptedException {
+        final Map<String, Object> params = new HashMap<>();
+        params.put("pitId", pitId);
+        params.put("keepAlive", PIT_KEEP_ALIVE);
+        params.put("size", size);
+        params.put("slice", slice);
+        params.put("slices", slices);
+        params.put("searchAfter", searchAfter);
+        final byte[] body = metrics.render("export", () -> renderer.renderBytes("export", params));
+        final HttpRequest.Builder request = newSearchRequest().POST(HttpRequest.BodyPublishers.ofByteArray(body));
+        final HttpResponse<InputStream> response = send(PIT_SEARCH_PATH, request, HttpResponse.BodyHandlers.ofInputStream());
+        // the error body is read for the reason, which also drains it so the connection can be reused
+        if (response.statusCode() != 200) {
+            try (InputStream input = decompress(response, response.body())) {
+                throw error("Error exporting slice " + slice, response, input.readAllBytes());
+            }
+        }
+        try (InputStream input = decompress(response, response.body());
+             JsonParser jsonParser = parser.createParser(input, format(response))) {
+            final String nextPitId = parser.parseSearchResponse(jsonParser, consumer).pitId();
+            // read up to the end of the body, so the connection can be reused
+            input.transferTo(OutputStream.nullOutputStream());
+            return nextPitId != null ? nextPitId : pitId;
+        }
+    }
+
+    String openPointInTime() throws IOException, InterruptedException {
+        final HttpResponse<byte[]> response = send(openPointInTimePath(), newRequest().POST(HttpRequest.BodyPublishers.noBody()),
+                HttpResponse.BodyHandlers.ofByteArray());
+        return toPitId(response);
+    }
+
+    private CompletableFuture<String> openPointInTimeAsync() {
+        return sendAsync(openPointInTimePath(), newRequest().POST(HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    try {
+                        return toPitId(response);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private static String openPointInTimePath() {
+        return PIT_PATH + "?keep_alive=" + PIT_KEEP_ALIVE;
+    }
+
+    private String toPitId(HttpResponse<byte[]> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw error("Error opening point in time", response);
+        }
+        return parser.toPitId(response.body());
+    }
+
+    // nobody waits for this, if it fails the point in time expires after its keep alive anyway
+    void closePointInTime(String pitId) {
+        final byte[] body = ("{\"id\":\"" + Renderer.escape(pitId) + "\"}").getBytes(Charsets.UTF_8);
+        sendAsync("/_pit", newRequest().method("DELETE", HttpRequest.BodyPublishers.ofByteArray(body)), HttpResponse.BodyHandlers.discarding());
     }
 
     public void index(Person person) throws IOException, InterruptedException {
+        limit(indexLimiter, () -> {
+            final HttpResponse<byte[]> response = send(INDEX_PATH, indexRequest(person), HttpResponse.BodyHandlers.ofByteArray());
+            checkIndexResponse(response);
+            return null;
+        });
+        notifyIndexed(List.of(person));
+    }
+
+    public CompletableFuture<Void> indexAsync(Person person) {
+        return limitAsync(indexLimiter, () -> sendAsync(INDEX_PATH, indexRequest(person), HttpResponse.BodyHandlers.ofByteArray())
+                .thenAccept(this::checkIndexResponse))
+                .thenRun(() -> notifyIndexed(List.of(person)));
+    }
+
+    private HttpRequest.Builder indexRequest(Person person) {
+        return post(newRequest(), metrics.render("person", () -> renderer.person(person)));
+    }
+
+    private void checkIndexResponse(HttpResponse<byte[]> response) {
+        if (response.statusCode() != 201) {
+            throw error("Error indexing new person", response);
+        }
+    }
+
+    public BulkResponse bulk(List<Person> persons) throws IOException, InterruptedException {
+        final byte[] body = metrics.render("bulk", () -> renderer.bulk(persons));
+        final BulkResponse response = limit(indexLimiter, () -> bulk(body));
+        // without an item per person, it is unknown which of the persons were indexed
+        if (response.items().size() != persons.size()) {
+            throw new IOException("Bulk response has [" + response.items().size() + "] items for [" + persons.size() + "] documents");
+        }
+        final List<Person> indexed = new ArrayList<>(persons.size());
+        for (int i = 0; i < persons.size(); i++) {
+            if (!response.items().get(i).failed()) {
+                indexed.add(persons.get(i));
+            }
+        }
+        notifyIndexed(indexed);
+        return response;
+    }
+
+    BulkResponse bulk(byte[] body) throws IOException, InterruptedException {
+        return toBulkResponse(send(BULK_PATH, bulkRequest(body), HttpResponse.BodyHandlers.ofByteArray()));
+    }
+
+    CompletableFuture<BulkResponse> bulkAsync(byte[] body) {
+        return sendAsync(BULK_PATH, bulkRequest(body), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    try {
+                        return toBulkResponse(response);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private HttpRequest.Builder bulkRequest(byte[] body) {
+        return post(accept(newRequest()), body)
+                .setHeader("Content-Type", "application/x-ndjson");
+    }
+
+    private BulkResponse toBulkResponse(HttpResponse<byte[]> response) throws IOException {
+        // a bulk request returns 200 even if single items failed, those are reported per item
+        if (response.statusCode() != 200) {
+            throw error("Error sending bulk request", response);
+        }
+        return metrics.parse("bulk", () -> parser.toBulkResponse(response.body(), format(response)));
+    }
+
+    /**
+     * Listeners are called after persons have been written to the index, i.e. to invalidate caches
+     */
+    public void addIndexListener(IndexListener listener) {
+        indexListeners.add(listener);
+    }
+
+    void notifyIndexed(List<Person> persons) {
+        if (!persons.isEmpty()) {
+            indexListeners.forEach(listener -> listener.onIndexed(persons));
+        }
+    }
+
+    @FunctionalInterface
+    public interface IndexListener {
+        void onIndexed(List<Person> persons);
+    }
+
+    // rejects the request if the limiter is at its limit, and adapts the limit to how the request went
+    private static <T> T limit(ConcurrencyLimiter limiter, Call<T> call) throws IOException, InterruptedException {
+        if (limiter == null) {
+            return call.call();
+        }
+        final ConcurrencyLimiter.Permit permit = limiter.acquire();
+        try {
+            final T result = call.call();
+            permit.onSuccess();
+            return result;
+        } catch (Throwable t) {
+            release(permit, t);
+            throw t;
+        }
+    }
+
+    private static <T> CompletableFuture<T> limitAsync(ConcurrencyLimiter limiter, Supplier<CompletableFuture<T>> call) {
+        if (limiter == null) {
+            return call.get();
+        }
+        final ConcurrencyLimiter.Permit permit;
+        try {
+            permit = limiter.acquire();
+        } catch (LimitExceededException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        final CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            release(permit, e);
+            throw e;
+        }
+        return future.whenComplete((result, throwable) -> {
+            if (throwable == null) {
+                permit.onSuccess();
+            } else {
+                release(permit, throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable);
+            }
+        });
+    }
+
+    private static void release(ConcurrencyLimiter.Permit permit, Throwable failure) {
+        if (isOverload(failure)) {
+            permit.onDropped();
+        } else {
+            permit.onIgnore();
+        }
+    }
+
+    // timeouts, unreachable nodes and overloaded or failing nodes hint at an overloaded cluster,
+    // invalid input, bad queries and version conflicts do not
+    private static boolean isOverload(Throwable failure) {
+        final Throwable cause = failure instanceof UncheckedIOException ? failure.getCause() : failure;
+        if (cause instanceof IOException) {
+            return true;
+        }
+        if (cause instanceof ElasticsearchException) {
+            final ElasticsearchException e = (ElasticsearchException) cause;
+            return e.isRetryable() || e.status() >= 500;
+        }
+        return false;
+    }
+
+    // the uri is set per node when the request is sent
+    private HttpRequest.Builder newRequest() {
         final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
-                .POST(HttpRequest.BodyPublishers.ofString(toJson(person)))
-                .uri(URI.create(endpoint + "/" + INDEX + "/_doc/"))
-                .timeout(Duration.ofSeconds(10));
+                .timeout(requestTimeout);
         headers.forEach((key, value) -> requestBuilder.setHeader(key, value));
+        return requestBuilder;
+    }
 
-        final HttpResponse<byte[]> response = client.send(requestBuilder.build(), HttpResponse.BodyHandlers.ofByteArray());
-        // This is really bad error handling, you need to bubble the Elasticsearch client side exception up as well!
-        if (response.statusCode() != 201) {
-            throw new RuntimeException("Error indexing new person: " + response.statusCode());
+    // search responses can be large, so they are the ones worth compressing
+    private HttpRequest.Builder newSearchRequest() {
+        final HttpRequest.Builder requestBuilder = accept(newRequest());
+        if (compressResponses) {
+            requestBuilder.setHeader("Accept-Encoding", "gzip");
+        }
+        return requestBuilder;
+    }
+
+    // request bodies stay JSON, only the response is returned in the binary format
+    private HttpRequest.Builder accept(HttpRequest.Builder request) {
+        if (responseFormat != ResponseFormat.JSON) {
+            request.setHeader("Accept", responseFormat.mediaType());
+        }
+        return request;
+    }
+
+    // elasticsearch decompresses request bodies based on the Content-Encoding header
+    private HttpRequest.Builder post(HttpRequest.Builder request, byte[] body) {
+        if (compressRequests && body.length >= MIN_COMPRESSION_SIZE) {
+            return request.setHeader("Content-Encoding", "gzip").POST(HttpRequest.BodyPublishers.ofByteArray(gzip(body)));
+        }
+        return request.POST(HttpRequest.BodyPublishers.ofByteArray(body));
+    }
+
+    private static byte[] gzip(byte[] data) {
+        try (PooledOutput output = new PooledOutput(data.length / 4);
+             GZIPOutputStream out = new GZIPOutputStream(output, 8192) {
+                 {
+                     // compressing fast matters more than compressing well, as the data is sent right away
+                     def.setLevel(Deflater.BEST_SPEED);
+                 }
+             }) {
+            out.write(data);
+            out.finish();
+            return output.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // the response is decompressed while it is parsed, so the uncompressed body is never held in memory
+    private SearchResponse toSearchResponse(HttpResponse<PooledOutput> response, String errorMessage) throws IOException {
+        return toSearchResponse(response, errorMessage, null);
+    }
+
+    private SearchResponse toSearchResponse(HttpResponse<PooledOutput> response, String errorMessage, Trace trace) throws IOException {
+        try (PooledOutput body = response.body()) {
+            if (response.statusCode() != 200) {
+                throw error(errorMessage, response);
+            }
+            final long start = System.nanoTime();
+            final SearchResponse searchResponse = metrics.parse("search", () -> parseSearchResponse(response, body));
+            record(trace, Trace.Stage.PARSE_RESPONSE, start);
+            return searchResponse;
+        }
+    }
+
+    private static void record(Trace trace, Trace.Stage stage, long start) {
+        if (trace != null) {
+            trace.record(stage, start);
+        }
+    }
+
+    private SearchResponse parseSearchResponse(HttpResponse<?> response, PooledOutput body) throws IOException {
+        if (isCompressed(response)) {
+            try (InputStream input = new GZIPInputStream(body.toInputStream(), 8192)) {
+                return parser.toSearchResponse(input, format(response));
+            }
+        }
+        return parser.toSearchResponse(body.buffer, 0, body.size(), format(response));
+    }
+
+    /**
+     * Collects the body in a pooled buffer, instead of joining the received chunks into a new array.
+     * Whoever handles the response has to close its body.
+     */
+    private static HttpResponse.BodyHandler<PooledOutput> pooledBody() {
+        return info -> new PooledBodySubscriber(info.headers().firstValueAsLong("Content-Length").orElse(0));
+    }
+
+    private static final class PooledBodySubscriber implements HttpResponse.BodySubscriber<PooledOutput> {
+
+        private final CompletableFuture<PooledOutput> body = new CompletableFuture<>();
+        private final PooledOutput output;
+
+        private PooledBodySubscriber(long contentLength) {
+            this.output = new PooledOutput((int) Math.min(contentLength, Integer.MAX_VALUE - 8));
+        }
+
+        @Override
+        public CompletionStage<PooledOutput> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            for (ByteBuffer buffer : buffers) {
+                output.write(buffer);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            output.close();
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            body.complete(output);
+        }
+    }
+
+    // the type and reason of the error are part of the message, if the body has been read already
+    private ElasticsearchException error(String message, HttpResponse<?> response) {
+        final byte[] body = response.body() instanceof PooledOutput ? ((PooledOutput) response.body()).toByteArray()
+                : response.body() instanceof byte[] ? (byte[]) response.body() : null;
+        return error(message, response, body != null && !isCompressed(response) ? body : null);
+    }
+
+    // the body must already be decompressed
+    private ElasticsearchException error(String message, HttpResponse<?> response, byte[] body) {
+        final String reason = body != null ? parser.toErrorReason(body, format(response)) : null;
+        return new ElasticsearchException(message + ": " + response.statusCode() + (reason != null ? " (" + reason + ")" : ""), response.statusCode());
+    }
+
+    private static InputStream decompress(HttpResponse<?> response, InputStream input) throws IOException {
+        return isCompressed(response) ? new GZIPInputStream(input, 8192) : input;
+    }
+
+    // the format elasticsearch actually answered in, errors of the HTTP layer are always JSON
+    private static ResponseFormat format(HttpResponse<?> response) {
+        return ResponseFormat.fromContentType(response.headers().firstValue("Content-Type").orElse(null));
+    }
+
+    private static boolean isCompressed(HttpResponse<?> response) {
+        return response.headers().firstValue("Content-Encoding").map("gzip"::equalsIgnoreCase).orElse(false);
+    }
+
+    /**
+     * Sends the request, retrying with jittered exponential backoff if elasticsearch is overloaded or could
+     * not be reached. Requests that are not idempotent are only retried if they cannot have been executed,
+     * i.e. elasticsearch answered 429 or 503 or no node could be connected to.
+     */
+    private <T> HttpResponse<T> send(String path, HttpRequest.Builder request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        final CircuitBreaker breaker = circuitBreaker(path);
+        for (int retry = 0; ; retry++) {
+            if (breaker != null) {
+                breaker.acquire();
+            }
+            final HttpResponse<T> response;
+            try {
+                response = sendToNodes(path, request, handler);
+            } catch (IOException e) {
+                onFailure(breaker);
+                if (retry < maxRetries && isRetryable(path, e)) {
+                    backoff(path, retry);
+                    continue;
+                }
+                throw e;
+            } catch (Throwable t) {
+                onIgnore(breaker);
+                throw t;
+            }
+            onResponse(breaker, response);
+            if (retry < maxRetries && isRetryable(path, response.statusCode())) {
+                discard(response);
+                backoff(path, retry);
+                continue;
+            }
+            return response;
+        }
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(String path, HttpRequest.Builder request, HttpResponse.BodyHandler<T> handler) {
+        return sendAsync(path, request, handler, 0);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendAsync(String path, HttpRequest.Builder request, HttpResponse.BodyHandler<T> handler,
+                                                             int retry) {
+        final CircuitBreaker breaker = circuitBreaker(path);
+        if (breaker != null) {
+            try {
+                breaker.acquire();
+            } catch (CircuitOpenException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return sendToNodesAsync(path, request, handler, nodePool.size())
+                .handle((response, throwable) -> {
+                    if (throwable != null) {
+                        final Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                        if (!(cause instanceof IOException)) {
+                            onIgnore(breaker);
+                            return CompletableFuture.<HttpResponse<T>>failedFuture(cause);
+                        }
+                        onFailure(breaker);
+                        if (retry < maxRetries && isRetryable(path, (IOException) cause)) {
+                            return retryAsync(path, request, handler, retry);
+                        }
+                        return CompletableFuture.<HttpResponse<T>>failedFuture(cause);
+                    }
+                    onResponse(breaker, response);
+                    if (retry < maxRetries && isRetryable(path, response.statusCode())) {
+                        discard(response);
+                        return retryAsync(path, request, handler, retry);
+                    }
+                    return CompletableFuture.completedFuture(response);
+                })
+                .thenCompose(future -> future);
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> retryAsync(String path, HttpRequest.Builder request, HttpResponse.BodyHandler<T> handler,
+                                                              int retry) {
+        metrics.retry(path);
+        final Executor delayed = CompletableFuture.delayedExecutor(backoffNanos(retry), TimeUnit.NANOSECONDS);
+        return CompletableFuture.supplyAsync(() -> sendAsync(path, request, handler, retry + 1), delayed).thenCompose(future -> future);
+    }
+
+    /**
+     * Sends the search to another node as well, if the first one takes longer than most searches do, and
+     * returns whichever response arrives first. The delay is a high percentile of the latency of recent
+     * searches, so only the slowest few percent of searches cause an additional request.
+     */
+    private CompletableFuture<HttpResponse<PooledOutput>> sendHedged(String path, HttpRequest.Builder request) {
+        final long percentile = searchLatencies.percentile();
+        final long delay = percentile < 0 ? -1 : Math.max(percentile, MIN_HEDGE_DELAY_NANOS);
+        final long start = System.nanoTime();
+        // the builder is not thread safe, every request in flight needs its own
+        final CompletableFuture<HttpResponse<PooledOutput>> first = sendAsync(path, request.copy(), pooledBody());
+        first.thenRun(() -> searchLatencies.record(System.nanoTime() - start));
+        if (delay < 0) {
+            return first;
+        }
+
+        final CompletableFuture<HttpResponse<PooledOutput>> result = new CompletableFuture<>();
+        // the number of requests that may still complete the result
+        final AtomicInteger pending = new AtomicInteger(1);
+        // decides the winner before the result completes, so the metrics are up to date for the caller
+        final AtomicBoolean answered = new AtomicBoolean();
+        first.whenComplete((response, throwable) -> {
+            if (throwable == null) {
+                if (answered.compareAndSet(false, true)) {
+                    result.complete(response);
+                } else {
+                    discard(response);
+                }
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(throwable);
+            }
+        });
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+            pending.incrementAndGet();
+            if (result.isDone()) {
+                return;
+            }
+            metrics.hedge(path);
+            sendAsync(path, request.copy(), pooledBody()).whenComplete((response, throwable) -> {
+                if (throwable == null) {
+                    if (answered.compareAndSet(false, true)) {
+                        metrics.hedgeWon(path);
+                        result.complete(response);
+                    } else {
+                        discard(response);
+                    }
+                } else if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(throwable);
+                }
+            });
+        });
+        return result;
+    }
+
+    // the sync variant of a hedged search, which needs to wait for two requests at the same time
+    private HttpResponse<PooledOutput> sendHedgedAndWait(String path, HttpRequest.Builder request) throws IOException, InterruptedException {
+        return await(sendHedged(path, request));
+    }
+
+    // waits for the future, rethrowing the exception it failed with
+    private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private CircuitBreaker circuitBreaker(String path) {
+        if (circuitBreakerOpenDuration == null) {
+            return null;
+        }
+        return circuitBreakers.computeIfAbsent(ClientMetrics.endpoint(path), endpoint -> {
+            final CircuitBreaker breaker = new CircuitBreaker(endpoint, circuitBreakerFailureRate, circuitBreakerOpenDuration);
+            metrics.circuitBreaker(breaker);
+            return breaker;
+        });
+    }
+
+    // overloaded nodes and server errors count as failures, client errors like 404 do not
+    private static void onResponse(CircuitBreaker breaker, HttpResponse<?> response) {
+        if (breaker == null) {
+            return;
+        }
+        if (response.statusCode() == 429 || response.statusCode() >= 500) {
+            breaker.onFailure();
+        } else {
+            breaker.onSuccess();
+        }
+    }
+
+    private static void onFailure(CircuitBreaker breaker) {
+        if (breaker != null) {
+            breaker.onFailure();
+        }
+    }
+
+    private static void onIgnore(CircuitBreaker breaker) {
+        if (breaker != null) {
+            breaker.onIgnore();
+        }
+    }
+
+    // index requests create a new document with a generated id each time they are executed
+    // every retry of opening a point in time would open another one, which is kept until it expires
+    private static boolean isIdempotent(String path) {
+        return !path.startsWith(INDEX_PATH) && !path.equals(BULK_PATH) && !path.startsWith(PIT_PATH);
+    }
+
+    private static boolean isRetryable(String path, IOException e) {
+        // the request timeout is the time budget of the caller, which is used up already
+        if (isRequestTimeout(e)) {
+            return false;
+        }
+        // a connection reset may have happened after the request has been executed
+        return isConnectFailure(e) || isIdempotent(path);
+    }
+
+    private static boolean isRetryable(String path, int status) {
+        // a proxy in front of elasticsearch may answer 502 and 504 after forwarding the request
+        return status == 429 || status == 503 || (isIdempotent(path) && (status == 502 || status == 504));
+    }
+
+    private void backoff(String path, int retry) throws InterruptedException {
+        metrics.retry(path);
+        TimeUnit.NANOSECONDS.sleep(backoffNanos(retry));
+    }
+
+    // full jitter, so that clients backing off at the same time do not retry at the same time
+    private long backoffNanos(int retry) {
+        final long max = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(retry, 30));
+        return ThreadLocalRandom.current().nextLong(max + 1);
+    }
+
+    // the body of a streamed response has to be closed, so that the connection is released
+    private static void discard(HttpResponse<?> response) {
+        if (response.body() instanceof PooledOutput) {
+            ((PooledOutput) response.body()).close();
+        } else if (response.body() instanceof InputStream) {
+            try {
+                ((InputStream) response.body()).close();
+            } catch (IOException e) {
+                // the connection is closed anyway
+            }
+        }
+    }
+
+    /**
+     * Sends the request to the next node of the pool. If the connection to a node cannot be established,
+     * the request has not been sent yet, so it is safe to try the next node, even for writes.
+     */
+    private <T> HttpResponse<T> sendToNodes(String path, HttpRequest.Builder request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < nodePool.size(); attempt++) {
+            final NodePool.Node node = nodePool.select();
+            node.acquire();
+            final Timer.Sample sample = metrics.startRequest();
+            try {
+                final HttpResponse<T> response = client.send(request.uri(node.uri(path)).build(), handler);
+                metrics.onResponse(sample, path, response);
+                nodePool.onSuccess(node);
+                return response;
+            } catch (IOException e) {
+                metrics.onFailure(sample, path);
+                if (!isRequestTimeout(e)) {
+                    nodePool.onFailure(node, e);
+                }
+                if (!isConnectFailure(e)) {
+                    throw e;
+                }
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            } finally {
+                node.release();
+            }
         }
+        throw failure;
     }
 
-    private String toJson(Person person) throws IOException {
-        // unfortunately we cannot use records in JTE yet, because it is a preview feature
-        // so we have serialize each getter into its own field
-        return renderer.render("person", Map.of("firstName", person.firstName(), "lastName", person.lastName(), "employer", person.employer()));
-        // if the above is fixed, or records are not a preview feature anymore, we can go with this instead and fix the template
-        //return renderer.render("person", Map.of("person", person));
+    private <T> CompletableFuture<HttpResponse<T>> sendToNodesAsync(String path, HttpRequest.Builder request, HttpResponse.BodyHandler<T> handler,
+                                                                    int attempts) {
+        final NodePool.Node node = nodePool.select();
+        node.acquire();
+        final Timer.Sample sample = metrics.startRequest();
+        return client.sendAsync(request.uri(node.uri(path)).build(), handler)
+                .handle((response, throwable) -> {
+                    node.release();
+                    if (throwable == null) {
+                        metrics.onResponse(sample, path, response);
+                        nodePool.onSuccess(node);
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    final Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                    metrics.onFailure(sample, path);
+                    if (cause instanceof IOException) {
+                        if (!isRequestTimeout(cause)) {
+                            nodePool.onFailure(node, cause);
+                        }
+                        if (isConnectFailure(cause) && attempts > 1) {
+                            return sendToNodesAsync(path, request, handler, attempts - 1);
+                        }
+                    }
+                    return CompletableFuture.<HttpResponse<T>>failedFuture(cause);
+                })
+                .thenCompose(future -> future);
+    }
+
+    private static boolean isConnectFailure(Throwable e) {
+        return e instanceof ConnectException || e instanceof HttpConnectTimeoutException;
+    }
+
+    // a single slow query, the node itself may be fine, so it stays in rotation
+    private static boolean isRequestTimeout(Throwable e) {
+        return e instanceof HttpTimeoutException && !(e instanceof HttpConnectTimeoutException);
+    }
+
+    private boolean isHealthy(NodePool.Node node) {
+        final HttpRequest request = newRequest().uri(node.uri("/")).timeout(Duration.ofSeconds(2)).GET().build();
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // the http addresses of all nodes of the cluster, using the same scheme as the configured nodes
+    private List<String> sniff() throws IOException, InterruptedException {
+        final HttpResponse<byte[]> response = send("/_nodes/http", newRequest().GET(), HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw error("Error sniffing nodes", response);
+        }
+        final String endpoint = nodePool.nodes().get(0).endpoint();
+        final String scheme = endpoint.substring(0, endpoint.indexOf("://") + 3);
+        final List<String> endpoints = new ArrayList<>();
+        for (String address : parser.toPublishAddresses(response.body())) {
+            endpoints.add(scheme + address);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Stops the background health checks and sniffing of nodes, as well as the batching of searches
+     */
+    @Override
+    public void close() {
+        if (searchBatcher != null) {
+            searchBatcher.close();
+        }
+        nodePool.close();
     }
 
     public static Builder newBuilder(Renderer renderer, Parser parser) {
@@ -78,7 +1125,33 @@ public class ElasticsearchClient {
     public static class Builder {
 
         private String authorizationHeader;
-        private String uri;
+        private List<String> uris;
+        private Executor executor;
+        private boolean coalesceSearches = false;
+        private NodeSelector nodeSelector = NodeSelector.ROUND_ROBIN;
+        private Duration healthCheckInterval = Duration.ofSeconds(5);
+        private Duration sniffInterval;
+        private Duration initialDeadNodeBackoff = Duration.ofSeconds(1);
+        private Duration maxDeadNodeBackoff = Duration.ofMinutes(5);
+        // elasticsearch only speaks HTTP/1.1, this prevents upgrade attempts on every new connection
+        private HttpClient.Version httpVersion = HttpClient.Version.HTTP_1_1;
+        private Duration connectTimeout = Duration.ofSeconds(5);
+        private Duration requestTimeout = Duration.ofSeconds(10);
+        private boolean compressRequests = false;
+        private boolean compressResponses = false;
+        private ResponseFormat responseFormat = ResponseFormat.JSON;
+        // the global registry drops all meters, unless a registry has been added to it
+        private MeterRegistry meterRegistry = Metrics.globalRegistry;
+        private ConcurrencyLimiter searchLimiter;
+        private ConcurrencyLimiter indexLimiter;
+        private int maxRetries = 0;
+        private Duration initialRetryBackoff = Duration.ofMillis(50);
+        private Duration maxRetryBackoff = Duration.ofSeconds(2);
+        private boolean hedgeSearches = false;
+        private Duration searchBatchWindow = Duration.ZERO;
+        private int searchBatchSize = 0;
+        private double circuitBreakerFailureRate;
+        private Duration circuitBreakerOpenDuration;
         private final Renderer renderer;
         private final Parser parser;
 
@@ -122,12 +1195,134 @@ public class ElasticsearchClient {
             }
 
             String url = decodedParts[1]  + "." + domain;
-            this.uri = "https://" + url + ":" + port;
+            this.uris = List.of("https://" + url + ":" + port);
             return this;
         }
 
         public Builder withUri(String uri) {
-            this.uri = uri;
+            this.uris = List.of(uri);
+            return this;
+        }
+
+        // requests are spread across all nodes, and nodes that cannot be reached are skipped
+        public Builder withUris(List<String> uris) {
+            this.uris = List.copyOf(uris);
+            return this;
+        }
+
+        public Builder withNodeSelector(NodeSelector nodeSelector) {
+            this.nodeSelector = nodeSelector;
+            return this;
+        }
+
+        // interval of pinging the nodes in the background, only done with more than one node or sniffing
+        public Builder withHealthCheckInterval(Duration healthCheckInterval) {
+            this.healthCheckInterval = healthCheckInterval;
+            return this;
+        }
+
+        // a dead node is skipped for the initial backoff, doubled with every consecutive failure up to the max backoff
+        public Builder withDeadNodeBackoff(Duration initialBackoff, Duration maxBackoff) {
+            this.initialDeadNodeBackoff = initialBackoff;
+            this.maxDeadNodeBackoff = maxBackoff;
+            return this;
+        }
+
+        // regularly replaces the nodes with all http enabled nodes of the cluster from the nodes info API
+        public Builder withSniffing(Duration sniffInterval) {
+            this.sniffInterval = sniffInterval;
+            return this;
+        }
+
+        // executor of the underlying HTTP client, that runs the response handling of async requests
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        // HTTP/2 only makes sense with a proxy in front of elasticsearch, that supports it
+        public Builder withHttpVersion(HttpClient.Version httpVersion) {
+            this.httpVersion = httpVersion;
+            return this;
+        }
+
+        public Builder withConnectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder withRequestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        // gzip compresses index and bulk request bodies
+        public Builder withRequestCompression(boolean compressRequests) {
+            this.compressRequests = compressRequests;
+            return this;
+        }
+
+        // asks for gzip compressed search responses, requires http.compression to be enabled in elasticsearch
+        public Builder withResponseCompression(boolean compressResponses) {
+            this.compressResponses = compressResponses;
+            return this;
+        }
+
+        // asks for search and bulk responses in smile or cbor, which are smaller and faster to parse than JSON
+        public Builder withResponseFormat(ResponseFormat responseFormat) {
+            this.responseFormat = responseFormat;
+            return this;
+        }
+
+        // concurrent searches with the same template and query share a single request to elasticsearch
+        public Builder withSearchCoalescing(boolean coalesceSearches) {
+            this.coalesceSearches = coalesceSearches;
+            return this;
+        }
+
+        // timings of rendering, sending and parsing requests, status codes, response sizes and requests in flight
+        public Builder withMeterRegistry(MeterRegistry meterRegistry) {
+            this.meterRegistry = meterRegistry;
+            return this;
+        }
+
+        // rejects searches above the adaptive limit of requests in flight with a LimitExceededException
+        public Builder withSearchLimiter(ConcurrencyLimiter searchLimiter) {
+            this.searchLimiter = searchLimiter;
+            return this;
+        }
+
+        // same for index and bulk requests, the bulk requests of the bulk indexer and importer are not limited
+        public Builder withIndexLimiter(ConcurrencyLimiter indexLimiter) {
+            this.indexLimiter = indexLimiter;
+            return this;
+        }
+
+        // retries on 429 and 503 responses and connection failures, searches are also retried on 502, 504 and connection resets
+        public Builder withRetries(int maxRetries, Duration initialBackoff, Duration maxBackoff) {
+            this.maxRetries = maxRetries;
+            this.initialRetryBackoff = initialBackoff;
+            this.maxRetryBackoff = maxBackoff;
+            return this;
+        }
+
+        // sends a slow search to a second node as well, after the 95th percentile of recent search latencies
+        public Builder withSearchHedging(boolean hedgeSearches) {
+            this.hedgeSearches = hedgeSearches;
+            return this;
+        }
+
+        // concurrent searches are sent as one multi search, once max batch size searches are waiting or the first waited for the window
+        public Builder withSearchBatching(Duration window, int maxBatchSize) {
+            this.searchBatchWindow = window;
+            this.searchBatchSize = maxBatchSize;
+            return this;
+        }
+
+        // rejects all requests to an endpoint for the open duration, once the given rate of its last requests failed
+        public Builder withCircuitBreaker(double failureRate, Duration openDuration) {
+            this.circuitBreakerFailureRate = failureRate;
+            this.circuitBreakerOpenDuration = openDuration;
             return this;
         }
 
@@ -151,7 +1346,8 @@ public class ElasticsearchClient {
             if (cloudId != null) {
                 withCloudId(cloudId);
             } else if (endpoint != null) {
-                withUri(endpoint);
+                // a comma separated list of nodes
+                withUris(List.of(endpoint.split("\\s*,\\s*")));
             } else {
                 throw new RuntimeException("Missing Elasticsearch endpoint. Either configure ELASTICSEARCH_CLOUD_ID or ELASTICSEARCH_URL");
             }
@@ -171,7 +1367,15 @@ public class ElasticsearchClient {
 
         public ElasticsearchClient build() {
             Map<String, String> headers = authorizationHeader != null ? Map.of("Authorization", authorizationHeader) : Collections.emptyMap();
-            return new ElasticsearchClient(renderer, parser, uri, headers);
+            final NodePool nodePool = new NodePool(uris, nodeSelector, initialDeadNodeBackoff, maxDeadNodeBackoff);
+            final ElasticsearchClient client = new ElasticsearchClient(this, nodePool, headers);
+            if (healthCheckInterval != null && (uris.size() > 1 || sniffInterval != null)) {
+                nodePool.scheduleHealthChecks(healthCheckInterval, client::isHealthy);
+            }
+            if (sniffInterval != null) {
+                nodePool.scheduleSniffing(sniffInterval, client::sniff);
+            }
+            return client;
         }
     }
 }
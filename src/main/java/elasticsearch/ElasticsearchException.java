@@ -0,0 +1,25 @@
+package elasticsearch;
+
+/**
+ * Elasticsearch answered a request with an error status
+ */
+public class ElasticsearchException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public ElasticsearchException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    // elasticsearch is overloaded, the same request may succeed later
+    public boolean isRetryable() {
+        return status == 429 || status == 503;
+    }
+}
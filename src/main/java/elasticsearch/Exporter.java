@@ -0,0 +1,206 @@
+package elasticsearch;
+
+import model.Person;
+import model.SearchHit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes all persons of the index as newline delimited JSON. The index is read from a point in time,
+ * split into slices that are paged through in parallel using search_after. Hits are handed over from
+ * the slices to the writing thread through a bounded queue, so a slow client slows down reading from
+ * Elasticsearch instead of buffering persons in memory.
+ */
+public class Exporter {
+
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ElasticsearchClient client;
+    private final Renderer renderer;
+    private final int slices;
+    private final int pageSize;
+    private final int queueCapacity;
+    private final Executor executor;
+
+    private Exporter(ElasticsearchClient client, Renderer renderer, int slices, int pageSize, int queueCapacity, Executor executor) {
+        this.client = client;
+        this.renderer = renderer;
+        this.slices = slices;
+        this.pageSize = pageSize;
+        this.queueCapacity = queueCapacity;
+        this.executor = executor;
+    }
+
+    @FunctionalInterface
+    public interface PersonConsumer {
+        void accept(Person person) throws IOException;
+    }
+
+    /**
+     * Writes every person as single line to the output stream and returns the number of persons written
+     */
+    public long export(OutputStream out) throws IOException, InterruptedException {
+        return export(person -> {
+            out.write(renderer.person(person));
+            out.write('\n');
+        });
+    }
+
+    /**
+     * Hands over every person to the consumer, one at a time on the calling thread, and returns the number
+     * of persons read
+     */
+    public long export(PersonConsumer consumer) throws IOException, InterruptedException {
+        final Export export = new Export(client.openPointInTime());
+        for (int i = 0; i < slices; i++) {
+            final int slice = i;
+            executor.execute(() -> export.run(slice));
+        }
+
+        long count = 0;
+        try {
+            while (true) {
+                final Person person = export.queue.poll(POLL_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+                if (person != null) {
+                    consumer.accept(person);
+                    count++;
+                } else if (export.failure.get() != null || (export.finished.getCount() == 0 && export.queue.isEmpty())) {
+                    break;
+                }
+            }
+        } finally {
+            // stops all slices, if the client went away
+            export.cancelled = true;
+            client.closePointInTime(export.pitId);
+        }
+
+        final Throwable failure = export.failure.get();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new RuntimeException("Error exporting persons", failure);
+        }
+        return count;
+    }
+
+    // state of a single export, shared by the writing thread and all slices
+    private final class Export {
+
+        private final BlockingQueue<Person> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final CountDownLatch finished = new CountDownLatch(slices);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private volatile boolean cancelled = false;
+        // the id of a point in time may change with every search, the latest one is used to close it
+        private volatile String pitId;
+
+        private Export(String pitId) {
+            this.pitId = pitId;
+        }
+
+        private void run(int slice) {
+            try {
+                String currentPitId = pitId;
+                List<Number> searchAfter = null;
+                while (!cancelled) {
+                    final PageConsumer page = new PageConsumer();
+                    currentPitId = client.searchSlice(currentPitId, slice, slices, pageSize, searchAfter, page);
+                    pitId = currentPitId;
+                    if (page.count < pageSize) {
+                        return;
+                    }
+                    searchAfter = page.lastSort;
+                }
+            } catch (CancellationException e) {
+                // the writing thread stopped, nobody is interested in the remaining persons
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        private final class PageConsumer implements Parser.SearchHitConsumer {
+
+            private int count = 0;
+            private List<Number> lastSort;
+
+            @Override
+            public void accept(SearchHit hit) throws IOException {
+                count++;
+                lastSort = hit.sort();
+                try {
+                    // wait in short intervals to notice a cancelled export
+                    while (!queue.offer(hit.person(), POLL_INTERVAL_NANOS, TimeUnit.NANOSECONDS)) {
+                        if (cancelled) {
+                            throw new CancellationException();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException();
+                }
+            }
+        }
+    }
+
+    public static Builder newBuilder(ElasticsearchClient client, Renderer renderer) {
+        return new Builder(client, renderer);
+    }
+
+    public static class Builder {
+
+        private final ElasticsearchClient client;
+        private final Renderer renderer;
+        private int slices = 4;
+        private int pageSize = 1_000;
+        private int queueCapacity = 1_000;
+        private Executor executor = runnable -> {
+            final Thread thread = new Thread(runnable, "export-slice");
+            thread.setDaemon(true);
+            thread.start();
+        };
+
+        public Builder(ElasticsearchClient client, Renderer renderer) {
+            this.client = client;
+            this.renderer = renderer;
+        }
+
+        // number of slices read in parallel, should not exceed the number of shards of the index
+        public Builder withSlices(int slices) {
+            this.slices = slices;
+            return this;
+        }
+
+        public Builder withPageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        // number of persons read from elasticsearch, but not yet written to the client
+        public Builder withQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        // runs the slices, by default every slice gets its own thread
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Exporter build() {
+            return new Exporter(client, renderer, slices, pageSize, queueCapacity, executor);
+        }
+    }
+}
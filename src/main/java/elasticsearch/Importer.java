@@ -0,0 +1,196 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import model.BulkItem;
+import model.BulkResponse;
+import model.ImportSummary;
+import model.Person;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Imports a stream of persons, either as newline delimited JSON or as CSV. The input is parsed while
+ * it is read and sent to Elasticsearch in bulk requests, with a limited number of bulk requests in
+ * flight. Once that limit is reached, reading the input waits for a bulk request to finish, so the
+ * uploading client is slowed down instead of buffering the input.
+ */
+public class Importer {
+
+    private static final Logger logger = LoggerFactory.getLogger(Importer.class);
+
+    public enum Format {
+        NDJSON,
+        CSV
+    }
+
+    private final ElasticsearchClient client;
+    private final Renderer renderer;
+    private final Parser parser;
+    private final int maxActions;
+    private final long maxBytes;
+    private final int concurrentRequests;
+
+    private Importer(ElasticsearchClient client, Renderer renderer, Parser parser, int maxActions, long maxBytes, int concurrentRequests) {
+        this.client = client;
+        this.renderer = renderer;
+        this.parser = parser;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.concurrentRequests = concurrentRequests;
+    }
+
+    /**
+     * Indexes all persons of the input and returns once all bulk requests have finished. Invalid input
+     * stops the import with an IllegalArgumentException, persons before it have been indexed already.
+     */
+    public ImportSummary importPersons(InputStream input, Format format) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final Import state = new Import();
+        try {
+            if (format == Format.CSV) {
+                final PersonCsvReader reader = new PersonCsvReader(new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8)));
+                for (Person person = reader.next(); person != null; person = reader.next()) {
+                    state.add(person);
+                }
+            } else {
+                try (JsonParser jsonParser = parser.createParser(input)) {
+                    for (Person person = parser.nextPerson(jsonParser); person != null; person = parser.nextPerson(jsonParser)) {
+                        state.add(person);
+                    }
+                } catch (JsonProcessingException e) {
+                    throw new IllegalArgumentException("Invalid NDJSON after " + state.read + " persons: " + e.getOriginalMessage(), e);
+                }
+            }
+            state.flush();
+        } finally {
+            // also on invalid input, the persons sent so far are part of the summary
+            state.awaitAll();
+        }
+        final long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new ImportSummary(state.indexed.sum(), state.failed.sum(), tookMillis);
+    }
+
+    // state of a single import, bulk requests complete on the threads of the http client
+    private final class Import {
+
+        private final Semaphore inFlight = new Semaphore(concurrentRequests);
+        private final LongAdder indexed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private List<Person> persons = new ArrayList<>();
+        private long read = 0;
+
+        private void add(Person person) throws InterruptedException {
+            body.writeBytes(renderer.bulkIndexAction(person));
+            persons.add(person);
+            read++;
+            if (persons.size() >= maxActions || body.size() >= maxBytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws InterruptedException {
+            if (persons.isEmpty()) {
+                return;
+            }
+            final List<Person> batch = persons;
+            final byte[] data = body.toByteArray();
+            persons = new ArrayList<>();
+            body = new ByteArrayOutputStream();
+
+            inFlight.acquire();
+            client.bulkAsync(data).whenComplete((response, throwable) -> {
+                try {
+                    if (throwable != null) {
+                        logger.error("Error sending bulk request with [{}] documents", batch.size(), throwable);
+                        failed.add(batch.size());
+                    } else {
+                        onResponse(batch, response);
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+
+        private void onResponse(List<Person> batch, BulkResponse response) {
+            // without an item per person, it is unknown which of the persons were indexed
+            if (response.items().size() != batch.size()) {
+                logger.error("Bulk response has [{}] items for [{}] documents, counting all of them as failed", response.items().size(), batch.size());
+                failed.add(batch.size());
+                return;
+            }
+            // items in the response are in the same order than in the request
+            final List<Person> indexedPersons = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                final BulkItem item = response.items().get(i);
+                if (item.failed()) {
+                    logger.warn("Error importing document, status [{}]: {}", item.status(), item.error());
+                    failed.increment();
+                } else {
+                    indexedPersons.add(batch.get(i));
+                }
+            }
+            indexed.add(indexedPersons.size());
+            client.notifyIndexed(indexedPersons);
+        }
+
+        private void awaitAll() throws InterruptedException {
+            inFlight.acquire(concurrentRequests);
+            inFlight.release(concurrentRequests);
+        }
+    }
+
+    public static Builder newBuilder(ElasticsearchClient client, Renderer renderer, Parser parser) {
+        return new Builder(client, renderer, parser);
+    }
+
+    public static class Builder {
+
+        private final ElasticsearchClient client;
+        private final Renderer renderer;
+        private final Parser parser;
+        private int maxActions = 1_000;
+        private long maxBytes = 5 * 1024 * 1024;
+        private int concurrentRequests = 4;
+
+        public Builder(ElasticsearchClient client, Renderer renderer, Parser parser) {
+            this.client = client;
+            this.renderer = renderer;
+            this.parser = parser;
+        }
+
+        public Builder withMaxActions(int maxActions) {
+            this.maxActions = maxActions;
+            return this;
+        }
+
+        public Builder withMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        // number of bulk requests sent to elasticsearch at the same time by a single import
+        public Builder withConcurrentRequests(int concurrentRequests) {
+            this.concurrentRequests = concurrentRequests;
+            return this;
+        }
+
+        public Importer build() {
+            return new Importer(client, renderer, parser, maxActions, maxBytes, concurrentRequests);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package elasticsearch;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the most recent requests. A percentile of them is recalculated every few samples,
+ * so reading it on the request path does not require sorting.
+ */
+final class LatencyWindow {
+
+    private static final int RECALCULATE_EVERY = 32;
+
+    private final long[] samples;
+    private final double percentile;
+    private int next = 0;
+    private int count = 0;
+    private long recorded = 0;
+    private volatile long value = -1;
+
+    LatencyWindow(int size, double percentile) {
+        this.samples = new long[size];
+        this.percentile = percentile;
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+        if (++recorded % RECALCULATE_EVERY == 0) {
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            value = sorted[Math.max(0, Math.min(count - 1, (int) Math.ceil(percentile * count) - 1))];
+        }
+    }
+
+    /**
+     * The percentile in nanoseconds, or -1 until enough samples have been recorded
+     */
+    long percentile() {
+        return value;
+    }
+}
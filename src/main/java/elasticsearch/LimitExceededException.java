@@ -0,0 +1,23 @@
+package elasticsearch;
+
+import java.time.Duration;
+
+/**
+ * Thrown when a request is rejected by a {@link ConcurrencyLimiter} before it has been sent to Elasticsearch,
+ * or when a person is rejected by a full {@link Spool}
+ */
+public class LimitExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Duration retryAfter;
+
+    public LimitExceededException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration retryAfter() {
+        return retryAfter;
+    }
+}
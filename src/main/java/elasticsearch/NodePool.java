@@ -0,0 +1,229 @@
+package elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * The Elasticsearch nodes requests are spread across. A node failing a request is marked dead and
+ * skipped until its backoff has passed, which doubles with every consecutive failure. Once the
+ * backoff has passed, the next request or health check tries the node again. If all nodes are
+ * dead, the node with the shortest remaining backoff is used anyway.
+ */
+final class NodePool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NodePool.class);
+
+    static final class Node {
+
+        private final String endpoint;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        // updates are synchronized on the node, reads on the request path are not
+        private volatile boolean dead = false;
+        private volatile long deadUntil = 0;
+        private int failures = 0;
+
+        private Node(String endpoint) {
+            this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        }
+
+        String endpoint() {
+            return endpoint;
+        }
+
+        URI uri(String path) {
+            return URI.create(endpoint + path);
+        }
+
+        boolean isDead() {
+            return dead;
+        }
+
+        private boolean isAvailable(long now) {
+            return !dead || now - deadUntil >= 0;
+        }
+
+        void acquire() {
+            outstanding.incrementAndGet();
+        }
+
+        void release() {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    @FunctionalInterface
+    interface HealthCheck {
+        boolean isHealthy(Node node);
+    }
+
+    @FunctionalInterface
+    interface Sniffer {
+        List<String> sniff() throws Exception;
+    }
+
+    private final ElasticsearchClient.NodeSelector selector;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile List<Node> nodes;
+    private ScheduledExecutorService scheduler;
+
+    NodePool(List<String> endpoints, ElasticsearchClient.NodeSelector selector, Duration initialBackoff, Duration maxBackoff) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one Elasticsearch node is required");
+        }
+        this.nodes = endpoints.stream().map(Node::new).collect(Collectors.toUnmodifiableList());
+        this.selector = selector;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+    }
+
+    List<Node> nodes() {
+        return nodes;
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    // requests in flight across all nodes
+    int outstanding() {
+        int outstanding = 0;
+        for (Node node : nodes) {
+            outstanding += node.outstanding.get();
+        }
+        return outstanding;
+    }
+
+    Node select() {
+        final List<Node> nodes = this.nodes;
+        final int size = nodes.size();
+        final long now = System.nanoTime();
+        // rotating the start also spreads requests across nodes with the same number of outstanding requests
+        final int start = Math.floorMod(next.getAndIncrement(), size);
+        Node selected = null;
+        for (int i = 0; i < size; i++) {
+            final Node node = nodes.get((start + i) % size);
+            if (!node.isAvailable(now)) {
+                continue;
+            }
+            if (selector == ElasticsearchClient.NodeSelector.ROUND_ROBIN) {
+                return node;
+            }
+            if (selected == null || node.outstanding.get() < selected.outstanding.get()) {
+                selected = node;
+            }
+        }
+        if (selected != null) {
+            return selected;
+        }
+
+        // all nodes are dead, so try the one that is going to be retried first
+        selected = nodes.get(0);
+        for (Node node : nodes) {
+            if (node.deadUntil - selected.deadUntil < 0) {
+                selected = node;
+            }
+        }
+        return selected;
+    }
+
+    void onSuccess(Node node) {
+        if (node.dead) {
+            synchronized (node) {
+                if (node.dead) {
+                    logger.info("Elasticsearch node [{}] is alive again", node.endpoint);
+                    node.dead = false;
+                    node.failures = 0;
+                }
+            }
+        }
+    }
+
+    void onFailure(Node node, Throwable cause) {
+        synchronized (node) {
+            node.failures++;
+            final long backoff = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(node.failures - 1, 30));
+            node.deadUntil = System.nanoTime() + backoff;
+            node.dead = true;
+            logger.warn("Marking Elasticsearch node [{}] as dead for [{}ms] after [{}] failures: {}", node.endpoint,
+                    TimeUnit.NANOSECONDS.toMillis(backoff), node.failures, cause.toString());
+        }
+    }
+
+    /**
+     * Pings all nodes in the background. Dead nodes are only checked once their backoff has passed.
+     */
+    synchronized void scheduleHealthChecks(Duration interval, HealthCheck healthCheck) {
+        scheduler().scheduleWithFixedDelay(() -> {
+            final long now = System.nanoTime();
+            for (Node node : nodes) {
+                if (!node.isAvailable(now)) {
+                    continue;
+                }
+                if (healthCheck.isHealthy(node)) {
+                    onSuccess(node);
+                } else {
+                    onFailure(node, new RuntimeException("health check failed"));
+                }
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replaces the nodes with the ones returned by the sniffer in the background, starting right away
+     */
+    synchronized void scheduleSniffing(Duration interval, Sniffer sniffer) {
+        scheduler().scheduleWithFixedDelay(() -> {
+            try {
+                update(sniffer.sniff());
+            } catch (Exception e) {
+                logger.warn("Error sniffing Elasticsearch nodes", e);
+            }
+        }, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    void update(List<String> endpoints) {
+        if (endpoints.isEmpty()) {
+            return;
+        }
+        // keep the state of known nodes
+        final List<Node> current = this.nodes;
+        final List<Node> updated = new ArrayList<>(endpoints.size());
+        for (String endpoint : endpoints) {
+            final Node node = new Node(endpoint);
+            updated.add(current.stream().filter(n -> n.endpoint.equals(node.endpoint)).findFirst().orElse(node));
+        }
+        this.nodes = List.copyOf(updated);
+        logger.debug("Updated Elasticsearch nodes to {}", endpoints);
+    }
+
+    private ScheduledExecutorService scheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "elasticsearch-nodes");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
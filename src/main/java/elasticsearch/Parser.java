@@ -1,62 +1,372 @@
 package elasticsearch;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import model.BulkItem;
+import model.BulkResponse;
 import model.Person;
 import model.SearchHit;
 import model.SearchResponse;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A class to parse HTTP response byte arrays to POJOs
  * using Jacksons ObjectMapper
+ *
+ * Search responses and persons are read token by token, so that only the fields
+ * we are interested in are materialized and all other subtrees are skipped.
+ * Responses in Smile or CBOR are read by the same code, only the factory of the
+ * token parser differs. All factories take the buffers of their parsers from the
+ * shared {@link BufferPool}.
  */
 public class Parser {
 
+    @FunctionalInterface
+    interface SearchHitConsumer {
+        void accept(SearchHit hit) throws IOException;
+    }
+
+    // the response of a single search of a multi search, or its status and error if it failed
+    record MultiSearchItem(SearchResponse response, int status, String error) {
+
+        boolean failed() {
+            return error != null;
+        }
+    }
+
+    // everything of a search response but its hits, took is -1 if the response does not contain it
+    record SearchSummary(String pitId, long took, boolean timedOut) {
+    }
+
+    private static final Person EMPTY_PERSON = new Person("", "", "");
+
     private final ObjectMapper mapper;
+    private final JsonFactory factory;
+    private final Map<ResponseFormat, JsonFactory> factories = new EnumMap<>(ResponseFormat.class);
 
     public Parser(ObjectMapper mapper) {
         this.mapper = mapper;
+        final BufferPool pool = BufferPool.shared();
+        this.factory = pool.jsonFactory(mapper);
+        factories.put(ResponseFormat.JSON, factory);
+        factories.put(ResponseFormat.SMILE, pool.smileFactory());
+        factories.put(ResponseFormat.CBOR, pool.cborFactory());
     }
 
-    private static final JsonPointer hitsArray = JsonPointer.compile("/hits/hits");
-    private static final JsonPointer hitsTotalValue = JsonPointer.compile("/hits/total/value");
-    private static final JsonPointer hitSource = JsonPointer.compile("/_source");
-
     SearchResponse toSearchResponse(byte[] data) throws IOException {
-        final JsonNode node = mapper.readTree(data);
-        boolean hasHits = node.at(hitsTotalValue).longValue() > 0;
-        if (hasHits) {
-            final JsonNode hits = node.at(hitsArray);
-            List<SearchHit> searchHits = new ArrayList<>(hits.size());
-            hits.forEach(hit -> {
-                Person person = parsePerson(hit.at(hitSource));
-                searchHits.add(new SearchHit(hit.get("_index").asText(), hit.get("_id").asText(), hit.get("_score").floatValue(), person));
-            });
-            return new SearchResponse(searchHits);
+        return toSearchResponse(data, ResponseFormat.JSON);
+    }
+
+    SearchResponse toSearchResponse(byte[] data, ResponseFormat format) throws IOException {
+        return toSearchResponse(data, 0, data.length, format);
+    }
+
+    // parses a part of a larger, i.e. pooled, buffer
+    SearchResponse toSearchResponse(byte[] data, int offset, int length, ResponseFormat format) throws IOException {
+        try (JsonParser parser = factories.get(format).createParser(data, offset, length)) {
+            final List<SearchHit> searchHits = new ArrayList<>();
+            final SearchSummary summary = parseSearchResponse(parser, searchHits::add);
+            return new SearchResponse(searchHits, summary.pitId(), summary.took(), summary.timedOut());
+        }
+    }
+
+    SearchResponse toSearchResponse(InputStream input) throws IOException {
+        return toSearchResponse(input, ResponseFormat.JSON);
+    }
+
+    SearchResponse toSearchResponse(InputStream input, ResponseFormat format) throws IOException {
+        try (JsonParser parser = factories.get(format).createParser(input)) {
+            final List<SearchHit> searchHits = new ArrayList<>();
+            final SearchSummary summary = parseSearchResponse(parser, searchHits::add);
+            return new SearchResponse(searchHits, summary.pitId(), summary.took(), summary.timedOut());
+        }
+    }
+
+    JsonParser createParser(InputStream input) throws IOException {
+        return factory.createParser(input);
+    }
+
+    JsonParser createParser(InputStream input, ResponseFormat format) throws IOException {
+        return factories.get(format).createParser(input);
+    }
+
+    /**
+     * Reads a search response and hands over every hit to the consumer as soon as it has been parsed,
+     * so that the whole list of hits never needs to be held in memory. Returns the point in time id
+     * of the response, if the search was running against a point in time, and how long it took.
+     */
+    SearchSummary parseSearchResponse(JsonParser parser, SearchHitConsumer consumer) throws IOException {
+        String pitId = null;
+        long took = -1;
+        boolean timedOut = false;
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return new SearchSummary(pitId, took, timedOut);
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if ("hits".equals(field) && token == JsonToken.START_OBJECT) {
+                parseHits(parser, consumer);
+            } else if ("pit_id".equals(field)) {
+                pitId = text(parser);
+            } else if ("took".equals(field) && token.isNumeric()) {
+                took = parser.getLongValue();
+            } else if ("timed_out".equals(field) && token.isBoolean()) {
+                timedOut = parser.getBooleanValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new SearchSummary(pitId, took, timedOut);
+    }
+
+    /**
+     * Reads the responses of a multi search, one item per search in the order they were sent
+     */
+    List<MultiSearchItem> toMultiSearchResponse(InputStream input, ResponseFormat format) throws IOException {
+        try (JsonParser parser = factories.get(format).createParser(input)) {
+            final List<MultiSearchItem> items = new ArrayList<>();
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return items;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if ("responses".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        items.add(parseMultiSearchItem(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return items;
+        }
+    }
+
+    private MultiSearchItem parseMultiSearchItem(JsonParser parser) throws IOException {
+        final List<SearchHit> searchHits = new ArrayList<>();
+        String pitId = null;
+        long took = -1;
+        boolean timedOut = false;
+        int status = 200;
+        String error = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if ("hits".equals(field) && token == JsonToken.START_OBJECT) {
+                parseHits(parser, searchHits::add);
+            } else if ("pit_id".equals(field)) {
+                pitId = text(parser);
+            } else if ("took".equals(field) && token.isNumeric()) {
+                took = parser.getLongValue();
+            } else if ("timed_out".equals(field) && token.isBoolean()) {
+                timedOut = parser.getBooleanValue();
+            } else if ("status".equals(field) && token.isNumeric()) {
+                status = parser.getIntValue();
+            } else if ("error".equals(field)) {
+                final JsonNode node = mapper.readTree(parser);
+                error = node.path("type").asText() + ": " + node.path("reason").asText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return error != null ? new MultiSearchItem(null, status, error) : new MultiSearchItem(new SearchResponse(searchHits, pitId, took, timedOut), status, null);
+    }
+
+    // parses the outer hits object, that contains the total count and the hits array
+    private void parseHits(JsonParser parser, SearchHitConsumer consumer) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if ("hits".equals(field) && token == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    consumer.accept(parseHit(parser));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private SearchHit parseHit(JsonParser parser) throws IOException {
+        String index = null;
+        String id = null;
+        float score = 0;
+        Person person = EMPTY_PERSON;
+        List<Number> sort = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            switch (field) {
+                case "_index" -> index = text(parser);
+                case "_id" -> id = text(parser);
+                case "_score" -> score = token.isNumeric() ? parser.getFloatValue() : 0;
+                case "_source" -> {
+                    if (token == JsonToken.START_OBJECT) {
+                        person = parsePerson(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                // only sent back to elasticsearch as search_after, the searches of this app only sort by numbers
+                case "sort" -> {
+                    if (token == JsonToken.START_ARRAY) {
+                        sort = parseSortValues(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        return new SearchHit(index, id, score, person, sort);
+    }
+
+    private static List<Number> parseSortValues(JsonParser parser) throws IOException {
+        final List<Number> values = new ArrayList<>(2);
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == JsonToken.VALUE_NUMBER_INT) {
+                values.add(parser.getLongValue());
+            } else if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                values.add(parser.getDoubleValue());
+            } else {
+                throw new JsonParseException(parser, "Sort value is not a number: " + token);
+            }
+        }
+        return values;
+    }
+
+    private static final JsonPointer errorType = JsonPointer.compile("/error/type");
+    private static final JsonPointer errorReason = JsonPointer.compile("/error/reason");
+
+    BulkResponse toBulkResponse(byte[] data) throws IOException {
+        return toBulkResponse(data, ResponseFormat.JSON);
+    }
+
+    BulkResponse toBulkResponse(byte[] data, ResponseFormat format) throws IOException {
+        final JsonNode node = readTree(data, format);
+        final JsonNode items = node.path("items");
+        List<BulkItem> bulkItems = new ArrayList<>(items.size());
+        items.forEach(item -> {
+            // each item is wrapped in an object named after its action, i.e. "index"
+            final JsonNode action = item.elements().next();
+            final String error = action.has("error") ? action.at(errorType).asText() + ": " + action.at(errorReason).asText() : null;
+            bulkItems.add(new BulkItem(action.path("_id").asText(), action.path("status").intValue(), error));
+        });
+        return new BulkResponse(node.path("errors").booleanValue(), bulkItems);
+    }
+
+    // type and reason of an error response, or null if the body does not contain them
+    String toErrorReason(byte[] data, ResponseFormat format) {
+        try {
+            final JsonNode node = readTree(data, format);
+            final String type = node.at(errorType).asText();
+            return type.isEmpty() ? null : type + ": " + node.at(errorReason).asText();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private JsonNode readTree(byte[] data, ResponseFormat format) throws IOException {
+        try (JsonParser parser = factories.get(format).createParser(data)) {
+            final JsonNode node = mapper.readTree(parser);
+            // an empty body
+            return node != null ? node : mapper.missingNode();
         }
+    }
+
+    // publish addresses of the nodes in a nodes info response, i.e. from /_nodes/http
+    List<String> toPublishAddresses(byte[] data) throws IOException {
+        final JsonNode nodes = mapper.readTree(data).path("nodes");
+        final List<String> addresses = new ArrayList<>(nodes.size());
+        nodes.forEach(node -> {
+            final String address = node.path("http").path("publish_address").asText();
+            if (address.isEmpty()) {
+                return;
+            }
+            // either host:port or hostname/ip:port, if the node knows its hostname
+            final int slash = address.indexOf('/');
+            if (slash > 0) {
+                addresses.add(address.substring(0, slash) + address.substring(address.lastIndexOf(':')));
+            } else {
+                addresses.add(address.substring(slash + 1));
+            }
+        });
+        return addresses;
+    }
 
-        return new SearchResponse(Collections.emptyList());
+    // the id of a newly opened point in time
+    String toPitId(byte[] data) throws IOException {
+        return mapper.readTree(data).path("id").asText();
     }
 
     public Person toPerson(byte[] data) throws IOException {
-        final JsonNode node = mapper.readTree(data);
-        return parsePerson(node);
+        try (JsonParser parser = factory.createParser(data)) {
+            return parser.nextToken() == JsonToken.START_OBJECT ? parsePerson(parser) : EMPTY_PERSON;
+        }
     }
 
-    private static final JsonPointer pointerFirstName = JsonPointer.compile("/name/first");
-    private static final JsonPointer pointerLastName = JsonPointer.compile("/name/last");
-    private static final JsonPointer pointerEmployer = JsonPointer.compile("/employer");
+    /**
+     * Reads the next person of a stream of JSON objects, i.e. newline delimited JSON, without reading
+     * ahead. Returns null at the end of the stream.
+     */
+    Person nextPerson(JsonParser parser) throws IOException {
+        final JsonToken token = parser.nextToken();
+        if (token == null) {
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a person object, but got " + token);
+        }
+        return parsePerson(parser);
+    }
 
-    private Person parsePerson(JsonNode node) {
-        final String firstName = node.at(pointerFirstName).asText();
-        final String lastName = node.at(pointerLastName).asText();
-        final String employer = node.at(pointerEmployer).asText();
+    // expects the parser to be positioned at the start of the person object and leaves it at its end
+    Person parsePerson(JsonParser parser) throws IOException {
+        String firstName = "";
+        String lastName = "";
+        String employer = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            if ("name".equals(field) && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String nameField = parser.getCurrentName();
+                    parser.nextToken();
+                    switch (nameField) {
+                        case "first" -> firstName = text(parser);
+                        case "last" -> lastName = text(parser);
+                        default -> parser.skipChildren();
+                    }
+                }
+            } else if ("employer".equals(field)) {
+                employer = text(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
         return new Person(firstName, lastName, employer);
     }
+
+    // same semantics as JsonNode.asText(), scalars are returned as text, objects and arrays as empty string
+    private static String text(JsonParser parser) throws IOException {
+        if (parser.currentToken().isScalarValue()) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return "";
+    }
 }
@@ -0,0 +1,123 @@
+package elasticsearch;
+
+import model.Person;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads persons from CSV one record at a time, with the columns first name, last name and employer.
+ * Fields can be quoted with double quotes, quoted fields may contain commas, line breaks and
+ * escaped quotes. A header line with the column names is skipped.
+ */
+final class PersonCsvReader {
+
+    private static final List<String> HEADER = List.of("first_name", "last_name", "employer");
+
+    private final Reader reader;
+    private final List<String> fields = new ArrayList<>(3);
+    private final StringBuilder field = new StringBuilder();
+    private int line = 0;
+    private int peeked = -2;
+
+    // the reader should be buffered, it is read char by char
+    PersonCsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Returns the next person, or null at the end of the input
+     */
+    Person next() throws IOException {
+        while (readRecord()) {
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                // empty line
+                continue;
+            }
+            if (line == 1 && isHeader()) {
+                continue;
+            }
+            if (fields.size() != 3) {
+                throw new IllegalArgumentException("Invalid CSV in line " + line + ": expected 3 columns, but got " + fields.size());
+            }
+            return new Person(fields.get(0), fields.get(1), fields.get(2));
+        }
+        return null;
+    }
+
+    private boolean isHeader() {
+        if (fields.size() != HEADER.size()) {
+            return false;
+        }
+        for (int i = 0; i < HEADER.size(); i++) {
+            if (!HEADER.get(i).equalsIgnoreCase(fields.get(i).trim())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // reads the fields of the next record, returns false at the end of the input
+    private boolean readRecord() throws IOException {
+        fields.clear();
+        field.setLength(0);
+        int ch = read();
+        if (ch == -1) {
+            return false;
+        }
+        line++;
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (ch == -1) {
+                    throw new IllegalArgumentException("Invalid CSV in line " + line + ": unterminated quoted field");
+                }
+                if (ch == '"') {
+                    if (peek() == '"') {
+                        read();
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    if (ch == '\n') {
+                        line++;
+                    }
+                    field.append((char) ch);
+                }
+            } else if (ch == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (ch == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (ch == '\n' || ch == '\r' || ch == -1) {
+                if (ch == '\r' && peek() == '\n') {
+                    read();
+                }
+                fields.add(field.toString());
+                return true;
+            } else {
+                field.append((char) ch);
+            }
+            ch = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            final int ch = peeked;
+            peeked = -2;
+            return ch;
+        }
+        return reader.read();
+    }
+
+    private int peek() throws IOException {
+        if (peeked == -2) {
+            peeked = reader.read();
+        }
+        return peeked;
+    }
+}
@@ -0,0 +1,81 @@
+package elasticsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An output stream like {@link java.io.ByteArrayOutputStream}, whose buffer is taken from and, once
+ * closed, given back to a {@link BufferPool}. Growing the buffer swaps it for one of the next size class.
+ * Not thread safe, and neither the output nor any view of it may be used after closing it.
+ */
+class PooledOutput extends OutputStream {
+
+    private final BufferPool pool;
+    byte[] buffer;
+    int count;
+
+    PooledOutput(int initialCapacity) {
+        this(BufferPool.shared(), initialCapacity);
+    }
+
+    PooledOutput(BufferPool pool, int initialCapacity) {
+        this.pool = pool;
+        this.buffer = pool.bytes(initialCapacity);
+    }
+
+    int size() {
+        return count;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    // reads the content without copying it, only valid until the output is closed
+    InputStream toInputStream() {
+        return new ByteArrayInputStream(buffer, 0, count);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    void write(ByteBuffer b) {
+        final int length = b.remaining();
+        ensureCapacity(count + length);
+        b.get(buffer, count, length);
+        count += length;
+    }
+
+    final void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            final byte[] grown = pool.bytes(Math.max(capacity, buffer.length * 2));
+            System.arraycopy(buffer, 0, grown, 0, count);
+            pool.release(buffer);
+            buffer = grown;
+        }
+    }
+
+    /**
+     * Gives the buffer back to the pool, closing the output more than once has no effect
+     */
+    @Override
+    public void close() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -5,61 +5,223 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import gg.jte.ContentType;
 import gg.jte.TemplateEngine;
-import gg.jte.output.StringOutput;
 import gg.jte.resolve.ResourceCodeResolver;
+import model.ImportSummary;
+import model.Person;
+import model.Projection;
 import model.SearchHit;
 import model.SearchResponse;
+import model.Suggestion;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
 
 public class Renderer {
 
+    // the size of most rendered search responses, larger ones grow into the next buffer of the pool
+    private static final int RESPONSE_CAPACITY = 4096;
+
     private final TemplateEngine templateEngine;
     private final JsonFactory factory;
 
     public Renderer(ObjectMapper mapper) {
-        this.factory = mapper.getFactory();
-        final ResourceCodeResolver resolver = new ResourceCodeResolver("templates");
-        this.templateEngine = TemplateEngine.create(resolver, ContentType.Plain);
+        this(mapper, TemplateEngine.create(new ResourceCodeResolver("templates"), ContentType.Plain));
     }
 
-    // JSON escape each user content, but make sure no escaping happens when reading input from the template
-    private static final class JsonStringOutput extends StringOutput {
-        @Override
-        public void writeUserContent(String value) {
-            super.writeUserContent(escape(value));
-        }
+    private Renderer(ObjectMapper mapper, TemplateEngine templateEngine) {
+        // rendering happens into pooled buffers, only the final result is copied out of them
+        this.factory = BufferPool.shared().jsonFactory(mapper);
+        this.templateEngine = templateEngine;
+    }
+
+    /**
+     * Creates a renderer using the template classes generated at build time by the generateJte
+     * gradle task, so no template needs to be compiled at runtime
+     */
+    public static Renderer precompiled(ObjectMapper mapper) {
+        return new Renderer(mapper, TemplateEngine.createPrecompiled(ContentType.Plain));
     }
 
     String render(final String templateName, final Map<String, Object> params) {
-        try (StringOutput output = new JsonStringOutput()) {
+        return new String(renderBytes(templateName, params), StandardCharsets.UTF_8);
+    }
+
+    byte[] renderBytes(final String templateName, final Map<String, Object> params) {
+        try (Utf8Output output = new Utf8Output()) {
             templateEngine.render(templateName + ".jte", params, output);
-            return output.toString();
+            return output.toByteArray();
+        }
+    }
+
+    byte[] person(Person person) {
+        try (Utf8Output output = new Utf8Output()) {
+            renderPerson(output, person);
+            return output.toByteArray();
+        }
+    }
+
+    private void renderPerson(Utf8Output output, Person person) {
+        // unfortunately we cannot use records in JTE yet, because it is a preview feature
+        // so we have serialize each getter into its own field
+        templateEngine.render("person.jte", Map.of("firstName", person.firstName(), "lastName", person.lastName(), "employer", person.employer()), output);
+        // if the above is fixed, or records are not a preview feature anymore, we can go with this instead and fix the template
+        //templateEngine.render("person.jte", Map.of("person", person), output);
+    }
+
+    private static final String BULK_INDEX_ACTION = "{\"index\":{}}\n";
+
+    // a single bulk item consists of the action line and the document line, both terminated by a newline
+    byte[] bulkIndexAction(Person person) {
+        try (Utf8Output output = new Utf8Output()) {
+            renderBulkIndexAction(output, person);
+            return output.toByteArray();
+        }
+    }
+
+    byte[] bulk(List<Person> persons) {
+        try (Utf8Output output = new Utf8Output()) {
+            for (Person person : persons) {
+                renderBulkIndexAction(output, person);
+            }
+            return output.toByteArray();
         }
     }
 
+    private void renderBulkIndexAction(Utf8Output output, Person person) {
+        output.writeContent(BULK_INDEX_ACTION);
+        renderPerson(output, person);
+        output.writeContent("\n");
+    }
+
+    private static final byte[] MULTI_SEARCH_HEADER = "{}\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Joins rendered search bodies into the newline delimited body of a multi search. Line breaks of the
+     * templates are replaced by spaces, which is safe as JSON strings cannot contain unescaped line breaks.
+     */
+    byte[] multiSearch(List<byte[]> searches) {
+        int length = 0;
+        for (byte[] search : searches) {
+            length += MULTI_SEARCH_HEADER.length + search.length + 1;
+        }
+        final byte[] data = new byte[length];
+        int pos = 0;
+        for (byte[] search : searches) {
+            System.arraycopy(MULTI_SEARCH_HEADER, 0, data, pos, MULTI_SEARCH_HEADER.length);
+            pos += MULTI_SEARCH_HEADER.length;
+            for (byte b : search) {
+                data[pos++] = b == '\n' || b == '\r' ? (byte) ' ' : b;
+            }
+            data[pos++] = '\n';
+        }
+        return data;
+    }
+
     public byte[] searchResponse(SearchResponse searchResponse) throws IOException {
+        return searchResponse(searchResponse, Projection.PERSON);
+    }
+
+    /**
+     * Renders only the fields of the projection, which should be the one the search was sent with
+     */
+    public byte[] searchResponse(SearchResponse searchResponse, Projection projection) throws IOException {
         // we can solve this via templates as well once JTE supports preview features or records aren't preview anymore
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             JsonGenerator generator = factory.createGenerator(bos)) {
+        try (PooledOutput output = new PooledOutput(RESPONSE_CAPACITY);
+             JsonGenerator generator = factory.createGenerator(output)) {
             generator.writeStartArray();
             for (SearchHit hit : searchResponse.hits()) {
+                writeHit(generator, hit, projection);
+            }
+            generator.writeEndArray();
+            generator.flush();
+            return output.toByteArray();
+        }
+    }
+
+    public byte[] importSummary(ImportSummary summary) throws IOException {
+        try (PooledOutput output = new PooledOutput(RESPONSE_CAPACITY);
+             JsonGenerator generator = factory.createGenerator(output)) {
+            generator.writeStartObject();
+            generator.writeNumberField("indexed", summary.indexed());
+            generator.writeNumberField("failed", summary.failed());
+            generator.writeNumberField("took_ms", summary.tookMillis());
+            generator.writeNumberField("persons_per_second", Math.round(summary.personsPerSecond()));
+            generator.writeEndObject();
+            generator.flush();
+            return output.toByteArray();
+        }
+    }
+
+    public byte[] suggestions(List<Suggestion> suggestions) throws IOException {
+        try (PooledOutput output = new PooledOutput(RESPONSE_CAPACITY);
+             JsonGenerator generator = factory.createGenerator(output)) {
+            generator.writeStartArray();
+            for (Suggestion suggestion : suggestions) {
                 generator.writeStartObject();
-                generator.writeObjectFieldStart("name");
-                generator.writeStringField("first", hit.person().firstName());
-                generator.writeStringField("last", hit.person().lastName());
-                generator.writeEndObject();
-                generator.writeStringField("employer", hit.person().employer());
+                generator.writeStringField("text", suggestion.text());
+                generator.writeNumberField("count", suggestion.count());
                 generator.writeEndObject();
             }
+            generator.writeEndArray();
             generator.flush();
-            return bos.toByteArray();
+            return output.toByteArray();
         }
     }
 
+    /**
+     * Returns a writer, that writes the same JSON array as {@link #searchResponse(SearchResponse, Projection)}
+     * one hit at a time to the output stream. Closing the writer ends the array.
+     */
+    SearchHitWriter searchHitWriter(OutputStream out, Projection projection) throws IOException {
+        final JsonGenerator generator = factory.createGenerator(out);
+        // the caller owns the output stream
+        generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        generator.writeStartArray();
+        return new SearchHitWriter(generator, projection);
+    }
+
+    static final class SearchHitWriter implements Parser.SearchHitConsumer, Closeable {
+
+        private final JsonGenerator generator;
+        private final Projection projection;
+
+        private SearchHitWriter(JsonGenerator generator, Projection projection) {
+            this.generator = generator;
+            this.projection = projection;
+        }
+
+        @Override
+        public void accept(SearchHit hit) throws IOException {
+            writeHit(generator, hit, projection);
+        }
 
+        @Override
+        public void close() throws IOException {
+            generator.writeEndArray();
+            generator.close();
+        }
+    }
+
+    // fields left out of the projection were not returned by elasticsearch, so they are left out here as well
+    private static void writeHit(JsonGenerator generator, SearchHit hit, Projection projection) throws IOException {
+        generator.writeStartObject();
+        generator.writeObjectFieldStart("name");
+        if (projection.includes("name.first")) {
+            generator.writeStringField("first", hit.person().firstName());
+        }
+        if (projection.includes("name.last")) {
+            generator.writeStringField("last", hit.person().lastName());
+        }
+        generator.writeEndObject();
+        if (projection.includes("employer")) {
+            generator.writeStringField("employer", hit.person().employer());
+        }
+        generator.writeEndObject();
+    }
 
     // based on https://github.com/ralfstx/minimal-json/blob/master/com.eclipsesource.json/src/main/java/com/eclipsesource/json/JsonWriter.java
     private static final int CONTROL_CHARACTERS_END = 0x001f;
@@ -77,9 +239,19 @@ public class Renderer {
             'a', 'b', 'c', 'd', 'e', 'f'};
 
     static String escape(String input) {
-        StringBuilder builder = new StringBuilder();
-        int length = input.length();
-        for (int index = 0; index < length; index++) {
+        final int length = input.length();
+        int index = 0;
+        // most values do not need any escaping, so there is no need to copy them
+        while (index < length && getReplacementChars(input.charAt(index)) == null) {
+            index++;
+        }
+        if (index == length) {
+            return input;
+        }
+
+        final StringBuilder builder = new StringBuilder(length + 16);
+        builder.append(input, 0, index);
+        for (; index < length; index++) {
             final char ch = input.charAt(index);
             char[] replacement = getReplacementChars(ch);
             if (replacement != null) {
@@ -91,7 +263,7 @@ public class Renderer {
         return builder.toString();
     }
 
-    private static char[] getReplacementChars(char ch) {
+    static char[] getReplacementChars(char ch) {
         if (ch > '\\') {
             if (ch < '\u2028' || ch > '\u2029') {
                 // The lower range contains 'a' .. 'z'. Only 2 checks required.
@@ -0,0 +1,36 @@
+package elasticsearch;
+
+/**
+ * The formats Elasticsearch can return responses in. Smile and CBOR are binary encodings of the same
+ * structure as JSON, that are smaller on the wire and faster to parse.
+ */
+public enum ResponseFormat {
+
+    JSON("application/json"),
+    SMILE("application/smile"),
+    CBOR("application/cbor");
+
+    private final String mediaType;
+
+    ResponseFormat(String mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    public String mediaType() {
+        return mediaType;
+    }
+
+    /**
+     * The format of a response by its Content-Type header, JSON if it is missing or unknown
+     */
+    static ResponseFormat fromContentType(String contentType) {
+        if (contentType != null) {
+            for (ResponseFormat format : values()) {
+                if (contentType.regionMatches(true, 0, format.mediaType, 0, format.mediaType.length())) {
+                    return format;
+                }
+            }
+        }
+        return JSON;
+    }
+}
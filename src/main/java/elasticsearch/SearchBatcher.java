@@ -0,0 +1,142 @@
+package elasticsearch;
+
+import model.SearchResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects searches running at the same time and sends them as a single multi search request. A batch is
+ * sent once it is full, or once its first search has waited for the batching window. Batches are sent
+ * asynchronously, so a slow multi search does not hold back the next batch.
+ */
+final class SearchBatcher implements Closeable {
+
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ElasticsearchClient client;
+    private final ClientMetrics metrics;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    // bounded by the concurrency limit of searches, if there is one
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private volatile boolean closed = false;
+
+    private record Request(byte[] body, CompletableFuture<SearchResponse> future, long enqueuedAt) {
+    }
+
+    SearchBatcher(ElasticsearchClient client, ClientMetrics metrics, Duration window, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("max batch size must be at least 1");
+        }
+        this.client = client;
+        this.metrics = metrics;
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.dispatcher = new Thread(this::run, "search-batcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    CompletableFuture<SearchResponse> search(byte[] body) {
+        final CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IllegalStateException("search batcher is closed"));
+            return future;
+        }
+        queue.add(new Request(body, future, System.nanoTime()));
+        return future;
+    }
+
+    /**
+     * Stops the dispatcher, searches still waiting for their batch are failed
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final IllegalStateException closedException = new IllegalStateException("search batcher is closed");
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.future().completeExceptionally(closedException);
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            final List<Request> batch = new ArrayList<>(maxBatchSize);
+            try {
+                // poll in short intervals when idle to notice a close() call
+                final Request first = queue.poll(POLL_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                fill(batch, first.enqueuedAt() + windowNanos);
+            } catch (InterruptedException e) {
+                batch.forEach(request -> request.future().completeExceptionally(e));
+                return;
+            }
+            send(batch);
+        }
+    }
+
+    // adds searches until the batch is full or the window is over, then takes whatever else is already waiting
+    private void fill(List<Request> batch, long deadline) throws InterruptedException {
+        while (batch.size() < maxBatchSize) {
+            final long remaining = deadline - System.nanoTime();
+            final Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void send(List<Request> batch) {
+        final long now = System.nanoTime();
+        final List<byte[]> bodies = new ArrayList<>(batch.size());
+        for (Request request : batch) {
+            bodies.add(request.body());
+            metrics.searchQueueDelay(now - request.enqueuedAt());
+        }
+        metrics.searchBatch(batch.size());
+
+        final CompletableFuture<List<Parser.MultiSearchItem>> response;
+        try {
+            response = client.multiSearchAsync(bodies);
+        } catch (RuntimeException e) {
+            batch.forEach(request -> request.future().completeExceptionally(e));
+            return;
+        }
+        response.whenComplete((items, throwable) -> {
+            if (throwable != null) {
+                batch.forEach(request -> request.future().completeExceptionally(throwable));
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                final CompletableFuture<SearchResponse> future = batch.get(i).future();
+                if (i >= items.size()) {
+                    future.completeExceptionally(new IOException("Multi search returned " + items.size() + " responses for " + batch.size() + " searches"));
+                } else if (items.get(i).failed()) {
+                    final Parser.MultiSearchItem item = items.get(i);
+                    future.completeExceptionally(new ElasticsearchException("Error searching: " + item.status() + " (" + item.error() + ")", item.status()));
+                } else {
+                    future.complete(items.get(i).response());
+                }
+            }
+        });
+    }
+}
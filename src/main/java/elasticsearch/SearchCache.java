@@ -0,0 +1,213 @@
+package elasticsearch;
+
+import model.Person;
+import model.Projection;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Caches rendered search responses by template, query and page. The cache is bounded by number of entries
+ * and total size of the responses, evicting the least recently used entries first, and every entry
+ * expires after a fixed time to live.
+ *
+ * All entries are dropped whenever persons are indexed. As new documents only become visible to
+ * searches after the next refresh, nothing is put into the cache for one refresh interval after
+ * a write, otherwise a search running in between would cache a result without the new documents.
+ */
+public class SearchCache implements ElasticsearchClient.IndexListener {
+
+    private record Key(String templateName, String query, int from, int size, Projection projection) {
+    }
+
+    private record Entry(byte[] data, long expiresAt) {
+    }
+
+    @FunctionalInterface
+    public interface Loader {
+        byte[] load() throws IOException, InterruptedException;
+    }
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final long refreshIntervalNanos;
+    private long bytes = 0;
+    // incremented on every invalidation, so loads started before cannot put outdated data into the cache
+    private long generation = 0;
+    private long cacheableAfter = System.nanoTime();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private SearchCache(int maxEntries, long maxBytes, Duration ttl, Duration refreshInterval) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttl.toNanos();
+        this.refreshIntervalNanos = refreshInterval.toNanos();
+    }
+
+    public byte[] get(String templateName, String query, Loader loader) throws IOException, InterruptedException {
+        return get(templateName, query, 0, ElasticsearchClient.DEFAULT_SIZE, loader);
+    }
+
+    public byte[] get(String templateName, String query, int from, int size, Loader loader) throws IOException, InterruptedException {
+        return get(templateName, query, from, size, Projection.PERSON, loader);
+    }
+
+    public byte[] get(String templateName, String query, int from, int size, Projection projection, Loader loader) throws IOException, InterruptedException {
+        final Key key = new Key(templateName, query, from, size, projection);
+        final byte[] cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        final long generation = generation();
+        final byte[] data = loader.load();
+        put(key, data, generation);
+        return data;
+    }
+
+    public CompletableFuture<byte[]> getAsync(String templateName, String query, Supplier<CompletableFuture<byte[]>> loader) {
+        return getAsync(templateName, query, 0, ElasticsearchClient.DEFAULT_SIZE, loader);
+    }
+
+    public CompletableFuture<byte[]> getAsync(String templateName, String query, int from, int size, Supplier<CompletableFuture<byte[]>> loader) {
+        return getAsync(templateName, query, from, size, Projection.PERSON, loader);
+    }
+
+    public CompletableFuture<byte[]> getAsync(String templateName, String query, int from, int size, Projection projection, Supplier<CompletableFuture<byte[]>> loader) {
+        final Key key = new Key(templateName, query, from, size, projection);
+        final byte[] cached = lookup(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        final long generation = generation();
+        return loader.get().thenApply(data -> {
+            put(key, data, generation);
+            return data;
+        });
+    }
+
+    @Override
+    public void onIndexed(List<Person> persons) {
+        invalidateAll();
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        cacheableAfter = System.nanoTime() + refreshIntervalNanos;
+        entries.clear();
+        bytes = 0;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    private synchronized byte[] lookup(Key key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt() - System.nanoTime() <= 0) {
+            remove(key, entry);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.data();
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    private synchronized void put(Key key, byte[] data, long loadGeneration) {
+        final long now = System.nanoTime();
+        if (loadGeneration != generation || now - cacheableAfter < 0 || data.length > maxBytes) {
+            return;
+        }
+        final Entry previous = entries.put(key, new Entry(data, now + ttlNanos));
+        if (previous != null) {
+            bytes -= previous.data().length;
+        }
+        bytes += data.length;
+
+        // the iteration order of an access ordered map starts with the least recently used entry
+        final Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            final Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.getValue().data().length;
+            evictions.increment();
+        }
+    }
+
+    private void remove(Key key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.data().length;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private int maxEntries = 10_000;
+        private long maxBytes = 64 * 1024 * 1024;
+        private Duration ttl = Duration.ofMinutes(1);
+        private Duration refreshInterval = Duration.ofSeconds(1);
+
+        public Builder withMaxEntries(int maxEntries) {
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        public Builder withMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public Builder withTtl(Duration ttl) {
+            this.ttl = ttl;
+            return this;
+        }
+
+        // should match the refresh interval of the persons index
+        public Builder withRefreshInterval(Duration refreshInterval) {
+            this.refreshInterval = refreshInterval;
+            return this;
+        }
+
+        public SearchCache build() {
+            return new SearchCache(maxEntries, maxBytes, ttl, refreshInterval);
+        }
+    }
+}
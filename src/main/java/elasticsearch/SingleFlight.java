@@ -0,0 +1,99 @@
+package elasticsearch;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent calls with the same key. The first caller executes the call, every caller
+ * arriving while that call is in flight waits for it and gets the same result or the same exception.
+ * Once a call has finished, the next caller starts a new one, so results are never reused afterwards.
+ */
+final class SingleFlight<K, V> {
+
+    @FunctionalInterface
+    interface Call<V> {
+        V call() throws IOException, InterruptedException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    V execute(K key, Call<V> call) throws IOException, InterruptedException {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            return await(existing);
+        }
+
+        final V value;
+        try {
+            value = call.call();
+        } catch (IOException | InterruptedException | RuntimeException | Error e) {
+            // remove before completing, so that nobody can join a call that is already done
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(key, future);
+        future.complete(value);
+        return value;
+    }
+
+    CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            // a copy, so that a caller completing or cancelling its future does not affect the others
+            return existing.copy();
+        }
+
+        try {
+            call.get().whenComplete((value, throwable) -> {
+                inFlight.remove(key, future);
+                if (throwable != null) {
+                    future.completeExceptionally(throwable);
+                } else {
+                    future.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future.copy();
+    }
+
+    /**
+     * Number of calls that did not execute themselves, but waited for an identical call in flight
+     */
+    long coalesced() {
+        return coalesced.sum();
+    }
+
+    private static <V> V await(CompletableFuture<V> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // the call was interrupted in another thread, which does not mean this thread got interrupted
+            throw new IOException("Coalesced call failed", cause);
+        }
+    }
+}
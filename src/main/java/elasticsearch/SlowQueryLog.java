@@ -0,0 +1,66 @@
+package elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Logs the query and the stages of searches slower than the threshold. Only a sample of the slow searches is
+ * logged, so a slow cluster does not flood the log. Searches below the threshold only cost reading the clock.
+ */
+public class SlowQueryLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    private final long thresholdNanos;
+    private final double sampleRate;
+
+    private SlowQueryLog(Duration threshold, double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sample rate must be between 0 and 1");
+        }
+        this.thresholdNanos = threshold.toNanos();
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Returns true if the search was logged, should be called once the response is rendered
+     */
+    public boolean log(String templateName, String query, Trace trace) {
+        if (trace.elapsedNanos() < thresholdNanos) {
+            return false;
+        }
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return false;
+        }
+        logger.warn("slow search template={} query=[{}] {}", templateName, query, trace);
+        return true;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private Duration threshold = Duration.ofSeconds(1);
+        private double sampleRate = 1.0;
+
+        public Builder withThreshold(Duration threshold) {
+            this.threshold = threshold;
+            return this;
+        }
+
+        // the share of slow searches that is logged
+        public Builder withSampleRate(double sampleRate) {
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        public SlowQueryLog build() {
+            return new SlowQueryLog(threshold, sampleRate);
+        }
+    }
+}
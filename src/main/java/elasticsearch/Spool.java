@@ -0,0 +1,524 @@
+package elasticsearch;
+
+import model.BulkItem;
+import model.BulkResponse;
+import model.Person;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of persons to index, so accepting a person does not depend on Elasticsearch being
+ * available. Persons are appended to memory mapped segment files and a background thread ships them to
+ * Elasticsearch with bulk requests, retrying for as long as Elasticsearch is unavailable.
+ *
+ * After every bulk request the position of the next person to ship is stored in a checkpoint file, and
+ * segments are deleted once all of their persons have been shipped. Persons that were not shipped
+ * before the app stopped are shipped after the next start. Persons shipped right before a crash, whose
+ * checkpoint has not been written yet, are shipped again, so a person might be indexed twice.
+ *
+ * Every record consists of the length of the document, its CRC32 checksum and the document itself.
+ * A record that was only partially written when the app crashed fails its checksum and is dropped.
+ */
+public class Spool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Spool.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    // the length and the checksum of the document
+    private static final int HEADER_BYTES = 8;
+    private static final byte[] INDEX_ACTION = "{\"index\":{}}\n".getBytes(StandardCharsets.UTF_8);
+    // elasticsearch rejected the item because it was overloaded, so it is safe to send it again
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ElasticsearchClient client;
+    private final Renderer renderer;
+    private final Parser parser;
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int maxActions;
+    private final boolean sync;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Thread shipper;
+    // guarded by the lock
+    private Segment writer;
+    // the position after the last complete record, read by the shipper without the lock
+    private volatile long committed;
+    // the segment of the checkpoint, appending fails if the spool would grow beyond the max segments
+    private volatile long checkpointSegment;
+    private volatile boolean closed = false;
+    // set by the shipper, if the spool cannot be shipped anymore
+    private volatile IOException failure;
+
+    private record Record(byte[] document, long next) {
+    }
+
+    private Spool(ElasticsearchClient client, Renderer renderer, Parser parser, Path directory, int segmentSize, int maxSegments,
+                  int maxActions, boolean sync, Duration initialBackoff, Duration maxBackoff) throws IOException {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("segment size must be at least 1024 bytes");
+        }
+        this.client = client;
+        this.renderer = renderer;
+        this.parser = parser;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.maxActions = maxActions;
+        this.sync = sync;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+        final long checkpoint = recover();
+        this.shipper = new Thread(() -> run(checkpoint), "spool-shipper");
+        this.shipper.setDaemon(true);
+        this.shipper.start();
+    }
+
+    /**
+     * Appends the person to the spool. Once this method returns, the person is shipped to Elasticsearch
+     * eventually, even if the app is restarted in between.
+     *
+     * @throws LimitExceededException if the spool has reached its max number of segments
+     * @throws IOException if the spool cannot be written, or its persons cannot be shipped anymore
+     */
+    public void append(Person person) throws IOException {
+        final byte[] document = renderer.person(person);
+        final int recordSize = HEADER_BYTES + document.length;
+        if (recordSize > segmentSize) {
+            throw new IllegalArgumentException("person of " + document.length + " bytes exceeds the segment size");
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(document);
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("spool is already closed");
+            }
+            if (failure != null) {
+                throw new IOException("spool is corrupted, persons cannot be shipped anymore", failure);
+            }
+            if (writer.buffer.remaining() < recordSize) {
+                rotate();
+            }
+            final int start = writer.buffer.position();
+            writer.buffer.putInt(document.length).putInt((int) crc.getValue()).put(document);
+            if (sync) {
+                writer.buffer.force(start, recordSize);
+            }
+            committed = position(writer.id, writer.buffer.position());
+        } finally {
+            lock.unlock();
+        }
+        LockSupport.unpark(shipper);
+    }
+
+    /**
+     * The number of bytes of persons that have not been shipped yet, including the unused ends of segments
+     */
+    public long pendingBytes() {
+        final long committed = this.committed;
+        return (segment(committed) - checkpointSegment) * segmentSize + offset(committed);
+    }
+
+    /**
+     * Stops accepting persons and waits until the shipper has shipped all of them, or until Elasticsearch
+     * fails to take them. Persons that are left are shipped after the next start.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        LockSupport.unpark(shipper);
+        try {
+            shipper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            writer.buffer.force();
+            writer.channel.close();
+        } catch (IOException e) {
+            logger.warn("Error closing spool segment [{}]", writer.path, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // guarded by the lock
+    private void rotate() throws IOException {
+        if (writer.id + 1 - checkpointSegment >= maxSegments) {
+            throw new LimitExceededException("spool is full", Duration.ofSeconds(1));
+        }
+        writer.buffer.force();
+        writer.channel.close();
+        writer = Segment.open(segmentPath(writer.id + 1), writer.id + 1, segmentSize, true);
+    }
+
+    /**
+     * Opens the last segment for appending after its last complete record, and deletes the segments that
+     * were shipped completely. Returns the position of the checkpoint.
+     */
+    private long recover() throws IOException {
+        Files.createDirectories(directory);
+        final List<Long> segments = segmentIds();
+        final Path checkpointPath = directory.resolve(CHECKPOINT);
+        long checkpoint = Files.exists(checkpointPath) ? ByteBuffer.wrap(Files.readAllBytes(checkpointPath)).getLong()
+                : position(segments.isEmpty() ? 0 : segments.get(0), 0);
+        for (long id : segments) {
+            if (id < segment(checkpoint)) {
+                Files.delete(segmentPath(id));
+            }
+        }
+        final long last = segments.isEmpty() ? segment(checkpoint) : Math.max(segments.get(segments.size() - 1), segment(checkpoint));
+        writer = Segment.open(segmentPath(last), last, segmentSize, true);
+        // a record that was cut off by a crash is overwritten, anything after it must not look like a record
+        final int end = scan(writer.buffer, last == segment(checkpoint) ? offset(checkpoint) : 0, segmentSize);
+        for (int i = end; i < Math.min(end + HEADER_BYTES, segmentSize); i++) {
+            writer.buffer.put(i, (byte) 0);
+        }
+        writer.buffer.position(end);
+        checkpointSegment = segment(checkpoint);
+        committed = position(last, end);
+        if (committed != checkpoint) {
+            logger.info("spool has persons to ship from segment [{}] offset [{}] up to segment [{}] offset [{}]",
+                    segment(checkpoint), offset(checkpoint), last, end);
+        }
+        return checkpoint;
+    }
+
+    // the offset after the last complete record
+    private static int scan(ByteBuffer buffer, int offset, int limit) {
+        while (offset + HEADER_BYTES <= limit) {
+            final int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_BYTES + length > limit) {
+                break;
+            }
+            final byte[] document = new byte[length];
+            buffer.get(offset + HEADER_BYTES, document);
+            final CRC32 crc = new CRC32();
+            crc.update(document);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private void run(long checkpoint) {
+        Segment reader = null;
+        int failures = 0;
+        try {
+            while (true) {
+                try {
+                    final long target = committed;
+                    if (checkpoint == target) {
+                        if (closed) {
+                            return;
+                        }
+                        LockSupport.parkNanos(this, POLL_INTERVAL_NANOS);
+                        continue;
+                    }
+                    if (reader == null || reader.id != segment(checkpoint)) {
+                        closeReader(reader);
+                        reader = Segment.open(segmentPath(segment(checkpoint)), segment(checkpoint), segmentSize, false);
+                    }
+                    final int limit = reader.id == segment(target) ? offset(target) : segmentSize;
+                    final List<Record> records = read(reader.buffer, reader.id, offset(checkpoint), limit);
+                    if (records.isEmpty() && reader.id == segment(target)) {
+                        // the committed records cannot be read back, retrying does not help
+                        failure = new IOException("Invalid record in segment [" + reader.path + "] at offset [" + offset(checkpoint) + "]");
+                        logger.error("Spool is corrupted, no more persons are accepted", failure);
+                        return;
+                    }
+                    if (records.isEmpty()) {
+                        // everything of this segment has been shipped, continue with the next one
+                        final long next = position(reader.id + 1, 0);
+                        writeCheckpoint(next);
+                        closeReader(reader);
+                        reader = null;
+                        Files.deleteIfExists(segmentPath(segment(checkpoint)));
+                        checkpoint = next;
+                        continue;
+                    }
+                    if (!ship(records)) {
+                        return;
+                    }
+                    checkpoint = records.get(records.size() - 1).next();
+                    writeCheckpoint(checkpoint);
+                    failures = 0;
+                } catch (IOException | RuntimeException e) {
+                    // the shipper must keep running, i.e. after the disk was full, otherwise the spool fills up until
+                    // every index request is rejected. Anything not checkpointed yet is read again.
+                    if (closed) {
+                        logger.error("Error shipping persons from the spool, they are shipped after the next start", e);
+                        return;
+                    }
+                    logger.error("Error shipping persons from the spool, retrying", e);
+                    closeReader(reader);
+                    reader = null;
+                    LockSupport.parkNanos(this, backoffNanos(failures++));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeReader(reader);
+        }
+    }
+
+    private static void closeReader(Segment reader) {
+        if (reader != null) {
+            try {
+                reader.channel.close();
+            } catch (IOException e) {
+                // only read from
+            }
+        }
+    }
+
+    private List<Record> read(ByteBuffer buffer, long segment, int offset, int limit) {
+        final List<Record> records = new ArrayList<>();
+        final int end = scan(buffer, offset, limit);
+        while (offset < end && records.size() < maxActions) {
+            final int length = buffer.getInt(offset);
+            final byte[] document = new byte[length];
+            buffer.get(offset + HEADER_BYTES, document);
+            offset += HEADER_BYTES + length;
+            records.add(new Record(document, position(segment, offset)));
+        }
+        return records;
+    }
+
+    /**
+     * Sends the records until every one has either been indexed or been rejected for good. Returns
+     * false, if the spool has been closed while Elasticsearch was not available.
+     */
+    private boolean ship(List<Record> records) throws InterruptedException {
+        List<byte[]> documents = new ArrayList<>(records.size());
+        for (Record record : records) {
+            documents.add(record.document());
+        }
+        for (int attempt = 0; !documents.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                if (closed) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.sleep(backoffNanos(attempt - 1));
+            }
+            final BulkResponse response;
+            try {
+                response = client.bulk(bulkBody(documents));
+                // without an item per document, it is unknown which of the documents were indexed
+                if (response.items().size() != documents.size()) {
+                    throw new IOException("Bulk response has [" + response.items().size() + "] items for [" + documents.size() + "] documents");
+                }
+            } catch (IOException | RuntimeException e) {
+                if (attempt == 0) {
+                    logger.warn("Error shipping [{}] persons from the spool, retrying", documents.size(), e);
+                }
+                continue;
+            }
+
+            // items in the response are in the same order than in the request
+            final List<byte[]> rejected = new ArrayList<>();
+            final List<Person> indexed = new ArrayList<>(documents.size());
+            for (int i = 0; i < documents.size(); i++) {
+                final BulkItem item = response.items().get(i);
+                if (item.status() == TOO_MANY_REQUESTS || item.status() >= 500) {
+                    rejected.add(documents.get(i));
+                } else if (item.failed()) {
+                    logger.warn("Error indexing document from the spool, status [{}]: {}", item.status(), item.error());
+                } else {
+                    try {
+                        indexed.add(parser.toPerson(documents.get(i)));
+                    } catch (IOException e) {
+                        // rendered by ourselves, the document is indexed anyway, only listeners miss it
+                        logger.warn("Error parsing document from the spool", e);
+                    }
+                }
+            }
+            try {
+                client.notifyIndexed(indexed);
+            } catch (RuntimeException e) {
+                // the documents are indexed, so they must not be shipped again
+                logger.warn("Error notifying listeners of [{}] persons indexed from the spool", indexed.size(), e);
+            }
+            documents = rejected;
+        }
+        return true;
+    }
+
+    private static byte[] bulkBody(List<byte[]> documents) {
+        int length = 0;
+        for (byte[] document : documents) {
+            length += INDEX_ACTION.length + document.length + 1;
+        }
+        final byte[] body = new byte[length];
+        int pos = 0;
+        for (byte[] document : documents) {
+            System.arraycopy(INDEX_ACTION, 0, body, pos, INDEX_ACTION.length);
+            pos += INDEX_ACTION.length;
+            System.arraycopy(document, 0, body, pos, document.length);
+            pos += document.length;
+            body[pos++] = '\n';
+        }
+        return body;
+    }
+
+    // jittered exponential backoff, so that app instances do not retry in lockstep after an outage
+    private long backoffNanos(int attempt) {
+        final long backoff = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+    }
+
+    // written to a temporary file first, so a crash never leaves a partially written checkpoint behind
+    private void writeCheckpoint(long checkpoint) throws IOException {
+        final Path temp = directory.resolve(CHECKPOINT + ".tmp");
+        Files.write(temp, ByteBuffer.allocate(Long.BYTES).putLong(checkpoint).array());
+        Files.move(temp, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointSegment = segment(checkpoint);
+    }
+
+    private List<Long> segmentIds() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    // a position is the id of the segment in the upper and the offset within the segment in the lower half
+    private static long position(long segment, int offset) {
+        return segment << 32 | offset;
+    }
+
+    private static long segment(long position) {
+        return position >>> 32;
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private Segment(long id, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        // the mapping stays valid after closing the channel, it is released once the buffer is garbage collected
+        private static Segment open(Path path, long id, int size, boolean write) throws IOException {
+            final FileChannel channel = write
+                    ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(path, StandardOpenOption.READ);
+            return new Segment(id, path, channel, channel.map(write ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    public static Builder newBuilder(ElasticsearchClient client, Renderer renderer, Parser parser, Path directory) {
+        return new Builder(client, renderer, parser, directory);
+    }
+
+    public static class Builder {
+
+        private final ElasticsearchClient client;
+        private final Renderer renderer;
+        private final Parser parser;
+        private final Path directory;
+        private int segmentSize = 16 * 1024 * 1024;
+        private int maxSegments = 64;
+        private int maxActions = 1_000;
+        private boolean sync = false;
+        private Duration initialBackoff = Duration.ofMillis(100);
+        private Duration maxBackoff = Duration.ofSeconds(10);
+
+        public Builder(ElasticsearchClient client, Renderer renderer, Parser parser, Path directory) {
+            this.client = client;
+            this.renderer = renderer;
+            this.parser = parser;
+            this.directory = directory;
+        }
+
+        public Builder withSegmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        // appending fails once the persons that have not been shipped yet fill this many segments
+        public Builder withMaxSegments(int maxSegments) {
+            this.maxSegments = maxSegments;
+            return this;
+        }
+
+        public Builder withMaxActions(int maxActions) {
+            this.maxActions = maxActions;
+            return this;
+        }
+
+        /**
+         * Forces every appended person to disk before returning. Without it a person survives a crash of the
+         * app, as it is in the page cache already, but not a crash of the operating system.
+         */
+        public Builder withSync(boolean sync) {
+            this.sync = sync;
+            return this;
+        }
+
+        public Builder withBackoff(Duration initialBackoff, Duration maxBackoff) {
+            this.initialBackoff = initialBackoff;
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        public Spool build() throws IOException {
+            return new Spool(client, renderer, parser, directory, segmentSize, maxSegments, maxActions, sync, initialBackoff, maxBackoff);
+        }
+    }
+}
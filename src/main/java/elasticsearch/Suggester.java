@@ -0,0 +1,249 @@
+package elasticsearch;
+
+import model.Person;
+import model.Suggestion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Typeahead over the first names, last names and employers of all persons, answered from memory without
+ * a request to Elasticsearch. The values are kept in a radix tree, a trie whose nodes with a single child
+ * are merged into one edge, keyed by the lower cased value. Every node knows the highest count below it,
+ * so the most frequent values of a prefix are found without visiting the whole subtree.
+ *
+ * Persons are only ever added, the counts do not go down if a person is changed or deleted.
+ */
+public class Suggester implements ElasticsearchClient.IndexListener {
+
+    public static final int MAX_SIZE = 100;
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final class Node {
+        // the characters of the edge from the parent to this node
+        private String label;
+        // sorted by the first character of their label, which is unique per node
+        private Node[] children = NO_CHILDREN;
+        // the value as first seen, if a value ends at this node
+        private String text;
+        private long count;
+        // the highest count of this node and all nodes below
+        private long maxCount;
+
+        private Node(String label) {
+            this.label = label;
+        }
+    }
+
+    // a candidate while searching, either a node still to expand or a value ready to be returned
+    private record Candidate(Node node, boolean value, long count, long sequence) {
+    }
+
+    private final Node root = new Node("");
+    // suggestions are requested on every keystroke, indexing is comparatively rare
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int size = 0;
+
+    /**
+     * Adds all persons of the index, returns the number of persons read
+     */
+    public long load(Exporter exporter) throws IOException, InterruptedException {
+        return exporter.export(this::add);
+    }
+
+    @Override
+    public void onIndexed(List<Person> persons) {
+        lock.writeLock().lock();
+        try {
+            for (Person person : persons) {
+                addPerson(person);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void add(Person person) {
+        lock.writeLock().lock();
+        try {
+            addPerson(person);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The values starting with the prefix, ignoring case, by number of persons descending
+     */
+    public List<Suggestion> suggest(String prefix, int size) {
+        if (size < 1 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("size must be between 1 and " + MAX_SIZE);
+        }
+        final String key = prefix.toLowerCase(Locale.ROOT);
+        lock.readLock().lock();
+        try {
+            final Node node = find(key);
+            return node != null ? top(node, size) : List.of();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Number of distinct values
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void addPerson(Person person) {
+        addValue(person.firstName());
+        addValue(person.lastName());
+        addValue(person.employer());
+    }
+
+    private void addValue(String value) {
+        if (value == null || value.isBlank()) {
+            return;
+        }
+        final String text = value.strip();
+        add(root, text.toLowerCase(Locale.ROOT), 0, text);
+    }
+
+    // returns the new count of the value, so every node on the way back up can update its max count
+    private long add(Node node, String key, int pos, String text) {
+        final long count;
+        if (pos == key.length()) {
+            if (node.count++ == 0) {
+                node.text = text;
+                size++;
+            }
+            count = node.count;
+        } else {
+            final int index = childIndex(node, key.charAt(pos));
+            if (index < 0) {
+                final Node leaf = new Node(key.substring(pos));
+                leaf.text = text;
+                leaf.count = 1;
+                leaf.maxCount = 1;
+                insertChild(node, -(index + 1), leaf);
+                size++;
+                count = 1;
+            } else {
+                Node child = node.children[index];
+                final int common = commonPrefixLength(child.label, key, pos);
+                if (common < child.label.length()) {
+                    // the key leaves the edge in the middle, so the edge is split in two
+                    final Node middle = new Node(child.label.substring(0, common));
+                    child.label = child.label.substring(common);
+                    middle.children = new Node[] { child };
+                    middle.maxCount = child.maxCount;
+                    node.children[index] = middle;
+                    child = middle;
+                }
+                count = add(child, key, pos + common, text);
+            }
+        }
+        node.maxCount = Math.max(node.maxCount, count);
+        return count;
+    }
+
+    // the node of the subtree containing all values with the prefix, the prefix may end within its label
+    private Node find(String prefix) {
+        Node node = root;
+        int pos = 0;
+        while (pos < prefix.length()) {
+            final int index = childIndex(node, prefix.charAt(pos));
+            if (index < 0) {
+                return null;
+            }
+            final Node child = node.children[index];
+            final int common = commonPrefixLength(child.label, prefix, pos);
+            if (pos + common == prefix.length()) {
+                return child;
+            }
+            if (common < child.label.length()) {
+                return null;
+            }
+            pos += common;
+            node = child;
+        }
+        return node;
+    }
+
+    // best first search, a value is returned once no node with a higher count is left to expand
+    private List<Suggestion> top(Node start, int size) {
+        final PriorityQueue<Candidate> queue = new PriorityQueue<>((a, b) -> {
+            if (a.count != b.count) {
+                return Long.compare(b.count, a.count);
+            }
+            if (a.value != b.value) {
+                return a.value ? -1 : 1;
+            }
+            return Long.compare(a.sequence, b.sequence);
+        });
+        long sequence = 0;
+        queue.add(new Candidate(start, false, start.maxCount, sequence++));
+        final List<Suggestion> suggestions = new ArrayList<>(size);
+        while (suggestions.size() < size && !queue.isEmpty()) {
+            final Candidate candidate = queue.poll();
+            final Node node = candidate.node;
+            if (candidate.value) {
+                suggestions.add(new Suggestion(node.text, node.count));
+                continue;
+            }
+            if (node.count > 0) {
+                queue.add(new Candidate(node, true, node.count, sequence++));
+            }
+            for (Node child : node.children) {
+                queue.add(new Candidate(child, false, child.maxCount, sequence++));
+            }
+        }
+        return suggestions;
+    }
+
+    private static int childIndex(Node node, char c) {
+        int low = 0;
+        int high = node.children.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char midChar = node.children[mid].label.charAt(0);
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static void insertChild(Node node, int index, Node child) {
+        final Node[] children = new Node[node.children.length + 1];
+        System.arraycopy(node.children, 0, children, 0, index);
+        children[index] = child;
+        System.arraycopy(node.children, index, children, index + 1, node.children.length - index);
+        node.children = children;
+    }
+
+    private static int commonPrefixLength(String label, String key, int pos) {
+        final int max = Math.min(label.length(), key.length() - pos);
+        int i = 0;
+        while (i < max && label.charAt(i) == key.charAt(pos + i)) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,146 @@
+package elasticsearch;
+
+import model.SearchResponse;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Where the time of a single search went, from rendering the request to rendering the response for the
+ * client. Stages are recorded by whoever runs them, a stage that never ran stays at zero, i.e. for searches
+ * answered by an identical search already in flight. Time not spent in any stage, like waiting for a
+ * concurrency limit, is reported as other.
+ *
+ * The trace continues the W3C trace context of the incoming request, or starts a new one. The request to
+ * Elasticsearch is a child span, whose traceparent is sent as X-Opaque-Id, so it shows up in the slow logs
+ * and tasks of Elasticsearch. Not thread safe, stages must not be recorded concurrently.
+ */
+public final class Trace {
+
+    public enum Stage {
+        // rendering the search template
+        RENDER_REQUEST,
+        // from sending the request to having read the whole response, includes the took of elasticsearch
+        SEND,
+        // parsing the response of elasticsearch
+        PARSE_RESPONSE,
+        // rendering the hits for the client
+        RENDER_RESPONSE
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Pattern TRACEPARENT = Pattern.compile("00-([0-9a-f]{32})-[0-9a-f]{16}-([0-9a-f]{2})");
+    private static final String INVALID_TRACE_ID = "0".repeat(32);
+
+    private final String traceId;
+    private final String flags;
+    private final String spanId;
+    private final long startNanos = System.nanoTime();
+    private final long[] stageNanos = new long[STAGES.length];
+    private long took = -1;
+    private boolean timedOut = false;
+
+    private Trace(String traceId, String flags) {
+        this.traceId = traceId;
+        this.flags = flags;
+        this.spanId = randomHex(1);
+    }
+
+    /**
+     * Starts a trace as part of the given traceparent header, a missing or invalid header starts a new trace
+     */
+    public static Trace start(String traceparent) {
+        if (traceparent != null) {
+            final Matcher matcher = TRACEPARENT.matcher(traceparent.trim().toLowerCase(Locale.ROOT));
+            if (matcher.matches() && !INVALID_TRACE_ID.equals(matcher.group(1))) {
+                return new Trace(matcher.group(1), matcher.group(2));
+            }
+        }
+        return new Trace(randomHex(2), "01");
+    }
+
+    /**
+     * Adds the time since startNanos to the stage and returns the current time, so it can be used
+     * as start of the next stage
+     */
+    public long record(Stage stage, long startNanos) {
+        final long now = System.nanoTime();
+        stageNanos[stage.ordinal()] += now - startNanos;
+        return now;
+    }
+
+    public long nanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    // the time elasticsearch reported for executing the search, which is part of sending it
+    void elasticsearch(SearchResponse response) {
+        this.took = response.took();
+        this.timedOut = response.timedOut();
+    }
+
+    /**
+     * Milliseconds elasticsearch took according to its response, -1 if there was no response
+     */
+    public long took() {
+        return took;
+    }
+
+    public boolean timedOut() {
+        return timedOut;
+    }
+
+    public long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public String traceId() {
+        return traceId;
+    }
+
+    /**
+     * The traceparent of the request to elasticsearch
+     */
+    public String traceparent() {
+        return "00-" + traceId + "-" + spanId + "-" + flags;
+    }
+
+    @Override
+    public String toString() {
+        final long elapsed = elapsedNanos();
+        final StringBuilder builder = new StringBuilder("trace_id=").append(traceId)
+                .append(" total=").append(millis(elapsed)).append("ms");
+        long other = elapsed;
+        for (Stage stage : STAGES) {
+            builder.append(' ').append(stage.name().toLowerCase(Locale.ROOT)).append('=').append(millis(stageNanos[stage.ordinal()])).append("ms");
+            other -= stageNanos[stage.ordinal()];
+        }
+        builder.append(" other=").append(millis(other)).append("ms");
+        builder.append(" took=").append(took).append("ms");
+        if (timedOut) {
+            builder.append(" timed_out=true");
+        }
+        return builder.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    // the ids must not be all zeros
+    private static String randomHex(int longs) {
+        final StringBuilder builder = new StringBuilder(longs * 16);
+        for (int i = 0; i < longs; i++) {
+            long value = 0;
+            while (value == 0) {
+                value = ThreadLocalRandom.current().nextLong();
+            }
+            final String hex = Long.toHexString(value);
+            builder.append("0".repeat(16 - hex.length())).append(hex);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,93 @@
+package elasticsearch;
+
+import gg.jte.TemplateOutput;
+
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * A template output, that encodes everything as UTF-8 straight into a pooled byte array. User content is
+ * JSON escaped while being encoded, so no intermediate strings are created.
+ */
+final class Utf8Output extends PooledOutput implements TemplateOutput {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private Writer writer;
+
+    Utf8Output() {
+        super(INITIAL_CAPACITY);
+    }
+
+    @Override
+    public void writeContent(String value) {
+        encode(value, false);
+    }
+
+    @Override
+    public void writeUserContent(String value) {
+        if (value != null) {
+            encode(value, true);
+        }
+    }
+
+    @Override
+    public Writer getWriter() {
+        if (writer == null) {
+            writer = new Writer() {
+                @Override
+                public void write(char[] chars, int offset, int length) {
+                    encode(CharBuffer.wrap(chars, offset, length), false);
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+        return writer;
+    }
+
+    private void encode(CharSequence value, boolean escape) {
+        final int length = value.length();
+        // every char takes at most three bytes, surrogate pairs take four bytes for two chars
+        ensureCapacity(count + length * 3);
+        for (int i = 0; i < length; i++) {
+            final char ch = value.charAt(i);
+            if (escape) {
+                final char[] replacement = Renderer.getReplacementChars(ch);
+                if (replacement != null) {
+                    ensureCapacity(count + replacement.length + (length - i) * 3);
+                    for (char c : replacement) {
+                        buffer[count++] = (byte) c;
+                    }
+                    continue;
+                }
+            }
+
+            if (ch < 0x80) {
+                buffer[count++] = (byte) ch;
+            } else if (ch < 0x800) {
+                buffer[count++] = (byte) (0xc0 | (ch >> 6));
+                buffer[count++] = (byte) (0x80 | (ch & 0x3f));
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+                buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(ch)) {
+                // unpaired surrogate, same replacement as String.getBytes()
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xe0 | (ch >> 12));
+                buffer[count++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (ch & 0x3f));
+            }
+        }
+    }
+}
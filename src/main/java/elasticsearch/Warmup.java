@@ -0,0 +1,133 @@
+package elasticsearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import model.Person;
+import model.SearchResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs searches, index and bulk requests against a local stub of Elasticsearch before the app accepts
+ * requests. This loads the classes of Jackson, the HTTP client and the generated templates, and gets the
+ * hot paths of rendering and parsing compiled, so the first requests after a start are not the slowest.
+ */
+public class Warmup {
+
+    private static final int HITS = 10;
+
+    private final Renderer renderer;
+    private final Parser parser;
+    private final int iterations;
+
+    private Warmup(Renderer renderer, Parser parser, int iterations) {
+        this.renderer = renderer;
+        this.parser = parser;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Returns how long the warmup took
+     */
+    public Duration run() throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final HttpServer stub = startStub();
+        final InetSocketAddress address = stub.getAddress();
+        // the metrics of the warmup must not show up next to the ones of real requests
+        try (ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser)
+                .withUri("http://" + address.getHostString() + ":" + address.getPort())
+                .withMeterRegistry(new SimpleMeterRegistry())
+                .build()) {
+            for (int i = 0; i < iterations; i++) {
+                final String query = "first " + (i % 10);
+                final SearchResponse response = client.search("search", query);
+                renderer.searchResponse(response);
+                renderer.searchResponse(client.searchAsync("search", query).get());
+                client.searchStreaming("search", query, OutputStream.nullOutputStream());
+
+                // the same steps as a person sent to the app
+                final Person person = parser.toPerson(renderer.person(response.hits().get(i % HITS).person()));
+                if (i % 10 == 0) {
+                    client.index(person);
+                    client.bulk(List.of(person, person));
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Error during warmup", e.getCause());
+        } finally {
+            stub.stop(0);
+        }
+        return Duration.ofNanos(System.nanoTime() - start);
+    }
+
+    private static HttpServer startStub() throws IOException {
+        // without it every response waits for the delayed ack of the client, read once when the first server is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        final HttpServer stub = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        final byte[] searchResponse = searchResponse();
+        stub.createContext("/persons/_search", exchange -> respond(exchange, 200, searchResponse));
+        stub.createContext("/persons/_doc/", exchange -> respond(exchange, 201, "{\"result\":\"created\"}".getBytes(StandardCharsets.UTF_8)));
+        stub.createContext("/persons/_bulk", exchange -> respond(exchange, 200, """
+                {"took":1,"errors":false,"items":[{"index":{"_id":"1","status":201}},{"index":{"_id":"2","status":201}}]}"""
+                .getBytes(StandardCharsets.UTF_8)));
+        stub.start();
+        return stub;
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        // read the request, so the connection can be reused
+        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+
+    private static byte[] searchResponse() {
+        final List<String> hits = new ArrayList<>(HITS);
+        for (int i = 0; i < HITS; i++) {
+            hits.add("""
+                    {"_index":"persons","_id":"%d","_score":1.0,"_source":{"name":{"first":"first %d","last":"last %d"},"employer":"Elastic"}}"""
+                    .formatted(i, i, i));
+        }
+        return ("{\"took\":1,\"timed_out\":false,\"hits\":{\"total\":{\"value\":" + HITS + ",\"relation\":\"eq\"},\"hits\":["
+                + String.join(",", hits) + "]}}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static Builder newBuilder(Renderer renderer, Parser parser) {
+        return new Builder(renderer, parser);
+    }
+
+    public static class Builder {
+
+        private final Renderer renderer;
+        private final Parser parser;
+        // enough for the JIT to compile rendering and parsing, while keeping the startup short
+        private int iterations = 250;
+
+        public Builder(Renderer renderer, Parser parser) {
+            this.renderer = renderer;
+            this.parser = parser;
+        }
+
+        public Builder withIterations(int iterations) {
+            this.iterations = iterations;
+            return this;
+        }
+
+        public Warmup build() {
+            return new Warmup(renderer, parser, iterations);
+        }
+    }
+}
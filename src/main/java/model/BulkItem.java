@@ -0,0 +1,8 @@
+package model;
+
+public record BulkItem(String id, int status, String error) {
+
+    public boolean failed() {
+        return error != null;
+    }
+}
@@ -0,0 +1,8 @@
+package model;
+
+public record ImportSummary(long indexed, long failed, long tookMillis) {
+
+    public double personsPerSecond() {
+        return tookMillis > 0 ? (indexed + failed) * 1000.0 / tookMillis : 0;
+    }
+}
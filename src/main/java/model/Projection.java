@@ -0,0 +1,45 @@
+package model;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The fields of a person a search returns. Elasticsearch only returns these fields of the source of every
+ * hit, and only these fields are rendered for the client. Fields left out are empty strings in the hits.
+ */
+public enum Projection {
+
+    // all fields the parser reads
+    PERSON(List.of("name.first", "name.last", "employer")),
+    // first and last name only
+    NAMES(List.of("name.first", "name.last"));
+
+    private final List<String> fields;
+
+    Projection(List<String> fields) {
+        this.fields = fields;
+    }
+
+    public List<String> fields() {
+        return fields;
+    }
+
+    public boolean includes(String field) {
+        return fields.contains(field);
+    }
+
+    /**
+     * Returns the projection by its case insensitive name, all fields if the name is null
+     */
+    public static Projection parse(String name) {
+        if (name == null) {
+            return PERSON;
+        }
+        for (Projection projection : values()) {
+            if (projection.name().equalsIgnoreCase(name)) {
+                return projection;
+            }
+        }
+        throw new IllegalArgumentException("Invalid projection [" + name + "], must be one of " + List.of(values()).toString().toLowerCase(Locale.ROOT));
+    }
+}
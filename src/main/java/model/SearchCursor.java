@@ -0,0 +1,105 @@
+package model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Position of a deep pagination through the results of a query, by using search_after on a point
+ * in time. The cursor is handed out to clients as opaque token, see {@link #encode()}.
+ *
+ * A cursor without point in time id starts at the first page, sortValues are the sort values of
+ * the last hit of the previous page.
+ */
+public record SearchCursor(String query, int size, String pitId, List<Number> sortValues) {
+
+    private static final byte VERSION = 2;
+    // the max result window of elasticsearch
+    private static final int MAX_SIZE = 10_000;
+    // types of the sort values in a token
+    private static final byte LONG = 'L';
+    private static final byte DOUBLE = 'D';
+
+    // cursors are decoded from tokens sent by clients, so they are validated before any point in time is opened
+    public SearchCursor {
+        if (query == null) {
+            throw new IllegalArgumentException("query must be set");
+        }
+        if (size < 1 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("size must be between 1 and " + MAX_SIZE);
+        }
+        if (sortValues != null) {
+            if (sortValues.isEmpty()) {
+                throw new IllegalArgumentException("sort values must not be empty");
+            }
+            for (Number value : sortValues) {
+                if (!(value instanceof Long) && !(value instanceof Double && Double.isFinite(value.doubleValue()))) {
+                    throw new IllegalArgumentException("sort values must be longs or finite doubles");
+                }
+            }
+            sortValues = List.copyOf(sortValues);
+        }
+    }
+
+    public static SearchCursor first(String query, int size) {
+        return new SearchCursor(query, size, null, null);
+    }
+
+    public String encode() {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeByte(VERSION);
+            out.writeUTF(query);
+            out.writeInt(size);
+            out.writeUTF(pitId != null ? pitId : "");
+            out.writeInt(sortValues != null ? sortValues.size() : 0);
+            if (sortValues != null) {
+                for (Number value : sortValues) {
+                    if (value instanceof Long) {
+                        out.writeByte(LONG);
+                        out.writeLong(value.longValue());
+                    } else {
+                        out.writeByte(DOUBLE);
+                        out.writeDouble(value.doubleValue());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bos.toByteArray());
+    }
+
+    public static SearchCursor decode(String token) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            if (in.readByte() != VERSION) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            final String query = in.readUTF();
+            final int size = in.readInt();
+            final String pitId = in.readUTF();
+            final int count = in.readInt();
+            // the score and the shard doc of the last hit
+            if (count < 0 || count > 2) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+            final List<Number> sortValues = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                switch (in.readByte()) {
+                    case LONG -> sortValues.add(in.readLong());
+                    case DOUBLE -> sortValues.add(in.readDouble());
+                    default -> throw new IllegalArgumentException("Invalid cursor");
+                }
+            }
+            return new SearchCursor(query, size, pitId.isEmpty() ? null : pitId, count == 0 ? null : sortValues);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+}
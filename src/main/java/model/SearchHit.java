@@ -1,4 +1,11 @@
 package model;
 
-public record SearchHit(String index, String id, float score, Person person) {
+import java.util.List;
+
+// the sort values are only returned by sorted searches, integers are longs and decimals doubles
+public record SearchHit(String index, String id, float score, Person person, List<Number> sort) {
+
+    public SearchHit(String index, String id, float score, Person person) {
+        this(index, id, score, person, null);
+    }
 }
@@ -0,0 +1,5 @@
+package model;
+
+// next is null on the last page
+public record SearchPage(SearchResponse response, SearchCursor next) {
+}
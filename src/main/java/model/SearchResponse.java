@@ -2,5 +2,14 @@ package model;
 
 import java.util.List;
 
-public record SearchResponse(List<SearchHit> hits) {
+// the point in time id is only set when searching a point in time, took is -1 if elasticsearch did not report it
+public record SearchResponse(List<SearchHit> hits, String pitId, long took, boolean timedOut) {
+
+    public SearchResponse(List<SearchHit> hits) {
+        this(hits, null);
+    }
+
+    public SearchResponse(List<SearchHit> hits, String pitId) {
+        this(hits, pitId, -1, false);
+    }
 }
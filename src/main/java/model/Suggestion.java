@@ -0,0 +1,4 @@
+package model;
+
+public record Suggestion(String text, long count) {
+}
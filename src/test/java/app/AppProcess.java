@@ -0,0 +1,30 @@
+package app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line of the app as a separate process. Uses the shadow jar passed by the loadTest gradle task,
+ * or the test classpath when run without it.
+ */
+final class AppProcess {
+
+    private AppProcess() {
+    }
+
+    static ProcessBuilder create(List<String> jvmArgs) {
+        final List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(jvmArgs);
+        final String jar = System.getProperty("startup.jar");
+        if (jar != null) {
+            command.add("-jar");
+            command.add(jar);
+        } else {
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(App.class.getName());
+        }
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD);
+    }
+}
@@ -0,0 +1,124 @@
+package app;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.shaded.com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Starts the app as a separate process against a stub Elasticsearch and measures the time until the
+ * first successful search, as well as how long that search took. Run by the loadTest gradle task,
+ * which passes the shadow jar and its class data sharing archive.
+ */
+@Tag("load")
+public class StartupLoadTests {
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static HttpServer httpServer;
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+
+    private record Startup(long firstSearchMillis, long firstSearchLatencyMillis) {
+    }
+
+    @BeforeAll
+    public static void startWebserver() throws Exception {
+        // otherwise every response of the stub waits for the delayed ack of the client
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        httpServer = HttpServer.create();
+        httpServer.bind(new InetSocketAddress(Inet4Address.getLocalHost(), 0), 0);
+        httpServer.createContext("/persons/_search", exchange -> {
+            final byte[] response = """
+                    {"hits":{"total":{"value":1,"relation":"eq"},"hits":[{"_index":"persons","_id":"1","_score":1.0,
+                    "_source":{"name":{"first":"first","last":"last"},"employer":"employer"}}]}}""".getBytes(Charsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        httpServer.start();
+    }
+
+    @AfterAll
+    public static void stopWebserver() {
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void testColdStart() throws Exception {
+        print("cold start", measure(false, false));
+    }
+
+    @Test
+    public void testWarmup() throws Exception {
+        print("warmup", measure(true, false));
+    }
+
+    @Test
+    public void testClassDataSharing() throws Exception {
+        print("class data sharing", measure(false, true));
+        print("class data sharing and warmup", measure(true, true));
+    }
+
+    private void print(String mode, Startup startup) {
+        System.out.printf("%s: first search after %dms, took %dms%n", mode, startup.firstSearchMillis(), startup.firstSearchLatencyMillis());
+    }
+
+    private Startup measure(boolean warmup, boolean classDataSharing) throws Exception {
+        final List<String> jvmArgs = new ArrayList<>();
+        if (classDataSharing) {
+            final String archive = System.getProperty("startup.archive");
+            assumeTrue(System.getProperty("startup.jar") != null && archive != null && new File(archive).exists(), "requires the archive of ./gradlew appCds");
+            jvmArgs.add("-XX:SharedArchiveFile=" + archive);
+        }
+
+        final ProcessBuilder processBuilder = AppProcess.create(jvmArgs);
+        final InetSocketAddress address = httpServer.getAddress();
+        processBuilder.environment().put("ELASTICSEARCH_URL", "http://" + address.getHostName() + ":" + address.getPort());
+        processBuilder.environment().put("APP_WARMUP", String.valueOf(warmup));
+
+        final long start = System.nanoTime();
+        final Process process = processBuilder.start();
+        try {
+            final HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:7000/search?q=first")).build();
+            while (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < TIMEOUT_MILLIS) {
+                assertThat(process.isAlive()).isTrue();
+                final long requestStart = System.nanoTime();
+                try {
+                    final HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                    // routes are added after the server has been started
+                    if (response.statusCode() == 200) {
+                        final long end = System.nanoTime();
+                        assertThat(response.body()).contains("first");
+                        return new Startup(TimeUnit.NANOSECONDS.toMillis(end - start), TimeUnit.NANOSECONDS.toMillis(end - requestStart));
+                    }
+                } catch (ConnectException e) {
+                    // not listening yet
+                }
+                Thread.sleep(10);
+            }
+            throw new IOException("app did not answer a search within " + TIMEOUT_MILLIS + "ms");
+        } finally {
+            process.destroy();
+            process.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package app;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.shaded.com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Starts the app as a separate process against a slow stub Elasticsearch, once with the default
+ * platform threads and once with APP_VIRTUAL_THREADS, and sends the same number of concurrent
+ * searches through jetty in both modes.
+ */
+@Tag("load")
+public class ThreadingModeLoadTests {
+
+    // the default max threads of the jetty thread pool
+    private static final int JETTY_THREADS = 200;
+    // twice the jetty threads, while keeping the sockets of the stub and the load generator below common file limits
+    private static final int REQUESTS = 400;
+    private static final long SEARCH_DELAY_MILLIS = 1000;
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static HttpServer httpServer;
+    private static ExecutorService serverExecutor;
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+
+    @BeforeAll
+    public static void startWebserver() throws Exception {
+        // by default the stub closes all but 200 idle connections, which the app might just be about to reuse
+        System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(REQUESTS));
+        httpServer = HttpServer.create();
+        httpServer.bind(new InetSocketAddress(Inet4Address.getLocalHost(), 0), REQUESTS);
+        // the stub must not be the bottleneck, so every request gets its own thread
+        serverExecutor = Executors.newCachedThreadPool();
+        httpServer.setExecutor(serverExecutor);
+        httpServer.createContext("/persons/_search", exchange -> {
+            try {
+                Thread.sleep(SEARCH_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final byte[] response = """
+                    {"hits":{"total":{"value":1,"relation":"eq"},"hits":[{"_index":"persons","_id":"1","_score":1.0,
+                    "_source":{"name":{"first":"first","last":"last"},"employer":"employer"}}]}}""".getBytes(Charsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        httpServer.start();
+    }
+
+    @AfterAll
+    public static void stopWebserver() {
+        httpServer.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testPlatformThreads() throws Exception {
+        final long tookMillis = runSearches(false);
+        System.out.printf("platform threads: %d searches in %dms%n", REQUESTS, tookMillis);
+        // handlers wait for elasticsearch asynchronously, otherwise searches would queue for the jetty threads
+        assertThat(tookMillis).isLessThan(REQUESTS / JETTY_THREADS * SEARCH_DELAY_MILLIS);
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        final long tookMillis = runSearches(true);
+        System.out.printf("virtual threads: %d searches in %dms%n", REQUESTS, tookMillis);
+        // handlers block, but every request has its own virtual thread
+        assertThat(tookMillis).isLessThan(REQUESTS / JETTY_THREADS * SEARCH_DELAY_MILLIS);
+    }
+
+    private long runSearches(boolean virtualThreads) throws Exception {
+        final ProcessBuilder processBuilder = AppProcess.create(List.of());
+        final InetSocketAddress address = httpServer.getAddress();
+        processBuilder.environment().put("ELASTICSEARCH_URL", "http://" + address.getHostName() + ":" + address.getPort());
+        processBuilder.environment().put("APP_VIRTUAL_THREADS", String.valueOf(virtualThreads));
+
+        final Process process = processBuilder.start();
+        try {
+            final HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:7000/search?q=first")).build();
+            // also warms up connections and code paths before measuring
+            awaitSearch(process, request);
+
+            final long start = System.nanoTime();
+            final List<CompletableFuture<HttpResponse<String>>> futures = new ArrayList<>(REQUESTS);
+            for (int i = 0; i < REQUESTS; i++) {
+                futures.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+            }
+            for (CompletableFuture<HttpResponse<String>> future : futures) {
+                final HttpResponse<String> response = future.get(1, TimeUnit.MINUTES);
+                assertThat(response.statusCode()).isEqualTo(200);
+                assertThat(response.body()).contains("first");
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            process.destroy();
+            // the next mode uses the same port
+            process.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private void awaitSearch(Process process, HttpRequest request) throws Exception {
+        final long start = System.nanoTime();
+        while (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < TIMEOUT_MILLIS) {
+            assertThat(process.isAlive()).isTrue();
+            try {
+                // routes are added after the server has been started
+                if (httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return;
+                }
+            } catch (ConnectException e) {
+                // not listening yet
+            }
+            Thread.sleep(10);
+        }
+        throw new IOException("app did not answer a search within " + TIMEOUT_MILLIS + "ms");
+    }
+}
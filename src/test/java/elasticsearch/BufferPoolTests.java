@@ -0,0 +1,116 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.util.BufferRecycler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BufferPoolTests {
+
+    @Test
+    public void testSizeClasses() {
+        final BufferPool pool = new BufferPool(64 * 1024, 64 * 1024);
+        assertThat(pool.bytes(0)).hasSize(256);
+        assertThat(pool.bytes(256)).hasSize(256);
+        assertThat(pool.bytes(257)).hasSize(512);
+        assertThat(pool.bytes(8000)).hasSize(8192);
+        assertThat(pool.chars(4000)).hasSize(4096);
+        // larger buffers are allocated with the exact size
+        assertThat(pool.bytes(64 * 1024 + 1)).hasSize(64 * 1024 + 1);
+    }
+
+    @Test
+    public void testReleasedBuffersAreReused() {
+        final BufferPool pool = new BufferPool(64 * 1024, 64 * 1024);
+        final byte[] bytes = pool.bytes(1000);
+        pool.release(bytes);
+        assertThat(pool.bytes(1000)).isSameAs(bytes);
+        // the pool is empty again
+        assertThat(pool.bytes(1000)).isNotSameAs(bytes);
+
+        final char[] chars = pool.chars(1000);
+        pool.release(chars);
+        assertThat(pool.chars(600)).isSameAs(chars);
+    }
+
+    @Test
+    public void testRetainedBuffersAreBounded() {
+        // room for two buffers of 32KB
+        final BufferPool pool = new BufferPool(64 * 1024, 64 * 1024);
+        final byte[] first = pool.bytes(32 * 1024);
+        final byte[] second = pool.bytes(32 * 1024);
+        final byte[] third = pool.bytes(32 * 1024);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertThat(pool.bytes(32 * 1024)).isSameAs(first);
+        assertThat(pool.bytes(32 * 1024)).isSameAs(second);
+        assertThat(pool.bytes(32 * 1024)).isNotSameAs(third);
+    }
+
+    @Test
+    public void testForeignBuffersAreNotPooled() {
+        final BufferPool pool = new BufferPool(64 * 1024, 64 * 1024);
+        final byte[] odd = new byte[1000];
+        final byte[] huge = new byte[128 * 1024];
+        pool.release(odd);
+        pool.release(huge);
+        pool.release((byte[]) null);
+        assertThat(pool.bytes(1000)).hasSize(1024);
+        assertThat(pool.bytes(128 * 1024)).isNotSameAs(huge);
+    }
+
+    @Test
+    public void testInvalidMaxBufferSize() {
+        assertThatThrownBy(() -> new BufferPool(1000, 64 * 1024)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new BufferPool(128, 64 * 1024)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testPooledOutput() {
+        final BufferPool pool = new BufferPool(64 * 1024, 64 * 1024);
+        final PooledOutput output = new PooledOutput(pool, 256);
+        final byte[] initial = output.buffer;
+        for (int i = 0; i < 1000; i++) {
+            output.write('a' + i % 26);
+        }
+        output.write(ByteBuffer.wrap("end".getBytes(StandardCharsets.UTF_8)));
+        assertThat(output.size()).isEqualTo(1003);
+        assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8)).startsWith("abc").endsWith("xyzabcdefghijklend");
+
+        // the outgrown buffer went back to the pool already, the current one once closed
+        assertThat(pool.bytes(256)).isSameAs(initial);
+        final byte[] current = output.buffer;
+        output.close();
+        output.close();
+        assertThat(pool.bytes(1003)).isSameAs(current);
+        assertThat(pool.bytes(1003)).isNotSameAs(current);
+    }
+
+    @Test
+    public void testJacksonBuffersArePooled() throws Exception {
+        final BufferPool pool = new BufferPool(64 * 1024, 64 * 1024);
+        final JsonFactory factory = pool.jsonFactory(new ObjectMapper());
+        // shared by all threads, instead of one per thread
+        assertThat(factory._getBufferRecycler()).isSameAs(factory._getBufferRecycler());
+
+        final byte[] json = "{\"name\":\"value\"}".getBytes(StandardCharsets.UTF_8);
+        try (JsonParser parser = factory.createParser(new ByteArrayInputStream(json))) {
+            while (parser.nextToken() != null) {
+                parser.getText();
+            }
+        }
+        // the read buffer of the parser went back to the pool
+        final byte[] readBuffer = pool.bytes(8000);
+        pool.release(readBuffer);
+        assertThat(factory._getBufferRecycler().allocByteBuffer(BufferRecycler.BYTE_READ_IO_BUFFER)).isSameAs(readBuffer);
+    }
+}
@@ -0,0 +1,193 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import model.BulkItem;
+import model.Person;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.shaded.com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BulkIndexerTests {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Renderer renderer = new Renderer(mapper);
+    private static final Parser parser = new Parser(mapper);
+
+    private HttpServer httpServer;
+    private final List<String> bulkBodies = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void startWebserver() throws Exception {
+        httpServer = HttpServer.create();
+        httpServer.bind(new InetSocketAddress(Inet4Address.getLocalHost(), 0), 0);
+        httpServer.start();
+    }
+
+    @AfterEach
+    public void stopWebserver() {
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void testFlushOnMaxActions() throws Exception {
+        respondWith(lines -> bulkResponse(lines, 201));
+        try (BulkIndexer indexer = createIndexer().withMaxActions(2).withMaxLatency(Duration.ofMinutes(1)).build()) {
+            final CompletableFuture<BulkItem> first = indexer.add(new Person("first", "last", "employer"));
+            final CompletableFuture<BulkItem> second = indexer.add(new Person("2nd", "2nd last", "2nd employer"));
+
+            assertThat(second.get(5, TimeUnit.SECONDS).status()).isEqualTo(201);
+            assertThat(first.get().failed()).isFalse();
+        }
+
+        assertThat(bulkBodies).hasSize(1);
+        assertThat(bulkBodies.get(0)).isEqualTo("""
+                {"index":{}}
+                { "name" : { "first" : "first", "last" : "last" }, "employer" : "employer" }
+                {"index":{}}
+                { "name" : { "first" : "2nd", "last" : "2nd last" }, "employer" : "2nd employer" }
+                """);
+    }
+
+    @Test
+    public void testFlushOnMaxLatency() throws Exception {
+        respondWith(lines -> bulkResponse(lines, 201));
+        try (BulkIndexer indexer = createIndexer().withMaxLatency(Duration.ofMillis(50)).build()) {
+            final BulkItem item = indexer.add(new Person("first", "last", "employer")).get(5, TimeUnit.SECONDS);
+            assertThat(item.status()).isEqualTo(201);
+        }
+        assertThat(bulkBodies).hasSize(1);
+    }
+
+    @Test
+    public void testCloseFlushesQueuedDocuments() throws Exception {
+        respondWith(lines -> bulkResponse(lines, 201));
+        final List<CompletableFuture<BulkItem>> futures = new ArrayList<>();
+        try (BulkIndexer indexer = createIndexer().withMaxLatency(Duration.ofMinutes(1)).build()) {
+            for (int i = 0; i < 10; i++) {
+                futures.add(indexer.add(new Person("first" + i, "last", "employer")));
+            }
+        }
+
+        assertThat(futures).allMatch(future -> future.isDone() && future.join().status() == 201);
+        assertThat(bulkBodies).hasSize(1);
+    }
+
+    @Test
+    public void testAddRacingCloseIsSent() throws Exception {
+        respondWith(lines -> bulkResponse(lines, 201));
+        for (int round = 0; round < 20; round++) {
+            final BulkIndexer indexer = createIndexer().withMaxLatency(Duration.ofMillis(1)).build();
+            final List<CompletableFuture<BulkItem>> futures = new CopyOnWriteArrayList<>();
+            final Thread adder = new Thread(() -> {
+                try {
+                    while (true) {
+                        futures.add(indexer.add(new Person("first", "last", "employer")));
+                    }
+                } catch (IllegalStateException | InterruptedException e) {
+                    // closed
+                }
+            });
+            adder.start();
+            Thread.sleep(5);
+            indexer.close();
+            adder.join(TimeUnit.SECONDS.toMillis(5));
+
+            assertThat(adder.isAlive()).isFalse();
+            // every document accepted before close is sent
+            for (CompletableFuture<BulkItem> future : futures) {
+                assertThat(future.get(5, TimeUnit.SECONDS).status()).isEqualTo(201);
+            }
+        }
+    }
+
+    @Test
+    public void testRejectedItemsAreRetried() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        respondWith(lines -> bulkResponse(lines, requests.getAndIncrement() == 0 ? 429 : 201));
+        try (BulkIndexer indexer = createIndexer().withMaxLatency(Duration.ofMillis(10)).build()) {
+            final BulkItem item = indexer.add(new Person("first", "last", "employer")).get(5, TimeUnit.SECONDS);
+            assertThat(item.status()).isEqualTo(201);
+        }
+        assertThat(bulkBodies).hasSize(2);
+    }
+
+    @Test
+    public void testFailedItemsAreReported() throws Exception {
+        respondWith(lines -> bulkResponse(lines, 400));
+        try (BulkIndexer indexer = createIndexer().withMaxLatency(Duration.ofMillis(10)).build()) {
+            final BulkItem item = indexer.add(new Person("first", "last", "employer")).get(5, TimeUnit.SECONDS);
+            assertThat(item.failed()).isTrue();
+            assertThat(item.status()).isEqualTo(400);
+            assertThat(item.error()).isEqualTo("mapper_parsing_exception: failed to parse");
+        }
+    }
+
+    @Test
+    public void testMissingItemsFailTheBatch() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        respondWith(lines -> bulkResponse(requests.getAndIncrement() == 0 ? lines - 1 : lines, 201));
+        try (BulkIndexer indexer = createIndexer().withMaxActions(2).withMaxLatency(Duration.ofMinutes(1)).build()) {
+            final CompletableFuture<BulkItem> first = indexer.add(new Person("first", "last", "employer"));
+            final CompletableFuture<BulkItem> second = indexer.add(new Person("2nd", "2nd last", "2nd employer"));
+            assertThatThrownBy(() -> second.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IOException.class);
+            assertThat(first).isCompletedExceptionally();
+
+            // the flusher is still running
+            final CompletableFuture<BulkItem> third = indexer.add(new Person("3rd", "3rd last", "3rd employer"));
+            final CompletableFuture<BulkItem> fourth = indexer.add(new Person("4th", "4th last", "4th employer"));
+            assertThat(third.get(5, TimeUnit.SECONDS).status()).isEqualTo(201);
+            assertThat(fourth.get().status()).isEqualTo(201);
+        }
+        assertThat(bulkBodies).hasSize(2);
+    }
+
+    private BulkIndexer.Builder createIndexer() {
+        final InetSocketAddress address = httpServer.getAddress();
+        final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser)
+                .withUri("http://" + address.getHostName() + ":" + address.getPort()).build();
+        return BulkIndexer.newBuilder(client, renderer);
+    }
+
+    private void respondWith(Function<Integer, String> responseForItemCount) {
+        httpServer.createContext("/persons/_bulk", exchange -> {
+            final String body = new String(exchange.getRequestBody().readAllBytes(), Charsets.UTF_8);
+            bulkBodies.add(body);
+            final byte[] response = responseForItemCount.apply(body.split("\n").length / 2).getBytes(Charsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+    }
+
+    private static String bulkResponse(int items, int status) {
+        final StringBuilder builder = new StringBuilder("{\"took\":3,\"errors\":").append(status >= 300).append(",\"items\":[");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) {
+                builder.append(",");
+            }
+            builder.append("{\"index\":{\"_index\":\"persons\",\"_id\":\"").append(i).append("\",\"status\":").append(status);
+            if (status >= 300) {
+                builder.append(",\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}");
+            }
+            builder.append("}}");
+        }
+        return builder.append("]}").toString();
+    }
+}
@@ -0,0 +1,85 @@
+package elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CircuitBreakerTests {
+
+    @Test
+    public void testOpensOnFailureRate() {
+        final CircuitBreaker breaker = new CircuitBreaker("_search", 0.5, Duration.ofMinutes(1));
+        for (int i = 0; i < CircuitBreaker.MIN_REQUESTS - 1; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        // not enough requests to decide yet
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+        breaker.acquire();
+        breaker.onFailure();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThatThrownBy(breaker::acquire)
+                .isInstanceOf(CircuitOpenException.class)
+                .hasMessage("Circuit breaker for _search is open")
+                .satisfies(e -> assertThat(((CircuitOpenException) e).retryAfter()).isPositive());
+        assertThat(breaker.rejected()).isEqualTo(1);
+    }
+
+    @Test
+    public void testStaysClosedBelowFailureRate() {
+        final CircuitBreaker breaker = new CircuitBreaker("_search", 0.5, Duration.ofMinutes(1));
+        for (int i = 0; i < 100; i++) {
+            breaker.acquire();
+            if (i % 3 == 0) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+        }
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testHalfOpenProbe() throws Exception {
+        final CircuitBreaker breaker = open(Duration.ofMillis(50));
+        Thread.sleep(60);
+
+        // a single probe is let through, everything else is rejected until it returns
+        breaker.acquire();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThatThrownBy(breaker::acquire).isInstanceOf(CircuitOpenException.class);
+        breaker.onFailure();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+
+        Thread.sleep(60);
+        breaker.acquire();
+        breaker.onSuccess();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        breaker.acquire();
+    }
+
+    @Test
+    public void testIgnoredProbe() throws Exception {
+        final CircuitBreaker breaker = open(Duration.ofMillis(50));
+        Thread.sleep(60);
+        breaker.acquire();
+        breaker.onIgnore();
+        // the next request becomes the probe
+        breaker.acquire();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    }
+
+    private CircuitBreaker open(Duration openDuration) {
+        final CircuitBreaker breaker = new CircuitBreaker("_search", 0.5, openDuration);
+        for (int i = 0; i < CircuitBreaker.MIN_REQUESTS; i++) {
+            breaker.acquire();
+            breaker.onFailure();
+        }
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        return breaker;
+    }
+}
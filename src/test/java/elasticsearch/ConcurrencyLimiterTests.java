@@ -0,0 +1,76 @@
+package elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ConcurrencyLimiterTests {
+
+    @Test
+    public void testRejectsAboveLimit() {
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder("search").withInitialLimit(2).withRetryAfter(Duration.ofSeconds(3)).build();
+        final ConcurrencyLimiter.Permit first = limiter.acquire();
+        limiter.acquire();
+        assertThat(limiter.inFlight()).isEqualTo(2);
+
+        assertThatThrownBy(limiter::acquire)
+                .isInstanceOf(LimitExceededException.class)
+                .hasMessage("Too many concurrent search requests, limit is 2")
+                .satisfies(e -> assertThat(((LimitExceededException) e).retryAfter()).isEqualTo(Duration.ofSeconds(3)));
+        assertThat(limiter.rejected()).isEqualTo(1);
+
+        first.onIgnore();
+        limiter.acquire();
+        assertThat(limiter.inFlight()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLimitGrowsWhileUsed() {
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder("search").withInitialLimit(4).withLimits(1, 5).build();
+        // a single request at a time does not use the limit
+        limiter.acquire().onSuccess();
+        assertThat(limiter.limit()).isEqualTo(4);
+
+        for (int i = 0; i < 3; i++) {
+            final List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+            for (int j = 0; j < 3; j++) {
+                permits.add(limiter.acquire());
+            }
+            permits.forEach(ConcurrencyLimiter.Permit::onSuccess);
+        }
+        assertThat(limiter.limit()).isEqualTo(5);
+        assertThat(limiter.inFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void testLimitShrinksOnFailuresAndSlowRequests() throws Exception {
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder("index").withInitialLimit(10).withLimits(2, 10)
+                .withBackoffRatio(0.5).withLatencyThreshold(Duration.ofMillis(20)).build();
+        limiter.acquire().onDropped();
+        assertThat(limiter.limit()).isEqualTo(5);
+
+        final ConcurrencyLimiter.Permit slow = limiter.acquire();
+        Thread.sleep(30);
+        slow.onSuccess();
+        assertThat(limiter.limit()).isEqualTo(2);
+
+        limiter.acquire().onDropped();
+        assertThat(limiter.limit()).isEqualTo(2);
+        // invalid input says nothing about the load
+        limiter.acquire().onIgnore();
+        assertThat(limiter.limit()).isEqualTo(2);
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        assertThatThrownBy(() -> ConcurrencyLimiter.newBuilder("search").withInitialLimit(0).build())
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ConcurrencyLimiter.newBuilder("search").withLimits(10, 5).build())
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -1,14 +1,50 @@
 package elasticsearch;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import model.Person;
+import model.Projection;
+import model.SearchCursor;
+import model.SearchHit;
+import model.SearchPage;
+import model.SearchResponse;
 import org.junit.jupiter.api.Test;
 import org.testcontainers.shaded.com.google.common.base.Charsets;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ConnectException;
 import java.net.Inet4Address;
 import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class ElasticsearchClientTests {
@@ -51,6 +87,30 @@ public class ElasticsearchClientTests {
         }
     }
 
+    @Test
+    public void testIndexNotifiesListeners() throws Exception {
+        HttpServer httpServer = createWebserver();
+        try {
+            httpServer.createContext("/persons/_doc/", exchange -> {
+                final byte[] response = "{ \"result\" : \"created\" }".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(201, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            final List<Person> indexed = new CopyOnWriteArrayList<>();
+            ElasticsearchClient client = createClient(httpServer);
+            client.addIndexListener(indexed::addAll);
+
+            final Person person = new Person("first", "last", "employer");
+            client.index(person);
+            client.indexAsync(person).get(5, TimeUnit.SECONDS);
+            assertThat(indexed).containsExactly(person, person);
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
     @Test
     public void testIndexReturningError() throws Exception {
         final String endpoint = "/persons/_doc/";
@@ -71,6 +131,1085 @@ public class ElasticsearchClientTests {
         }
     }
 
+    @Test
+    public void testSearchAsync() throws Exception {
+        HttpServer httpServer = createWebserver();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                final byte[] response = """
+                        {
+                          "hits" : {
+                            "total" : { "value" : 1, "relation" : "eq" },
+                            "hits" : [
+                              {
+                                "_index" : "persons",
+                                "_id" : "first",
+                                "_score" : 1.0,
+                                "_source" : { "name" : { "first": "first", "last":"last" }, "employer": "employer" }
+                              }
+                            ]
+                          }
+                        }""".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            });
+
+            final InetSocketAddress address = httpServer.getAddress();
+            ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser)
+                    .withUri("http://" + address.getHostName() + ":" + address.getPort())
+                    .withExecutor(executor)
+                    .build();
+            final SearchResponse response = client.searchAsync("search", "first").get(5, TimeUnit.SECONDS);
+            assertThat(response.hits()).hasSize(1);
+            assertThat(response.hits().get(0).person()).isEqualTo(new Person("first", "last", "employer"));
+        } finally {
+            httpServer.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSearchProjection() throws Exception {
+        HttpServer httpServer = createWebserver();
+        try {
+            final List<JsonNode> sources = new CopyOnWriteArrayList<>();
+            httpServer.createContext("/persons/_search", exchange -> {
+                sources.add(mapper.readTree(exchange.getRequestBody()).path("_source"));
+                final byte[] response = "{\"hits\":{\"hits\":[{\"_id\":\"1\",\"_source\":{\"name\":{\"first\":\"first\",\"last\":\"last\"}}}]}}"
+                        .getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer)).withSearchCoalescing(true).build();
+
+            assertThat(client.search("search", "first", 0, 10, Projection.NAMES, null).hits().get(0).person()).isEqualTo(new Person("first", "last", ""));
+            assertThat(client.searchAsync("search", "first", 0, 10, Projection.NAMES, null).get(5, TimeUnit.SECONDS).hits()).hasSize(1);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            client.searchStreaming("search", "first", 0, 10, Projection.NAMES, out);
+            assertThat(out.toString(Charsets.UTF_8)).isEqualTo("[{\"name\":{\"first\":\"first\",\"last\":\"last\"}}]");
+            client.search("search", "first");
+
+            assertThat(sources).extracting(JsonNode::toString).containsExactly(
+                    "[\"name.first\",\"name.last\"]", "[\"name.first\",\"name.last\"]", "[\"name.first\",\"name.last\"]",
+                    "[\"name.first\",\"name.last\",\"employer\"]");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testSearchTracing() throws Exception {
+        HttpServer httpServer = createWebserver();
+        try {
+            final List<String> opaqueIds = new CopyOnWriteArrayList<>();
+            httpServer.createContext("/persons/_search", exchange -> {
+                opaqueIds.add(exchange.getRequestHeaders().getFirst("X-Opaque-Id"));
+                final byte[] response = "{\"took\":42,\"timed_out\":false,\"hits\":{\"hits\":[{\"_id\":\"1\",\"_source\":{\"name\":{\"first\":\"first\"}}}]}}"
+                        .getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            final ElasticsearchClient client = createClient(httpServer);
+
+            final Trace trace = Trace.start("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+            assertThat(client.search("search", "first", 0, 10, Projection.PERSON, trace).hits()).hasSize(1);
+            assertThat(trace.took()).isEqualTo(42);
+            assertThat(trace.nanos(Trace.Stage.RENDER_REQUEST)).isPositive();
+            assertThat(trace.nanos(Trace.Stage.SEND)).isPositive();
+            assertThat(trace.nanos(Trace.Stage.PARSE_RESPONSE)).isPositive();
+
+            final Trace asyncTrace = Trace.start(null);
+            assertThat(client.searchAsync("search", "first", 0, 10, Projection.PERSON, asyncTrace).get(5, TimeUnit.SECONDS).hits()).hasSize(1);
+            assertThat(asyncTrace.took()).isEqualTo(42);
+            assertThat(asyncTrace.nanos(Trace.Stage.SEND)).isPositive();
+
+            // searches without trace do not send an opaque id
+            client.search("search", "first");
+            assertThat(opaqueIds).containsExactly(trace.traceparent(), asyncTrace.traceparent(), null);
+            assertThat(trace.traceparent()).startsWith("00-0af7651916cd43dd8448eb211c80319c-").endsWith("-01").doesNotContain("b7ad6b7169203331");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testSearchStreaming() throws Exception {
+        HttpServer httpServer = createWebserver();
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                final StringBuilder hits = new StringBuilder();
+                for (int i = 0; i < 1000; i++) {
+                    hits.append(i == 0 ? "" : ",").append("""
+                            {"_index":"persons","_id":"%d","_score":1.0,"_source":{"name":{"first":"first %d","last":"last"},"employer":"employer"}}""".formatted(i, i));
+                }
+                final byte[] response = ("{\"took\":1,\"hits\":{\"total\":{\"value\":1000,\"relation\":\"eq\"},\"hits\":[" + hits + "]}}").getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            ElasticsearchClient client = createClient(httpServer);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            client.searchStreaming("search", "first", out);
+
+            // must be exactly what the buffering variant renders
+            final byte[] expected = renderer.searchResponse(client.search("search", "first"));
+            assertThat(out.toByteArray()).isEqualTo(expected);
+            assertThat(new String(out.toByteArray(), Charsets.UTF_8)).startsWith("[{\"name\":{\"first\":\"first 0\"").endsWith("\"employer\":\"employer\"}]");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testSearchStreamingError() throws Exception {
+        HttpServer httpServer = createWebserver();
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                final byte[] response = "{\"error\":{\"type\":\"query_shard_exception\",\"reason\":\"Failed to parse query\"},\"status\":400}"
+                        .getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(400, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            ElasticsearchClient client = createClient(httpServer);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertThatThrownBy(() -> client.searchStreaming("search", "name.first:(", out))
+                    .isInstanceOf(ElasticsearchException.class)
+                    .hasMessage("Error searching: 400 (query_shard_exception: Failed to parse query)");
+            // nothing was written, so the response to the client is not committed yet
+            assertThat(out.size()).isZero();
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testIndexAsyncReturningError() throws Exception {
+        HttpServer httpServer = createWebserver();
+        try {
+            httpServer.createContext("/persons/_doc/", exchange -> {
+                final byte[] response = ("{ \"error\" : { }, \"status\" : 400 }").getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(400, response.length);
+                exchange.getResponseBody().write(response);
+            });
+
+            ElasticsearchClient client = createClient(httpServer);
+            Person person = new Person("first", "last", "employer");
+            assertThatThrownBy(() -> client.indexAsync(person).get(5, TimeUnit.SECONDS))
+                    .isInstanceOf(ExecutionException.class)
+                    .hasRootCauseMessage("Error indexing new person: 400");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testSearchCoalescing() throws Exception {
+        HttpServer httpServer = createWebserver();
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        final AtomicInteger requests = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                requests.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                final byte[] response = "{\"hits\":{\"hits\":[{\"_id\":\"1\",\"_source\":{\"name\":{\"first\":\"first\",\"last\":\"last\"},\"employer\":\"employer\"}}]}}"
+                        .getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            final InetSocketAddress address = httpServer.getAddress();
+            final MeterRegistry registry = new SimpleMeterRegistry();
+            ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser)
+                    .withUri("http://" + address.getHostName() + ":" + address.getPort())
+                    .withSearchCoalescing(true)
+                    .withMeterRegistry(registry)
+                    .build();
+
+            final List<Future<SearchResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                responses.add(executor.submit(() -> client.search("search", "first")));
+            }
+            // wait until all searches joined the one in flight
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (client.coalescedSearches() < 9 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+
+            for (Future<SearchResponse> response : responses) {
+                assertThat(response.get(5, TimeUnit.SECONDS).hits()).hasSize(1);
+            }
+            assertThat(requests.get()).isEqualTo(1);
+            assertThat(client.coalescedSearches()).isEqualTo(9);
+            assertThat(registry.get("elasticsearch.client.searches.coalesced").functionCounter().count()).isEqualTo(9);
+
+            // nothing in flight anymore, so the next search is sent again
+            client.search("search", "first");
+            assertThat(requests.get()).isEqualTo(2);
+        } finally {
+            httpServer.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSearchBatching() throws Exception {
+        HttpServer httpServer = createWebserver();
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        final AtomicInteger requests = new AtomicInteger();
+        try {
+            // answers every search with a hit named after its query, fails the search for "broken"
+            httpServer.createContext("/persons/_msearch", exchange -> {
+                requests.incrementAndGet();
+                assertThat(exchange.getRequestHeaders().getFirst("Content-Type")).isEqualTo("application/x-ndjson");
+                final String[] lines = new String(exchange.getRequestBody().readAllBytes(), Charsets.UTF_8).split("\n");
+                final List<String> items = new ArrayList<>();
+                for (int i = 1; i < lines.length; i += 2) {
+                    final String query = mapper.readTree(lines[i]).at("/query/query_string/query").asText();
+                    items.add(query.equals("broken")
+                            ? "{\"error\":{\"type\":\"query_shard_exception\",\"reason\":\"broken\"},\"status\":400}"
+                            : "{\"hits\":{\"hits\":[{\"_id\":\"1\",\"_source\":{\"name\":{\"first\":\"" + query + "\",\"last\":\"last\"}}}]},\"status\":200}");
+                }
+                final byte[] response = ("{\"responses\":[" + String.join(",", items) + "]}").getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            final MeterRegistry registry = new SimpleMeterRegistry();
+            // a long window, so only full batches are sent
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer))
+                    .withSearchBatching(Duration.ofSeconds(10), 5)
+                    .withMeterRegistry(registry)
+                    .build();
+
+            final List<Future<SearchResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 9; i++) {
+                final String query = "first" + i;
+                responses.add(executor.submit(() -> client.search("search", query)));
+            }
+            final CompletableFuture<SearchResponse> broken = client.searchAsync("search", "broken");
+
+            for (int i = 0; i < 9; i++) {
+                assertThat(responses.get(i).get(5, TimeUnit.SECONDS).hits().get(0).person().firstName()).isEqualTo("first" + i);
+            }
+            assertThatThrownBy(() -> broken.get(5, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(ElasticsearchException.class)
+                    .hasMessageContaining("query_shard_exception: broken");
+            assertThat(requests).hasValue(2);
+            assertThat(registry.get("elasticsearch.client.msearch.batch.size").summary().count()).isEqualTo(2);
+            assertThat(registry.get("elasticsearch.client.msearch.batch.size").summary().totalAmount()).isEqualTo(10);
+            assertThat(registry.get("elasticsearch.client.msearch.queue.delay").timer().count()).isEqualTo(10);
+
+            client.close();
+            assertThatThrownBy(() -> client.searchAsync("search", "first").get(5, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(IllegalStateException.class);
+        } finally {
+            httpServer.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRequestsAreSpreadAcrossNodes() throws Exception {
+        final HttpServer first = createWebserver();
+        final HttpServer second = createWebserver();
+        final AtomicInteger firstRequests = new AtomicInteger();
+        final AtomicInteger secondRequests = new AtomicInteger();
+        createSearchContext(first, firstRequests);
+        createSearchContext(second, secondRequests);
+        try (ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUris(List.of(uri(first), uri(second))).build()) {
+            for (int i = 0; i < 4; i++) {
+                assertThat(client.search("search", "first").hits()).hasSize(1);
+            }
+            client.searchAsync("search", "first").get(5, TimeUnit.SECONDS);
+            client.searchAsync("search", "first").get(5, TimeUnit.SECONDS);
+            assertThat(firstRequests.get()).isEqualTo(3);
+            assertThat(secondRequests.get()).isEqualTo(3);
+        } finally {
+            first.stop(0);
+            second.stop(0);
+        }
+    }
+
+    @Test
+    public void testFailoverToNextNode() throws Exception {
+        final HttpServer alive = createWebserver();
+        final HttpServer dead = createWebserver();
+        final AtomicInteger requests = new AtomicInteger();
+        createSearchContext(alive, requests);
+        // nothing is listening on this port anymore, so connections are refused
+        final String deadUri = uri(dead);
+        dead.stop(0);
+        try (ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUris(List.of(deadUri, uri(alive))).build()) {
+            for (int i = 0; i < 3; i++) {
+                assertThat(client.search("search", "first").hits()).hasSize(1);
+                assertThat(client.searchAsync("search", "first").get(5, TimeUnit.SECONDS).hits()).hasSize(1);
+            }
+            assertThat(requests.get()).isEqualTo(6);
+        } finally {
+            alive.stop(0);
+        }
+    }
+
+    @Test
+    public void testRequestTimeoutKeepsNodeInRotation() throws Exception {
+        final HttpServer slow = createWebserver();
+        final HttpServer fast = createWebserver();
+        final AtomicInteger slowRequests = new AtomicInteger();
+        final AtomicInteger fastRequests = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        slow.createContext("/persons/_search", exchange -> {
+            // only the first search is slow
+            if (slowRequests.incrementAndGet() == 1) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final byte[] response = "{\"hits\":{\"hits\":[]}}".getBytes(Charsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        createSearchContext(fast, fastRequests);
+        try (ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUris(List.of(uri(slow), uri(fast)))
+                .withRequestTimeout(Duration.ofMillis(200)).build()) {
+            assertThatThrownBy(() -> client.search("search", "first")).isInstanceOf(HttpTimeoutException.class);
+            release.countDown();
+            for (int i = 0; i < 4; i++) {
+                client.search("search", "first");
+            }
+            // the slow node still gets its share of the searches
+            assertThat(slowRequests.get()).isEqualTo(3);
+            assertThat(fastRequests.get()).isEqualTo(2);
+        } finally {
+            slow.stop(0);
+            fast.stop(0);
+        }
+    }
+
+    @Test
+    public void testAllNodesDown() throws Exception {
+        final HttpServer dead = createWebserver();
+        final String deadUri = uri(dead);
+        dead.stop(0);
+        try (ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(deadUri).build()) {
+            assertThatThrownBy(() -> client.search("search", "first")).isInstanceOf(ConnectException.class);
+            assertThatThrownBy(() -> client.searchAsync("search", "first").get(5, TimeUnit.SECONDS))
+                    .isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(ConnectException.class);
+        }
+    }
+
+    @Test
+    public void testSniffing() throws Exception {
+        final HttpServer seed = createWebserver();
+        final HttpServer node = createWebserver();
+        final AtomicInteger seedRequests = new AtomicInteger();
+        final AtomicInteger nodeRequests = new AtomicInteger();
+        createSearchContext(seed, seedRequests);
+        createSearchContext(node, nodeRequests);
+        final InetSocketAddress address = node.getAddress();
+        seed.createContext("/_nodes/http", exchange -> {
+            final byte[] response = ("{\"nodes\":{\"abc\":{\"http\":{\"publish_address\":\"" + address.getHostName() + ":" + address.getPort() + "\"}}}}")
+                    .getBytes(Charsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        try (ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(seed))
+                .withSniffing(Duration.ofMinutes(1)).build()) {
+            // the first sniffing runs in the background right away
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (nodeRequests.get() == 0 && System.nanoTime() < deadline) {
+                client.search("search", "first");
+                Thread.sleep(10);
+            }
+            final int seedRequestsAfterSniffing = seedRequests.get();
+            client.search("search", "first");
+            client.search("search", "first");
+            assertThat(seedRequests.get()).isEqualTo(seedRequestsAfterSniffing);
+            assertThat(nodeRequests.get()).isGreaterThanOrEqualTo(3);
+        } finally {
+            seed.stop(0);
+            node.stop(0);
+        }
+    }
+
+    @Test
+    public void testSearchWithFromAndSize() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final List<String> bodies = new CopyOnWriteArrayList<>();
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                bodies.add(new String(exchange.getRequestBody().readAllBytes(), Charsets.UTF_8));
+                final byte[] response = "{\"hits\":{\"hits\":[]}}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            ElasticsearchClient client = createClient(httpServer);
+            client.search("search", "first");
+            client.search("search", "first", 20, 5);
+            final JsonNode defaults = mapper.readTree(bodies.get(0));
+            assertThat(defaults.path("from").intValue()).isEqualTo(0);
+            assertThat(defaults.path("size").intValue()).isEqualTo(ElasticsearchClient.DEFAULT_SIZE);
+            final JsonNode page = mapper.readTree(bodies.get(1));
+            assertThat(page.path("from").intValue()).isEqualTo(20);
+            assertThat(page.path("size").intValue()).isEqualTo(5);
+            assertThat(page.has("pit")).isFalse();
+
+            assertThatThrownBy(() -> client.search("search", "first", 9_995, 10))
+                    .isInstanceOf(IllegalArgumentException.class);
+            assertThat(bodies).hasSize(2);
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testSearchPages() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final List<JsonNode> searches = new CopyOnWriteArrayList<>();
+        final AtomicInteger opened = new AtomicInteger();
+        final List<String> closed = new CopyOnWriteArrayList<>();
+        try {
+            httpServer.createContext("/persons/_pit", exchange -> {
+                opened.incrementAndGet();
+                assertThat(exchange.getRequestURI().getQuery()).isEqualTo("keep_alive=1m");
+                final byte[] response = "{\"id\":\"pit-0\"}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            httpServer.createContext("/_pit", exchange -> {
+                closed.add(mapper.readTree(exchange.getRequestBody()).path("id").asText());
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            });
+            // three hits in total, returned in pages of two
+            httpServer.createContext("/_search", exchange -> {
+                final JsonNode request = mapper.readTree(exchange.getRequestBody());
+                searches.add(request);
+                final int start = request.has("search_after") ? request.path("search_after").get(1).intValue() + 1 : 0;
+                final StringBuilder hits = new StringBuilder();
+                for (int i = start; i < Math.min(start + 2, 3); i++) {
+                    hits.append(i == start ? "" : ",").append("""
+                            {"_id":"%d","_score":1.0,"_source":{"name":{"first":"first %d","last":"last"},"employer":"employer"},"sort":[1.0,%d]}""".formatted(i, i, i));
+                }
+                final byte[] response = ("{\"pit_id\":\"pit-" + searches.size() + "\",\"hits\":{\"hits\":[" + hits + "]}}").getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            ElasticsearchClient client = createClient(httpServer);
+            final SearchPage first = client.searchPage("search", SearchCursor.first("first", 2));
+            assertThat(first.response().hits()).extracting(SearchHit::id).containsExactly("0", "1");
+            assertThat(first.next()).isNotNull();
+            assertThat(first.next().pitId()).isEqualTo("pit-1");
+            assertThat(searches.get(0).path("pit").path("id").asText()).isEqualTo("pit-0");
+            assertThat(searches.get(0).has("search_after")).isFalse();
+
+            // the cursor is handed out to clients and sent back as token
+            final SearchCursor cursor = SearchCursor.decode(first.next().encode());
+            assertThat(cursor).isEqualTo(first.next());
+            final SearchPage second = client.searchPageAsync("search", cursor).get(5, TimeUnit.SECONDS);
+            assertThat(second.response().hits()).extracting(SearchHit::id).containsExactly("2");
+            assertThat(second.next()).isNull();
+            assertThat(searches.get(1).path("pit").path("id").asText()).isEqualTo("pit-1");
+            assertThat(searches.get(1).path("search_after").toString()).isEqualTo("[1.0,1]");
+            assertThat(opened.get()).isEqualTo(1);
+
+            // the point in time is closed in the background after the last page
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (closed.isEmpty() && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(closed).containsExactly("pit-2");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testInvalidCursor() throws Exception {
+        assertThatThrownBy(() -> SearchCursor.decode("not a cursor")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> SearchCursor.decode("AAAA")).isInstanceOf(IllegalArgumentException.class);
+        // tokens are sent by clients, so the size is checked like the size parameter
+        assertThatThrownBy(() -> SearchCursor.decode(cursorToken("first", -1))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> SearchCursor.decode(cursorToken("first", 10_001))).isInstanceOf(IllegalArgumentException.class);
+        assertThat(SearchCursor.decode(cursorToken("first", 10_000)).size()).isEqualTo(10_000);
+        // sort values are rendered into the request, so only numbers are accepted
+        assertThatThrownBy(() -> SearchCursor.decode(cursorToken("first", 10, out -> {
+            out.writeInt(1);
+            out.writeByte('S');
+            out.writeUTF("]}, \"size\" : 10000");
+        }))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> SearchCursor.decode(cursorToken("first", 10, out -> {
+            out.writeInt(1);
+            out.writeByte('D');
+            out.writeDouble(Double.NaN);
+        }))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> SearchCursor.decode(cursorToken("first", 10, out -> out.writeInt(-1)))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new SearchCursor("first", 10, "pit", List.of())).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new SearchCursor("first", 10, "pit", List.of(1.5f))).isInstanceOf(IllegalArgumentException.class);
+        final SearchCursor cursor = new SearchCursor("first", 10, "pit", List.of(1.5, 4294967298L));
+        assertThat(SearchCursor.decode(cursor.encode())).isEqualTo(cursor);
+        // the first page needs a query
+        assertThatThrownBy(() -> SearchCursor.first(null, 10)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    // a token in the format of SearchCursor.encode, which does not allow to create invalid cursors
+    private static String cursorToken(String query, int size) throws IOException {
+        return cursorToken(query, size, out -> out.writeInt(0));
+    }
+
+    @FunctionalInterface
+    private interface SortValuesWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static String cursorToken(String query, int size, SortValuesWriter sortValues) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeByte(2);
+            out.writeUTF(query);
+            out.writeInt(size);
+            out.writeUTF("");
+            sortValues.write(out);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bos.toByteArray());
+    }
+
+    @Test
+    public void testRequestCompression() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final List<String> encodings = new CopyOnWriteArrayList<>();
+        final List<Integer> sizes = new CopyOnWriteArrayList<>();
+        final List<String> bodies = new CopyOnWriteArrayList<>();
+        try {
+            httpServer.createContext("/persons/", exchange -> {
+                final String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                final byte[] data = exchange.getRequestBody().readAllBytes();
+                encodings.add(String.valueOf(encoding));
+                sizes.add(data.length);
+                bodies.add(new String("gzip".equals(encoding) ? new GZIPInputStream(new ByteArrayInputStream(data)).readAllBytes() : data, Charsets.UTF_8));
+                final boolean bulk = exchange.getRequestURI().getPath().endsWith("_bulk");
+                final byte[] response = (bulk ? "{\"errors\":false,\"items\":[]}" : "{}").getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(bulk ? 200 : 201, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            final InetSocketAddress address = httpServer.getAddress();
+            ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser)
+                    .withUri("http://" + address.getHostName() + ":" + address.getPort())
+                    .withRequestCompression(true)
+                    .build();
+            final byte[] bulk = renderer.bulk(Collections.nCopies(100, new Person("first", "last", "employer")));
+            client.bulk(bulk);
+            // small bodies are sent uncompressed
+            client.index(new Person("first", "last", "employer"));
+
+            assertThat(encodings).containsExactly("gzip", "null");
+            assertThat(bodies.get(0)).isEqualTo(new String(bulk, Charsets.UTF_8));
+            assertThat(sizes.get(0)).isLessThan(bulk.length / 10);
+            assertThat(bodies.get(1)).contains("\"first\"");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testResponseCompression() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final List<String> acceptEncodings = new CopyOnWriteArrayList<>();
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                final String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                acceptEncodings.add(String.valueOf(acceptEncoding));
+                final StringBuilder hits = new StringBuilder();
+                for (int i = 0; i < 100; i++) {
+                    hits.append(i == 0 ? "" : ",").append("""
+                            {"_id":"%d","_source":{"name":{"first":"first %d","last":"last"},"employer":"employer"}}""".formatted(i, i));
+                }
+                byte[] response = ("{\"hits\":{\"hits\":[" + hits + "]}}").getBytes(Charsets.UTF_8);
+                if ("gzip".equals(acceptEncoding)) {
+                    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    try (GZIPOutputStream out = new GZIPOutputStream(bos)) {
+                        out.write(response);
+                    }
+                    response = bos.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            final InetSocketAddress address = httpServer.getAddress();
+            ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser)
+                    .withUri("http://" + address.getHostName() + ":" + address.getPort())
+                    .withResponseCompression(true)
+                    .build();
+            final SearchResponse response = client.search("search", "first");
+            assertThat(response.hits()).hasSize(100);
+            assertThat(response.hits().get(99).person()).isEqualTo(new Person("first 99", "last", "employer"));
+            assertThat(client.searchAsync("search", "first").get(5, TimeUnit.SECONDS)).isEqualTo(response);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            client.searchStreaming("search", "first", out);
+            assertThat(out.toByteArray()).isEqualTo(renderer.searchResponse(response));
+            assertThat(acceptEncodings).containsExactly("gzip", "gzip", "gzip");
+
+            // without compression nothing changes
+            final SearchResponse uncompressed = createClient(httpServer).search("search", "first");
+            assertThat(uncompressed).isEqualTo(response);
+            assertThat(acceptEncodings).hasSize(4).last().isEqualTo("null");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testResponseFormat() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final List<String> accepts = new CopyOnWriteArrayList<>();
+        final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                final String accept = exchange.getRequestHeaders().getFirst("Accept");
+                accepts.add(String.valueOf(accept));
+                byte[] response = """
+                        {"hits":{"hits":[{"_id":"1","_source":{"name":{"first":"first","last":"last"},"employer":"employer"}}]}}"""
+                        .getBytes(Charsets.UTF_8);
+                if ("application/smile".equals(accept)) {
+                    response = smileMapper.writeValueAsBytes(new ObjectMapper().readTree(response));
+                    exchange.getResponseHeaders().set("Content-Type", "application/smile");
+                } else {
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                }
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            final InetSocketAddress address = httpServer.getAddress();
+            ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser)
+                    .withUri("http://" + address.getHostName() + ":" + address.getPort())
+                    .withResponseFormat(ResponseFormat.SMILE)
+                    .build();
+            final SearchResponse response = client.search("search", "first");
+            assertThat(response.hits()).hasSize(1);
+            assertThat(response.hits().get(0).person()).isEqualTo(new Person("first", "last", "employer"));
+            assertThat(client.searchAsync("search", "first").get(5, TimeUnit.SECONDS)).isEqualTo(response);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            client.searchStreaming("search", "first", out);
+            assertThat(out.toByteArray()).isEqualTo(renderer.searchResponse(response));
+            assertThat(accepts).containsExactly("application/smile", "application/smile", "application/smile");
+
+            // JSON does not send an accept header at all
+            assertThat(createClient(httpServer).search("search", "first")).isEqualTo(response);
+            assertThat(accepts).hasSize(4).last().isEqualTo("null");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testHttpVersion() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final List<String> upgrades = new CopyOnWriteArrayList<>();
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                upgrades.add(String.valueOf(exchange.getRequestHeaders().getFirst("Upgrade")));
+                final byte[] response = "{\"hits\":{\"hits\":[]}}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+
+            createClient(httpServer).search("search", "first");
+            final InetSocketAddress address = httpServer.getAddress();
+            ElasticsearchClient http2 = ElasticsearchClient.newBuilder(renderer, parser)
+                    .withUri("http://" + address.getHostName() + ":" + address.getPort())
+                    .withHttpVersion(HttpClient.Version.HTTP_2)
+                    .build();
+            http2.search("search", "first");
+            // HTTP/1.1 is the default, HTTP/2 tries to upgrade plain text connections
+            assertThat(upgrades).containsExactly("null", "h2c");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        HttpServer httpServer = createWebserver();
+        try {
+            createSearchContext(httpServer, new AtomicInteger());
+            httpServer.createContext("/persons/_doc/", exchange -> {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            });
+            final MeterRegistry registry = new SimpleMeterRegistry();
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer)).withMeterRegistry(registry).build();
+            client.search("search", "first");
+            client.searchAsync("search", "first").get(5, TimeUnit.SECONDS);
+            assertThatThrownBy(() -> client.index(new Person("first", "last", "employer"))).hasMessage("Error indexing new person: 500");
+
+            assertThat(registry.get("elasticsearch.client.requests").tags("endpoint", "_search", "status", "200").timer().count()).isEqualTo(2);
+            assertThat(registry.get("elasticsearch.client.responses").tags("endpoint", "_doc", "status", "500").counter().count()).isEqualTo(1);
+            assertThat(registry.get("elasticsearch.client.render").tag("template", "search").timer().count()).isEqualTo(2);
+            assertThat(registry.get("elasticsearch.client.render").tag("template", "person").timer().count()).isEqualTo(1);
+            assertThat(registry.get("elasticsearch.client.parse").tag("response", "search").timer().count()).isEqualTo(2);
+            assertThat(registry.get("elasticsearch.client.response.size").tag("endpoint", "_search").summary().mean()).isGreaterThan(100);
+            assertThat(registry.get("elasticsearch.client.requests.in_flight").gauge().value()).isEqualTo(0);
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testResponseSizeOfChunkedResponses() throws Exception {
+        HttpServer httpServer = createWebserver();
+        try {
+            final byte[] response = "{\"hits\":{\"hits\":[{\"_id\":\"1\",\"_source\":{\"name\":{\"first\":\"first\"}}}]}}".getBytes(Charsets.UTF_8);
+            httpServer.createContext("/persons/_search", exchange -> {
+                // no content length
+                exchange.sendResponseHeaders(200, 0);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            final MeterRegistry registry = new SimpleMeterRegistry();
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer)).withMeterRegistry(registry).build();
+            client.search("search", "first");
+            client.searchAsync("search", "first").get(5, TimeUnit.SECONDS);
+
+            final DistributionSummary size = registry.get("elasticsearch.client.response.size").tag("endpoint", "_search").summary();
+            assertThat(size.count()).isEqualTo(2);
+            assertThat(size.totalAmount()).isEqualTo(2.0 * response.length);
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testMetricsOfFailedRequests() throws Exception {
+        final HttpServer dead = createWebserver();
+        final String deadUri = uri(dead);
+        dead.stop(0);
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        try (ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(deadUri).withMeterRegistry(registry).build()) {
+            assertThatThrownBy(() -> client.search("search", "first")).isInstanceOf(ConnectException.class);
+            assertThat(registry.get("elasticsearch.client.requests").tags("endpoint", "_search", "status", ClientMetrics.IO_ERROR).timer().count()).isEqualTo(1);
+            assertThat(registry.find("elasticsearch.client.responses").counter()).isNull();
+        }
+    }
+
+    @Test
+    public void testMetricsEndpoint() {
+        assertThat(ClientMetrics.endpoint("/persons/_search")).isEqualTo("_search");
+        assertThat(ClientMetrics.endpoint("/persons/_doc/")).isEqualTo("_doc");
+        assertThat(ClientMetrics.endpoint("/persons/_pit?keep_alive=1m")).isEqualTo("_pit");
+        assertThat(ClientMetrics.endpoint("/_nodes/http")).isEqualTo("_nodes");
+        assertThat(ClientMetrics.endpoint("/")).isEqualTo("other");
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(Inet4Address.getLocalHost(), 0), 0);
+        // the blocked search must not block the index request
+        httpServer.setExecutor(Executors.newCachedThreadPool());
+        httpServer.start();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                final byte[] response = "{\"hits\":{\"hits\":[]}}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            httpServer.createContext("/persons/_doc/", exchange -> {
+                exchange.sendResponseHeaders(201, -1);
+                exchange.close();
+            });
+            final ConcurrencyLimiter searchLimiter = ConcurrencyLimiter.newBuilder("search").withInitialLimit(1).build();
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer))
+                    .withSearchLimiter(searchLimiter)
+                    .withIndexLimiter(ConcurrencyLimiter.newBuilder("index").withInitialLimit(1).build())
+                    .build();
+
+            final CompletableFuture<SearchResponse> pending = client.searchAsync("search", "first");
+            assertThatThrownBy(() -> client.search("search", "second")).isInstanceOf(LimitExceededException.class);
+            assertThatThrownBy(() -> client.searchAsync("search", "second").get(5, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(LimitExceededException.class);
+            // indexing has its own budget
+            client.index(new Person("first", "last", "employer"));
+
+            release.countDown();
+            pending.get(5, TimeUnit.SECONDS);
+            assertThat(searchLimiter.inFlight()).isEqualTo(0);
+            assertThat(searchLimiter.rejected()).isEqualTo(2);
+            client.search("search", "third");
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testBadRequestsDoNotLowerConcurrencyLimit() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final AtomicInteger status = new AtomicInteger(400);
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                final byte[] response = "{\"error\":{\"type\":\"query_shard_exception\",\"reason\":\"Failed to parse query\"},\"status\":400}"
+                        .getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(status.get(), response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            final ConcurrencyLimiter searchLimiter = ConcurrencyLimiter.newBuilder("search").withInitialLimit(10).build();
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer))
+                    .withSearchLimiter(searchLimiter)
+                    .build();
+
+            for (int i = 0; i < 5; i++) {
+                assertThatThrownBy(() -> client.search("search", "name.first:(")).isInstanceOf(ElasticsearchException.class);
+                assertThatThrownBy(() -> client.searchAsync("search", "name.first:(").get(5, TimeUnit.SECONDS))
+                        .hasCauseInstanceOf(ElasticsearchException.class);
+            }
+            assertThat(searchLimiter.limit()).isEqualTo(10);
+            assertThat(searchLimiter.inFlight()).isEqualTo(0);
+
+            // an overloaded cluster does lower it
+            status.set(503);
+            assertThatThrownBy(() -> client.search("search", "first")).isInstanceOf(ElasticsearchException.class);
+            assertThat(searchLimiter.limit()).isLessThan(10);
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final AtomicInteger searches = new AtomicInteger();
+        final AtomicInteger indexRequests = new AtomicInteger();
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                // overloaded for the first two requests
+                final int status = searches.incrementAndGet() <= 2 ? 429 : 200;
+                final byte[] response = "{\"hits\":{\"hits\":[]}}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(status, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            httpServer.createContext("/persons/_doc/", exchange -> {
+                indexRequests.incrementAndGet();
+                final byte[] response = "{\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"},\"status\":500}"
+                        .getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(500, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            final MeterRegistry registry = new SimpleMeterRegistry();
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer))
+                    .withRetries(3, Duration.ofMillis(1), Duration.ofMillis(10))
+                    .withMeterRegistry(registry)
+                    .build();
+
+            client.search("search", "first");
+            assertThat(searches).hasValue(3);
+            client.searchAsync("search", "first").get(5, TimeUnit.SECONDS);
+            assertThat(searches).hasValue(4);
+            assertThat(registry.get("elasticsearch.client.retries").tag("endpoint", "_search").counter().count()).isEqualTo(2);
+
+            // server errors are not retried, the reason of elasticsearch is part of the exception
+            assertThatThrownBy(() -> client.index(new Person("first", "last", "employer")))
+                    .isInstanceOf(ElasticsearchException.class)
+                    .hasMessage("Error indexing new person: 500 (mapper_parsing_exception: failed to parse)")
+                    .satisfies(e -> assertThat(((ElasticsearchException) e).status()).isEqualTo(500));
+            assertThat(indexRequests).hasValue(1);
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testOpeningPointInTimeIsNotRetried() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final AtomicInteger opened = new AtomicInteger();
+        try {
+            // a proxy may answer 502 after elasticsearch opened the point in time already
+            httpServer.createContext("/persons/_pit", exchange -> {
+                opened.incrementAndGet();
+                exchange.sendResponseHeaders(502, -1);
+                exchange.close();
+            });
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer))
+                    .withRetries(3, Duration.ofMillis(1), Duration.ofMillis(10))
+                    .build();
+            assertThatThrownBy(() -> client.searchPage("search", SearchCursor.first("first", 2)))
+                    .isInstanceOf(ElasticsearchException.class);
+            assertThat(opened).hasValue(1);
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testRetriesExhausted() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final AtomicInteger searches = new AtomicInteger();
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                searches.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            });
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer))
+                    .withRetries(2, Duration.ofMillis(1), Duration.ofMillis(10))
+                    .build();
+            assertThatThrownBy(() -> client.search("search", "first"))
+                    .isInstanceOf(ElasticsearchException.class)
+                    .hasMessage("Error searching: 503");
+            assertThat(searches).hasValue(3);
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testSearchHedging() throws Exception {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(Inet4Address.getLocalHost(), 0), 0);
+        // the slow search must not block the hedged one
+        httpServer.setExecutor(Executors.newCachedThreadPool());
+        httpServer.start();
+        final AtomicInteger searches = new AtomicInteger();
+        // the first search after it is set is answered slowly
+        final AtomicBoolean slow = new AtomicBoolean();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                searches.incrementAndGet();
+                if (slow.compareAndSet(true, false)) {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                final byte[] response = "{\"hits\":{\"hits\":[]}}".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            });
+            final MeterRegistry registry = new SimpleMeterRegistry();
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer))
+                    .withSearchHedging(true)
+                    .withMeterRegistry(registry)
+                    .build();
+            // the latency of recent searches decides when to hedge
+            for (int i = 0; i < 40; i++) {
+                client.search("search", "first");
+            }
+            // a search of a busy test machine might have been hedged already
+            final int searchesBefore = searches.get();
+            final double hedgesBefore = count(registry, "elasticsearch.client.hedges");
+            final double wonBefore = count(registry, "elasticsearch.client.hedges.won");
+
+            slow.set(true);
+            final long start = System.nanoTime();
+            client.search("search", "first");
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(2000);
+            assertThat(searches.get() - searchesBefore).isEqualTo(2);
+            assertThat(count(registry, "elasticsearch.client.hedges") - hedgesBefore).isEqualTo(1);
+            assertThat(count(registry, "elasticsearch.client.hedges.won") - wonBefore).isEqualTo(1);
+        } finally {
+            release.countDown();
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        HttpServer httpServer = createWebserver();
+        final AtomicInteger searches = new AtomicInteger();
+        try {
+            httpServer.createContext("/persons/_search", exchange -> {
+                searches.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            });
+            httpServer.createContext("/persons/_doc/", exchange -> {
+                exchange.sendResponseHeaders(201, -1);
+                exchange.close();
+            });
+            final MeterRegistry registry = new SimpleMeterRegistry();
+            final ElasticsearchClient client = ElasticsearchClient.newBuilder(renderer, parser).withUri(uri(httpServer))
+                    .withCircuitBreaker(0.5, Duration.ofMinutes(1))
+                    .withMeterRegistry(registry)
+                    .build();
+            for (int i = 0; i < CircuitBreaker.MIN_REQUESTS; i++) {
+                assertThatThrownBy(() -> client.search("search", "first")).isInstanceOf(ElasticsearchException.class);
+            }
+            assertThatThrownBy(() -> client.search("search", "first")).isInstanceOf(CircuitOpenException.class);
+            assertThatThrownBy(() -> client.searchAsync("search", "first").get(5, TimeUnit.SECONDS))
+                    .hasCauseInstanceOf(CircuitOpenException.class);
+            assertThat(searches).hasValue(CircuitBreaker.MIN_REQUESTS);
+            assertThat(registry.get("elasticsearch.client.circuit_breaker.state").tag("endpoint", "_search").gauge().value()).isEqualTo(1);
+
+            // every endpoint has its own breaker
+            client.index(new Person("first", "last", "employer"));
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    private void createSearchContext(HttpServer httpServer, AtomicInteger requests) {
+        httpServer.createContext("/persons/_search", exchange -> {
+            requests.incrementAndGet();
+            final byte[] response = "{\"hits\":{\"hits\":[{\"_id\":\"1\",\"_source\":{\"name\":{\"first\":\"first\",\"last\":\"last\"},\"employer\":\"employer\"}}]}}"
+                    .getBytes(Charsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+    }
+
+    // zero if the counter has not been created yet
+    private static double count(MeterRegistry registry, String name) {
+        final Counter counter = registry.find(name).counter();
+        return counter != null ? counter.count() : 0;
+    }
+
+    private String uri(HttpServer httpServer) {
+        final InetSocketAddress address = httpServer.getAddress();
+        return "http://" + address.getHostName() + ":" + address.getPort();
+    }
+
     private HttpServer createWebserver() throws Exception {
         HttpServer httpServer = HttpServer.create();
         // bind to random port to prevent conflicts
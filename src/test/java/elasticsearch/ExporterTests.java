@@ -0,0 +1,193 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import model.Person;
+import model.Suggestion;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.shaded.com.google.common.base.Charsets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ExporterTests {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Renderer renderer = new Renderer(mapper);
+    private static final Parser parser = new Parser(mapper);
+    private static final int DOCUMENTS = 95;
+
+    private HttpServer httpServer;
+    private ElasticsearchClient client;
+    private final List<JsonNode> searches = new CopyOnWriteArrayList<>();
+    private final List<String> closed = new CopyOnWriteArrayList<>();
+    private final AtomicInteger failingSlice = new AtomicInteger(-1);
+
+    @BeforeEach
+    public void startWebserver() throws Exception {
+        httpServer = HttpServer.create();
+        httpServer.bind(new InetSocketAddress(Inet4Address.getLocalHost(), 0), 0);
+        // slices are searched in parallel
+        httpServer.setExecutor(Executors.newCachedThreadPool());
+        httpServer.createContext("/persons/_pit", exchange -> {
+            final byte[] response = "{\"id\":\"pit\"}".getBytes(Charsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        httpServer.createContext("/_pit", exchange -> {
+            closed.add(mapper.readTree(exchange.getRequestBody()).path("id").asText());
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        // every slice returns the documents with id modulo max equal to the slice id, sorted by id
+        httpServer.createContext("/_search", exchange -> {
+            final JsonNode request = mapper.readTree(exchange.getRequestBody());
+            searches.add(request);
+            final int slice = request.path("slice").path("id").asInt(0);
+            final int max = request.path("slice").path("max").asInt(1);
+            if (slice == failingSlice.get()) {
+                final byte[] response = "{\"error\":{\"type\":\"search_phase_execution_exception\",\"reason\":\"all shards failed\"},\"status\":500}"
+                        .getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(500, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+                return;
+            }
+            final int size = request.path("size").intValue();
+            final int after = request.has("search_after") ? request.path("search_after").get(0).intValue() : -1;
+            final StringBuilder hits = new StringBuilder();
+            int count = 0;
+            for (int id = after + 1; id < DOCUMENTS && count < size; id++) {
+                if (id % max == slice) {
+                    hits.append(count++ == 0 ? "" : ",").append("""
+                            {"_id":"%d","_score":null,"_source":{"name":{"first":"first %d","last":"last"},"employer":"employer"},"sort":[%d]}""".formatted(id, id, id));
+                }
+            }
+            final byte[] response = ("{\"pit_id\":\"pit\",\"hits\":{\"hits\":[" + hits + "]}}").getBytes(Charsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        httpServer.start();
+
+        final InetSocketAddress address = httpServer.getAddress();
+        client = ElasticsearchClient.newBuilder(renderer, parser).withUri("http://" + address.getHostName() + ":" + address.getPort()).build();
+    }
+
+    @AfterEach
+    public void stopWebserver() {
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void testExportAllSlices() throws Exception {
+        final Exporter exporter = Exporter.newBuilder(client, renderer).withSlices(3).withPageSize(10).withQueueCapacity(5).build();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(exporter.export(out)).isEqualTo(DOCUMENTS);
+
+        final String[] lines = new String(out.toByteArray(), Charsets.UTF_8).split("\n");
+        assertThat(lines).hasSize(DOCUMENTS);
+        final Set<String> firstNames = new HashSet<>();
+        for (String line : lines) {
+            firstNames.add(parser.toPerson(line.getBytes(Charsets.UTF_8)).firstName());
+        }
+        assertThat(firstNames).hasSize(DOCUMENTS).contains("first 0", "first 94");
+
+        // 32 documents in the first slice need four pages
+        assertThat(searches).hasSize(4 + 4 + 4);
+        assertThat(searches).allSatisfy(search -> {
+            assertThat(search.path("pit").path("id").asText()).isEqualTo("pit");
+            assertThat(search.path("slice").path("max").intValue()).isEqualTo(3);
+        });
+        waitForClose();
+        assertThat(closed).containsExactly("pit");
+    }
+
+    @Test
+    public void testExportSingleSlice() throws Exception {
+        final Exporter exporter = Exporter.newBuilder(client, renderer).withSlices(1).withPageSize(50).build();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(exporter.export(out)).isEqualTo(DOCUMENTS);
+        assertThat(searches).hasSize(2);
+        assertThat(searches.get(0).has("slice")).isFalse();
+        assertThat(searches.get(1).path("search_after").toString()).isEqualTo("[49]");
+    }
+
+    @Test
+    public void testExportToConsumer() throws Exception {
+        final Exporter exporter = Exporter.newBuilder(client, renderer).withSlices(2).withPageSize(20).build();
+        final List<Person> persons = new ArrayList<>();
+        assertThat(exporter.export(persons::add)).isEqualTo(DOCUMENTS);
+        assertThat(persons).hasSize(DOCUMENTS).contains(new Person("first 42", "last", "employer"));
+
+        final Suggester suggester = new Suggester();
+        assertThat(suggester.load(exporter)).isEqualTo(DOCUMENTS);
+        assertThat(suggester.suggest("last", 10)).containsExactly(new Suggestion("last", DOCUMENTS));
+    }
+
+    @Test
+    public void testSliceFailure() throws Exception {
+        failingSlice.set(1);
+        final Exporter exporter = Exporter.newBuilder(client, renderer).withSlices(2).withPageSize(10).build();
+        assertThatThrownBy(() -> exporter.export(new ByteArrayOutputStream()))
+                .isInstanceOf(RuntimeException.class)
+                .hasMessage("Error exporting slice 1: 500 (search_phase_execution_exception: all shards failed)");
+        waitForClose();
+        assertThat(closed).containsExactly("pit");
+    }
+
+    @Test
+    public void testClientGoneStopsSlices() throws Exception {
+        final Exporter exporter = Exporter.newBuilder(client, renderer).withSlices(2).withPageSize(5).withQueueCapacity(1).build();
+        final List<Person> written = new ArrayList<>();
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (written.size() == 3) {
+                    throw new IOException("Broken pipe");
+                }
+                if (len > 1) {
+                    written.add(parser.toPerson(b));
+                }
+            }
+        };
+        assertThatThrownBy(() -> exporter.export(out)).isInstanceOf(IOException.class).hasMessage("Broken pipe");
+
+        // the slices notice the cancelled export while waiting for space in the queue
+        Thread.sleep(500);
+        final int searchesAfterCancel = searches.size();
+        Thread.sleep(300);
+        assertThat(searches).hasSize(searchesAfterCancel);
+        assertThat(searchesAfterCancel).isLessThan(DOCUMENTS / 5);
+    }
+
+    private void waitForClose() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (closed.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import model.ImportSummary;
+import model.Person;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.shaded.com.google.common.base.Charsets;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ImporterTests {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Renderer renderer = new Renderer(mapper);
+    private static final Parser parser = new Parser(mapper);
+
+    private HttpServer httpServer;
+    private ElasticsearchClient client;
+    private final List<Integer> bulkSizes = new CopyOnWriteArrayList<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @BeforeEach
+    public void startWebserver() throws Exception {
+        httpServer = HttpServer.create();
+        httpServer.bind(new InetSocketAddress(Inet4Address.getLocalHost(), 0), 0);
+        httpServer.setExecutor(Executors.newCachedThreadPool());
+        // persons named "fail" are rejected, persons named "missing" have no item in the response
+        httpServer.createContext("/persons/_bulk", exchange -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            final String[] lines = new String(exchange.getRequestBody().readAllBytes(), Charsets.UTF_8).split("\n");
+            bulkSizes.add(lines.length / 2);
+            final StringBuilder items = new StringBuilder();
+            boolean errors = false;
+            for (int i = 1; i < lines.length; i += 2) {
+                final String firstName = parser.toPerson(lines[i].getBytes(Charsets.UTF_8)).firstName();
+                if ("missing".equals(firstName)) {
+                    continue;
+                }
+                final boolean fail = "fail".equals(firstName);
+                errors |= fail;
+                items.append(items.length() == 0 ? "" : ",").append(fail
+                        ? "{\"index\":{\"_id\":\"" + i + "\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}}"
+                        : "{\"index\":{\"_id\":\"" + i + "\",\"status\":201}}");
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final byte[] response = ("{\"errors\":" + errors + ",\"items\":[" + items + "]}").getBytes(Charsets.UTF_8);
+            running.decrementAndGet();
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        httpServer.start();
+        final InetSocketAddress address = httpServer.getAddress();
+        client = ElasticsearchClient.newBuilder(renderer, parser).withUri("http://" + address.getHostName() + ":" + address.getPort()).build();
+    }
+
+    @AfterEach
+    public void stopWebserver() {
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void testImportNdjson() throws Exception {
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 250; i++) {
+            final String first = i % 50 == 0 ? "fail" : "first " + i;
+            input.append("{\"name\":{\"first\":\"").append(first).append("\",\"last\":\"last\"},\"employer\":\"employer\"}\n");
+        }
+        final List<Person> notified = new CopyOnWriteArrayList<>();
+        client.addIndexListener(notified::addAll);
+
+        final Importer importer = Importer.newBuilder(client, renderer, parser).withMaxActions(20).withConcurrentRequests(3).build();
+        final ImportSummary summary = importer.importPersons(stream(input.toString()), Importer.Format.NDJSON);
+        assertThat(summary.indexed()).isEqualTo(245);
+        assertThat(summary.failed()).isEqualTo(5);
+        assertThat(bulkSizes.stream().mapToInt(Integer::intValue).sum()).isEqualTo(250);
+        assertThat(bulkSizes).hasSize(13).allMatch(size -> size <= 20);
+        assertThat(maxRunning.get()).isBetween(2, 3);
+        assertThat(notified).hasSize(245);
+    }
+
+    @Test
+    public void testBulkResponseWithMissingItems() throws Exception {
+        final String input = """
+                {"name":{"first":"first","last":"last"},"employer":"employer"}
+                {"name":{"first":"missing","last":"last"},"employer":"employer"}
+                {"name":{"first":"third","last":"last"},"employer":"employer"}
+                """;
+        final Importer importer = Importer.newBuilder(client, renderer, parser).withMaxActions(2).build();
+        final ImportSummary summary = importer.importPersons(stream(input), Importer.Format.NDJSON);
+        // it is unknown which person of the first batch was indexed
+        assertThat(summary.failed()).isEqualTo(2);
+        assertThat(summary.indexed()).isEqualTo(1);
+    }
+
+    @Test
+    public void testImportCsv() throws Exception {
+        final String input = "first_name,last_name,employer\nAlexander,Reelsen,Elastic\n\"Doe, Jane\",Doe,\"ACME \"\"Inc\"\"\"\n";
+        final Importer importer = Importer.newBuilder(client, renderer, parser).build();
+        final ImportSummary summary = importer.importPersons(stream(input), Importer.Format.CSV);
+        assertThat(summary.indexed()).isEqualTo(2);
+        assertThat(summary.failed()).isEqualTo(0);
+        assertThat(bulkSizes).containsExactly(2);
+    }
+
+    @Test
+    public void testInvalidNdjson() throws Exception {
+        final String input = """
+                {"name":{"first":"first","last":"last"},"employer":"employer"}
+                {"name":{"first":"second","last":"last"},"employer":"employer"}
+                {"name":
+                """;
+        final Importer importer = Importer.newBuilder(client, renderer, parser).withMaxActions(1).build();
+        assertThatThrownBy(() -> importer.importPersons(stream(input), Importer.Format.NDJSON))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageStartingWith("Invalid NDJSON after 2 persons");
+        // persons before the invalid one have been sent
+        assertThat(bulkSizes).containsExactly(1, 1);
+    }
+
+    @Test
+    public void testEmptyImport() throws Exception {
+        final Importer importer = Importer.newBuilder(client, renderer, parser).build();
+        final ImportSummary summary = importer.importPersons(stream(""), Importer.Format.NDJSON);
+        assertThat(summary.indexed()).isEqualTo(0);
+        assertThat(summary.failed()).isEqualTo(0);
+        assertThat(bulkSizes).isEmpty();
+    }
+
+    private static InputStream stream(String input) {
+        return new ByteArrayInputStream(input.getBytes(Charsets.UTF_8));
+    }
+}
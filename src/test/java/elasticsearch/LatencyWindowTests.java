@@ -0,0 +1,25 @@
+package elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LatencyWindowTests {
+
+    @Test
+    public void testPercentile() {
+        final LatencyWindow window = new LatencyWindow(64, 0.95);
+        for (int i = 1; i < 32; i++) {
+            window.record(i);
+        }
+        assertThat(window.percentile()).isEqualTo(-1);
+        window.record(32);
+        assertThat(window.percentile()).isEqualTo(31);
+
+        // older samples drop out of the window
+        for (int i = 0; i < 64; i++) {
+            window.record(1000 + i);
+        }
+        assertThat(window.percentile()).isEqualTo(1060);
+    }
+}
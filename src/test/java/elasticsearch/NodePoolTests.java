@@ -0,0 +1,96 @@
+package elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NodePoolTests {
+
+    private static final List<String> endpoints = List.of("http://node1:9200", "http://node2:9200/", "http://node3:9200");
+
+    @Test
+    public void testRoundRobin() {
+        final NodePool pool = new NodePool(endpoints, ElasticsearchClient.NodeSelector.ROUND_ROBIN, Duration.ofMinutes(1), Duration.ofMinutes(10));
+        assertThat(pool.select().endpoint()).isEqualTo("http://node1:9200");
+        assertThat(pool.select().endpoint()).isEqualTo("http://node2:9200");
+        assertThat(pool.select().endpoint()).isEqualTo("http://node3:9200");
+        assertThat(pool.select().endpoint()).isEqualTo("http://node1:9200");
+    }
+
+    @Test
+    public void testLeastOutstandingRequests() {
+        final NodePool pool = new NodePool(endpoints, ElasticsearchClient.NodeSelector.LEAST_OUTSTANDING_REQUESTS, Duration.ofMinutes(1), Duration.ofMinutes(10));
+        final List<NodePool.Node> nodes = pool.nodes();
+        nodes.get(0).acquire();
+        nodes.get(0).acquire();
+        nodes.get(2).acquire();
+        for (int i = 0; i < 5; i++) {
+            assertThat(pool.select()).isSameAs(nodes.get(1));
+        }
+        nodes.get(0).release();
+        nodes.get(0).release();
+        nodes.get(1).acquire();
+        nodes.get(1).acquire();
+        assertThat(pool.select()).isSameAs(nodes.get(0));
+    }
+
+    @Test
+    public void testDeadNodesAreSkipped() {
+        final NodePool pool = new NodePool(endpoints, ElasticsearchClient.NodeSelector.ROUND_ROBIN, Duration.ofMinutes(1), Duration.ofMinutes(10));
+        final NodePool.Node dead = pool.nodes().get(1);
+        pool.onFailure(dead, new IOException("connection refused"));
+        assertThat(dead.isDead()).isTrue();
+        for (int i = 0; i < 10; i++) {
+            assertThat(pool.select()).isNotSameAs(dead);
+        }
+
+        pool.onSuccess(dead);
+        assertThat(dead.isDead()).isFalse();
+    }
+
+    @Test
+    public void testDeadNodeIsRetriedAfterBackoff() throws Exception {
+        final NodePool pool = new NodePool(List.of("http://node1:9200", "http://node2:9200"), ElasticsearchClient.NodeSelector.ROUND_ROBIN,
+                Duration.ofMillis(50), Duration.ofMinutes(10));
+        final NodePool.Node node = pool.nodes().get(0);
+        pool.onFailure(node, new IOException("connection refused"));
+        assertThat(pool.select()).isNotSameAs(node);
+        assertThat(pool.select()).isNotSameAs(node);
+
+        Thread.sleep(100);
+        assertThat(List.of(pool.select(), pool.select())).contains(node);
+    }
+
+    @Test
+    public void testAllNodesDead() {
+        final NodePool pool = new NodePool(endpoints, ElasticsearchClient.NodeSelector.ROUND_ROBIN, Duration.ofMinutes(1), Duration.ofMinutes(10));
+        final List<NodePool.Node> nodes = pool.nodes();
+        pool.onFailure(nodes.get(0), new IOException("connection refused"));
+        pool.onFailure(nodes.get(0), new IOException("connection refused"));
+        pool.onFailure(nodes.get(2), new IOException("connection refused"));
+        pool.onFailure(nodes.get(1), new IOException("connection refused"));
+        // the second failure doubled the backoff of the first node, so the third one is retried first
+        assertThat(pool.select()).isSameAs(nodes.get(2));
+    }
+
+    @Test
+    public void testUpdateKeepsKnownNodes() {
+        final NodePool pool = new NodePool(endpoints, ElasticsearchClient.NodeSelector.ROUND_ROBIN, Duration.ofMinutes(1), Duration.ofMinutes(10));
+        final NodePool.Node node = pool.nodes().get(1);
+        pool.onFailure(node, new IOException("connection refused"));
+
+        pool.update(List.of("http://node2:9200", "http://node4:9200"));
+        assertThat(pool.nodes()).hasSize(2);
+        assertThat(pool.nodes().get(0)).isSameAs(node);
+        assertThat(pool.nodes().get(0).isDead()).isTrue();
+        assertThat(pool.nodes().get(1).endpoint()).isEqualTo("http://node4:9200");
+
+        // an empty sniffing result does not remove all nodes
+        pool.update(List.of());
+        assertThat(pool.nodes()).hasSize(2);
+    }
+}
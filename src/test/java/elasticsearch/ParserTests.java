@@ -1,12 +1,21 @@
 package elasticsearch;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import model.BulkResponse;
 import model.Person;
 import model.SearchResponse;
 import org.junit.jupiter.api.Test;
 import org.testcontainers.shaded.com.google.common.base.Charsets;
 
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class ParserTests {
 
@@ -29,6 +38,252 @@ public class ParserTests {
         assertThat(response.hits().get(1).person()).isEqualTo(secondPerson);
     }
 
+    @Test
+    public void testSearchResponseParsingSkipsUnknownFields() throws Exception {
+        final byte[] data = """
+                {
+                  "took" : 5,
+                  "hits" : {
+                    "total" : { "value" : 1, "relation" : "eq" },
+                    "hits" : [
+                      {
+                        "_index" : "persons",
+                        "_id" : "1",
+                        "_score" : 0.5,
+                        "_ignored" : [ "bio" ],
+                        "_source" : {
+                          "bio" : { "text" : "long", "tags" : [ { "name" : "first" }, [ 1, 2 ] ] },
+                          "name" : { "middle" : { "first" : "nested" }, "last" : "last", "first" : "first" },
+                          "employer" : "Elastic",
+                          "projects" : [ "employer" ]
+                        },
+                        "highlight" : { "name.first" : [ "<em>first</em>" ] },
+                        "sort" : [ 0.5, "1" ]
+                      }
+                    ]
+                  },
+                  "aggregations" : { "hits" : { "hits" : [ ] } }
+                }""".getBytes(Charsets.UTF_8);
+
+        final SearchResponse response = parser.toSearchResponse(data);
+        assertThat(response.hits()).hasSize(1);
+        assertThat(response.hits().get(0).index()).isEqualTo("persons");
+        assertThat(response.hits().get(0).id()).isEqualTo("1");
+        assertThat(response.hits().get(0).score()).isEqualTo(0.5f);
+        assertThat(response.hits().get(0).person()).isEqualTo(new Person("first", "last", "Elastic"));
+    }
+
+    @Test
+    public void testSearchResponseParsingMissingFields() throws Exception {
+        final byte[] data = """
+                {
+                  "hits" : {
+                    "total" : { "value" : 2, "relation" : "eq" },
+                    "hits" : [
+                      { "_index" : "persons", "_id" : "1", "_score" : null, "_source" : { "name" : { "first" : "first" } } },
+                      { "_index" : "persons", "_id" : "2", "_score" : 1.0, "_source" : { "employer" : { "name" : "Elastic" } } }
+                    ]
+                  }
+                }""".getBytes(Charsets.UTF_8);
+
+        final SearchResponse response = parser.toSearchResponse(data);
+        assertThat(response.hits()).hasSize(2);
+        assertThat(response.hits().get(0).score()).isEqualTo(0f);
+        assertThat(response.hits().get(0).person()).isEqualTo(new Person("first", "", ""));
+        assertThat(response.hits().get(1).person()).isEqualTo(new Person("", "", ""));
+    }
+
+    @Test
+    public void testEmptySearchResponseParsing() throws Exception {
+        final byte[] data = """
+                {
+                  "took" : 1,
+                  "timed_out" : false,
+                  "hits" : { "total" : { "value" : 0, "relation" : "eq" }, "max_score" : null, "hits" : [ ] }
+                }""".getBytes(Charsets.UTF_8);
+        assertThat(parser.toSearchResponse(data).hits()).isEmpty();
+    }
+
+    @Test
+    public void testSearchResponseTook() throws Exception {
+        final byte[] data = """
+                {
+                  "took" : 1234,
+                  "timed_out" : true,
+                  "hits" : { "total" : { "value" : 0, "relation" : "eq" }, "max_score" : null, "hits" : [ ] }
+                }""".getBytes(Charsets.UTF_8);
+        final SearchResponse response = parser.toSearchResponse(data);
+        assertThat(response.took()).isEqualTo(1234);
+        assertThat(response.timedOut()).isTrue();
+
+        // not every response has them, i.e. the ones of older versions
+        final SearchResponse withoutTook = parser.toSearchResponse("{\"hits\":{\"hits\":[]}}".getBytes(Charsets.UTF_8));
+        assertThat(withoutTook.took()).isEqualTo(-1);
+        assertThat(withoutTook.timedOut()).isFalse();
+    }
+
+    @Test
+    public void testPersonParsing() throws Exception {
+        final byte[] data = """
+                { "id" : 1, "name" : { "first" : "first", "last" : "last" }, "address" : { "city" : "Munich" }, "employer" : "Elastic" }
+                """.getBytes(Charsets.UTF_8);
+        assertThat(parser.toPerson(data)).isEqualTo(new Person("first", "last", "Elastic"));
+    }
+
+    @Test
+    public void testBulkResponseParsing() throws Exception {
+        final byte[] data = """
+                {
+                  "took" : 30,
+                  "errors" : true,
+                  "items" : [
+                    {
+                      "index" : { "_index" : "persons", "_id" : "1", "_version" : 1, "result" : "created", "status" : 201 }
+                    },
+                    {
+                      "index" : {
+                        "_index" : "persons", "_id" : "2", "status" : 400,
+                        "error" : { "type" : "mapper_parsing_exception", "reason" : "failed to parse field [name]" }
+                      }
+                    }
+                  ]
+                }""".getBytes(Charsets.UTF_8);
+
+        final BulkResponse response = parser.toBulkResponse(data);
+        assertThat(response.errors()).isTrue();
+        assertThat(response.items()).hasSize(2);
+        assertThat(response.items().get(0).id()).isEqualTo("1");
+        assertThat(response.items().get(0).status()).isEqualTo(201);
+        assertThat(response.items().get(0).failed()).isFalse();
+        assertThat(response.items().get(1).status()).isEqualTo(400);
+        assertThat(response.items().get(1).error()).isEqualTo("mapper_parsing_exception: failed to parse field [name]");
+    }
+
+    @Test
+    public void testBinaryResponseFormats() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final SearchResponse expected = parser.toSearchResponse(sampleSearchResponse());
+        final byte[] bulk = "{\"errors\":false,\"items\":[{\"index\":{\"_id\":\"1\",\"status\":201}}]}".getBytes(Charsets.UTF_8);
+        for (ResponseFormat format : List.of(ResponseFormat.SMILE, ResponseFormat.CBOR)) {
+            final ObjectMapper binaryMapper = new ObjectMapper(format == ResponseFormat.SMILE ? new SmileFactory() : new CBORFactory());
+            final byte[] data = binaryMapper.writeValueAsBytes(mapper.readTree(sampleSearchResponse()));
+            assertThat(parser.toSearchResponse(data, format)).isEqualTo(expected);
+            assertThat(parser.toSearchResponse(new ByteArrayInputStream(data), format)).isEqualTo(expected);
+
+            final BulkResponse response = parser.toBulkResponse(binaryMapper.writeValueAsBytes(mapper.readTree(bulk)), format);
+            assertThat(response.errors()).isFalse();
+            assertThat(response.items().get(0).id()).isEqualTo("1");
+        }
+        assertThat(ResponseFormat.fromContentType("application/smile")).isEqualTo(ResponseFormat.SMILE);
+        assertThat(ResponseFormat.fromContentType("application/cbor")).isEqualTo(ResponseFormat.CBOR);
+        assertThat(ResponseFormat.fromContentType("application/json; charset=UTF-8")).isEqualTo(ResponseFormat.JSON);
+        assertThat(ResponseFormat.fromContentType(null)).isEqualTo(ResponseFormat.JSON);
+    }
+
+    @Test
+    public void testMultiSearchResponseParsing() throws Exception {
+        final byte[] data = """
+                {
+                  "took" : 5,
+                  "responses" : [
+                    {
+                      "took" : 3, "timed_out" : false,
+                      "hits" : { "total" : { "value" : 1, "relation" : "eq" }, "hits" : [
+                        { "_index" : "persons", "_id" : "1", "_score" : 1.0, "_source" : { "name" : { "first" : "first", "last" : "last" }, "employer" : "Elastic" } }
+                      ] },
+                      "status" : 200
+                    },
+                    {
+                      "error" : { "root_cause" : [], "type" : "search_phase_execution_exception", "reason" : "all shards failed" },
+                      "status" : 400
+                    }
+                  ]
+                }""".getBytes(Charsets.UTF_8);
+
+        final List<Parser.MultiSearchItem> items = parser.toMultiSearchResponse(new ByteArrayInputStream(data), ResponseFormat.JSON);
+        assertThat(items).hasSize(2);
+        assertThat(items.get(0).failed()).isFalse();
+        assertThat(items.get(0).response().hits()).hasSize(1);
+        assertThat(items.get(0).response().hits().get(0).person()).isEqualTo(new Person("first", "last", "Elastic"));
+        assertThat(items.get(1).failed()).isTrue();
+        assertThat(items.get(1).status()).isEqualTo(400);
+        assertThat(items.get(1).error()).isEqualTo("search_phase_execution_exception: all shards failed");
+    }
+
+    @Test
+    public void testPointInTimeSearchResponseParsing() throws Exception {
+        final byte[] data = """
+                {
+                  "pit_id" : "46ToAwMDaWR5BXV1aWQy",
+                  "took" : 2,
+                  "hits" : {
+                    "hits" : [
+                      {
+                        "_id" : "first",
+                        "_score" : 1.5,
+                        "_source" : { "name" : { "first": "first", "last":"last" }, "employer": "Elastic" },
+                        "sort" : [ 1.5, 4294967298 ]
+                      },
+                      {
+                        "_id" : "second",
+                        "_score" : 1.5,
+                        "_source" : { "name" : { "first": "2nd", "last":"2nd last" }, "employer": "Elastic" }
+                      }
+                    ]
+                  }
+                }""".getBytes(Charsets.UTF_8);
+        final SearchResponse response = parser.toSearchResponse(data);
+        assertThat(response.pitId()).isEqualTo("46ToAwMDaWR5BXV1aWQy");
+        assertThat(response.hits()).hasSize(2);
+        assertThat(response.hits().get(0).sort()).containsExactly(1.5, 4294967298L);
+        assertThat(response.hits().get(1).sort()).isNull();
+        assertThat(parser.toSearchResponse(sampleSearchResponse()).pitId()).isNull();
+    }
+
+    @Test
+    public void testParsePersonStream() throws Exception {
+        final byte[] data = """
+                {"name":{"first":"first","last":"last"},"employer":"Elastic"}
+                {"name":{"first":"2nd","last":"2nd last"},"employer":"2nd Elastic","unknown":[1,2]}
+
+                {"name":{"first":"3rd"}}
+                """.getBytes(Charsets.UTF_8);
+        try (JsonParser jsonParser = parser.createParser(new ByteArrayInputStream(data))) {
+            assertThat(parser.nextPerson(jsonParser)).isEqualTo(new Person("first", "last", "Elastic"));
+            assertThat(parser.nextPerson(jsonParser)).isEqualTo(new Person("2nd", "2nd last", "2nd Elastic"));
+            assertThat(parser.nextPerson(jsonParser)).isEqualTo(new Person("3rd", "", ""));
+            assertThat(parser.nextPerson(jsonParser)).isNull();
+        }
+
+        try (JsonParser jsonParser = parser.createParser(new ByteArrayInputStream("[1]".getBytes(Charsets.UTF_8)))) {
+            assertThatThrownBy(() -> parser.nextPerson(jsonParser)).isInstanceOf(JsonParseException.class);
+        }
+    }
+
+    @Test
+    public void testParsePublishAddresses() throws Exception {
+        final String json = """
+                {
+                  "_nodes" : { "total" : 3, "successful" : 3, "failed" : 0 },
+                  "cluster_name" : "elasticsearch",
+                  "nodes" : {
+                    "q3TPU2TfQPqVC9uClNUkMw" : {
+                      "name" : "node-1",
+                      "http" : { "bound_address" : [ "[::]:9200" ], "publish_address" : "10.0.0.1:9200" }
+                    },
+                    "L6dA2jSQQnaEYHcFDbmkcg" : {
+                      "name" : "node-2",
+                      "http" : { "bound_address" : [ "[::]:9200" ], "publish_address" : "es-2.example.com/10.0.0.2:9201" }
+                    },
+                    "pW6E2KdfTqibOzPbfIOVXg" : {
+                      "name" : "node-3"
+                    }
+                  }
+                }""";
+        final List<String> addresses = parser.toPublishAddresses(json.getBytes(Charsets.UTF_8));
+        assertThat(addresses).containsExactly("10.0.0.1:9200", "es-2.example.com:9201");
+    }
+
     private static byte[] sampleSearchResponse() {
         return """
                 {
@@ -71,4 +326,5 @@ public class ParserTests {
                   }
                 }""".getBytes(Charsets.UTF_8);
     }
+
 }
@@ -0,0 +1,47 @@
+package elasticsearch;
+
+import model.Person;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PersonCsvReaderTests {
+
+    @Test
+    public void testReadPersons() throws Exception {
+        final PersonCsvReader reader = new PersonCsvReader(new StringReader("first,last,employer\r\n\r\n2nd,2nd last,\n"));
+        assertThat(reader.next()).isEqualTo(new Person("first", "last", "employer"));
+        assertThat(reader.next()).isEqualTo(new Person("2nd", "2nd last", ""));
+        assertThat(reader.next()).isNull();
+    }
+
+    @Test
+    public void testSkipHeader() throws Exception {
+        final PersonCsvReader reader = new PersonCsvReader(new StringReader("First_Name, last_name ,employer\nfirst,last,employer"));
+        assertThat(reader.next()).isEqualTo(new Person("first", "last", "employer"));
+        assertThat(reader.next()).isNull();
+    }
+
+    @Test
+    public void testQuotedFields() throws Exception {
+        final PersonCsvReader reader = new PersonCsvReader(new StringReader("\"Doe, Jane\",\"multi\nline\",\"ACME \"\"Inc\"\"\"\nfirst,last,employer\n"));
+        assertThat(reader.next()).isEqualTo(new Person("Doe, Jane", "multi\nline", "ACME \"Inc\""));
+        assertThat(reader.next()).isEqualTo(new Person("first", "last", "employer"));
+        assertThat(reader.next()).isNull();
+    }
+
+    @Test
+    public void testInvalidRecords() throws Exception {
+        final PersonCsvReader reader = new PersonCsvReader(new StringReader("first,last,employer\nfirst,last\n"));
+        reader.next();
+        assertThatThrownBy(reader::next).isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Invalid CSV in line 2: expected 3 columns, but got 2");
+
+        final PersonCsvReader unterminated = new PersonCsvReader(new StringReader("\"first,last,employer\n"));
+        assertThatThrownBy(unterminated::next).isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Invalid CSV in line 2: unterminated quoted field");
+    }
+}
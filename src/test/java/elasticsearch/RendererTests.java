@@ -1,12 +1,20 @@
 package elasticsearch;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import model.Person;
+import model.Projection;
+import model.SearchHit;
+import model.SearchResponse;
+import model.Suggestion;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class RendererTests {
 
@@ -26,6 +34,56 @@ public class RendererTests {
         assertThat(Renderer.escape("{\"spam\":\"eggs\"}")).isEqualTo("{\\\"spam\\\":\\\"eggs\\\"}");
     }
 
+    @Test
+    public void testEscapeReturnsInputWithoutSpecialCharacters() {
+        final String input = "Jane Doe, Elastic";
+        assertThat(Renderer.escape(input)).isSameAs(input);
+        assertThat(Renderer.escape("")).isEmpty();
+        assertThat(Renderer.escape("tab\tnew\nline")).isEqualTo("tab\\tnew\\nline");
+        assertThat(Renderer.escape("\u0001\u2028")).isEqualTo("\\u0001\\u2028");
+    }
+
+    @Test
+    public void testRenderingMultiByteCharacters() {
+        final String name = "J\u00fcrgen \u20ac \ud83d\ude00 \"quoted\"\n";
+        final byte[] data = renderer.renderBytes("test", Map.of("name", name));
+        final String expected = "{\"hello\":\"" + Renderer.escape(name) + "\"}";
+        assertThat(data).isEqualTo(expected.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testPrecompiledTemplates() {
+        final Renderer precompiled = Renderer.precompiled(new ObjectMapper());
+        final Person person = new Person("first \"quoted\"", "last", "employer");
+        assertThat(precompiled.person(person)).isEqualTo(renderer.person(person));
+        assertThat(precompiled.renderBytes("search", Map.of("query", "first")))
+                .isEqualTo(renderer.renderBytes("search", Map.of("query", "first")));
+        assertThat(precompiled.renderBytes("search", Map.of("query", "first", "projection", Projection.NAMES)))
+                .isEqualTo(renderer.renderBytes("search", Map.of("query", "first", "projection", Projection.NAMES)));
+    }
+
+    @Test
+    public void testSearchSourceIncludes() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        // by default only the fields the parser reads
+        assertThat(mapper.readTree(renderer.renderBytes("search", Map.of("query", "first"))).path("_source").toString())
+                .isEqualTo("[\"name.first\",\"name.last\",\"employer\"]");
+        assertThat(mapper.readTree(renderer.renderBytes("search", Map.of("query", "first", "projection", Projection.NAMES))).path("_source").toString())
+                .isEqualTo("[\"name.first\",\"name.last\"]");
+        assertThat(Projection.parse("Names")).isEqualTo(Projection.NAMES);
+        assertThat(Projection.parse(null)).isEqualTo(Projection.PERSON);
+        assertThatThrownBy(() -> Projection.parse("bio")).isInstanceOf(IllegalArgumentException.class).hasMessageContaining("[person, names]");
+    }
+
+    @Test
+    public void testBulk() {
+        final List<Person> persons = List.of(new Person("first", "last", "employer"), new Person("2nd", "2nd last", "2nd employer"));
+        final String data = new String(renderer.bulk(persons), StandardCharsets.UTF_8);
+        assertThat(data).isEqualTo(new String(renderer.bulkIndexAction(persons.get(0)), StandardCharsets.UTF_8) +
+                new String(renderer.bulkIndexAction(persons.get(1)), StandardCharsets.UTF_8));
+        assertThat(data.split("\n")).hasSize(4);
+    }
+
     @Test
     public void testRendering() {
         String data = renderer.render("test", Collections.emptyMap());
@@ -43,4 +101,40 @@ public class RendererTests {
         String data = renderer.render("test", Map.of("name", "world\",\"foo\":\"bar"));
         assertThat(data).isNotEqualTo("{\"hello\":\"world\",\"foo\":\"bar\"}");
     }
+
+    @Test
+    public void testSearchResponse() throws Exception {
+        final SearchResponse response = new SearchResponse(List.of(
+                new SearchHit("persons", "1", 1.0f, new Person("first", "last", "employer")),
+                new SearchHit("persons", "2", 1.0f, new Person("2nd", "2nd last", "2nd employer"))));
+        final String data = new String(renderer.searchResponse(response), StandardCharsets.UTF_8);
+        assertThat(data).isEqualTo("[{\"name\":{\"first\":\"first\",\"last\":\"last\"},\"employer\":\"employer\"}," +
+                "{\"name\":{\"first\":\"2nd\",\"last\":\"2nd last\"},\"employer\":\"2nd employer\"}]");
+
+        // the employer was not requested from elasticsearch, so it is not rendered either
+        assertThat(new String(renderer.searchResponse(response, Projection.NAMES), StandardCharsets.UTF_8))
+                .isEqualTo("[{\"name\":{\"first\":\"first\",\"last\":\"last\"}},{\"name\":{\"first\":\"2nd\",\"last\":\"2nd last\"}}]");
+    }
+
+    @Test
+    public void testSuggestions() throws Exception {
+        final byte[] data = renderer.suggestions(List.of(new Suggestion("Alex", 2), new Suggestion("Alexander \"Alex\"", 1)));
+        assertThat(new String(data, StandardCharsets.UTF_8))
+                .isEqualTo("[{\"text\":\"Alex\",\"count\":2},{\"text\":\"Alexander \\\"Alex\\\"\",\"count\":1}]");
+    }
+
+    @Test
+    public void testMultiSearch() {
+        final byte[] first = renderer.renderBytes("search", Map.of("query", "first\nline", "from", 0, "size", 10));
+        final byte[] second = renderer.renderBytes("search", Map.of("query", "second", "from", 10, "size", 10));
+        final String data = new String(renderer.multiSearch(List.of(first, second)), StandardCharsets.UTF_8);
+
+        final String[] lines = data.split("\n", -1);
+        assertThat(lines).hasSize(5);
+        assertThat(lines[0]).isEqualTo("{}");
+        assertThat(lines[1]).contains("\"query\" : \"first\\nline\"").contains("\"from\" : 0");
+        assertThat(lines[2]).isEqualTo("{}");
+        assertThat(lines[3]).contains("\"query\" : \"second\"").contains("\"from\" : 10");
+        assertThat(lines[4]).isEmpty();
+    }
 }
@@ -0,0 +1,112 @@
+package elasticsearch;
+
+import model.Person;
+import model.Projection;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SearchCacheTests {
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        final SearchCache cache = SearchCache.newBuilder().withRefreshInterval(Duration.ZERO).build();
+        final AtomicInteger loads = new AtomicInteger();
+        final SearchCache.Loader loader = () -> new byte[] { (byte) loads.incrementAndGet() };
+
+        assertThat(cache.get("search", "first", loader)).containsExactly(1);
+        assertThat(cache.get("search", "first", loader)).containsExactly(1);
+        assertThat(cache.get("search", "second", loader)).containsExactly(2);
+        // same query, different template
+        assertThat(cache.get("other", "first", loader)).containsExactly(3);
+        // same query, different fields
+        assertThat(cache.get("search", "first", 0, ElasticsearchClient.DEFAULT_SIZE, Projection.NAMES, loader)).containsExactly(4);
+        assertThat(cache.get("search", "first", 0, ElasticsearchClient.DEFAULT_SIZE, Projection.PERSON, loader)).containsExactly(1);
+
+        assertThat(loads.get()).isEqualTo(4);
+        assertThat(cache.hits()).isEqualTo(2);
+        assertThat(cache.misses()).isEqualTo(4);
+        assertThat(cache.size()).isEqualTo(4);
+        assertThat(cache.sizeInBytes()).isEqualTo(4);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        final SearchCache cache = SearchCache.newBuilder().withTtl(Duration.ofMillis(10)).withRefreshInterval(Duration.ZERO).build();
+        final AtomicInteger loads = new AtomicInteger();
+        final SearchCache.Loader loader = () -> new byte[] { (byte) loads.incrementAndGet() };
+
+        cache.get("search", "first", loader);
+        Thread.sleep(20);
+        assertThat(cache.get("search", "first", loader)).containsExactly(2);
+        assertThat(cache.misses()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        final SearchCache cache = SearchCache.newBuilder().withMaxEntries(2).withRefreshInterval(Duration.ZERO).build();
+        cache.get("search", "first", () -> new byte[1]);
+        cache.get("search", "second", () -> new byte[1]);
+        // makes second the least recently used entry
+        cache.get("search", "first", () -> new byte[1]);
+        cache.get("search", "third", () -> new byte[1]);
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.evictions()).isEqualTo(1);
+        final long misses = cache.misses();
+        cache.get("search", "first", () -> new byte[1]);
+        assertThat(cache.misses()).isEqualTo(misses);
+        cache.get("search", "second", () -> new byte[1]);
+        assertThat(cache.misses()).isEqualTo(misses + 1);
+    }
+
+    @Test
+    public void testEvictionByBytes() throws Exception {
+        final SearchCache cache = SearchCache.newBuilder().withMaxBytes(100).withRefreshInterval(Duration.ZERO).build();
+        cache.get("search", "first", () -> new byte[60]);
+        cache.get("search", "second", () -> new byte[60]);
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.sizeInBytes()).isEqualTo(60);
+        assertThat(cache.evictions()).isEqualTo(1);
+
+        // responses larger than the whole cache are never stored
+        cache.get("search", "third", () -> new byte[101]);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testIndexingInvalidatesEntries() throws Exception {
+        final SearchCache cache = SearchCache.newBuilder().withRefreshInterval(Duration.ofMillis(50)).build();
+        cache.get("search", "first", () -> new byte[1]);
+        assertThat(cache.size()).isEqualTo(1);
+
+        cache.onIndexed(List.of(new Person("first", "last", "employer")));
+        assertThat(cache.size()).isZero();
+
+        // until the index has been refreshed, results are not cached
+        cache.get("search", "first", () -> new byte[1]);
+        assertThat(cache.size()).isZero();
+
+        Thread.sleep(60);
+        cache.get("search", "first", () -> new byte[1]);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLoadStartedBeforeInvalidationIsNotCached() throws Exception {
+        final SearchCache cache = SearchCache.newBuilder().withRefreshInterval(Duration.ZERO).build();
+        final CompletableFuture<byte[]> response = new CompletableFuture<>();
+        final CompletableFuture<byte[]> result = cache.getAsync("search", "first", () -> response);
+
+        cache.invalidateAll();
+        response.complete(new byte[1]);
+
+        assertThat(result.get()).hasSize(1);
+        assertThat(cache.size()).isZero();
+    }
+}
@@ -0,0 +1,130 @@
+package elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SingleFlightTests {
+
+    @Test
+    public void testConcurrentCallsShareResult() throws Exception {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            final Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "value";
+            }));
+            started.await();
+            final Future<String> follower = executor.submit(() -> singleFlight.execute("key", () -> {
+                calls.incrementAndGet();
+                return "other";
+            }));
+            waitForCoalesced(singleFlight, 1);
+            release.countDown();
+
+            assertThat(leader.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+            assertThat(follower.get(5, TimeUnit.SECONDS)).isEqualTo("value");
+            assertThat(calls.get()).isEqualTo(1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFollowersGetLeaderException() throws Exception {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            final Future<String> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+                started.countDown();
+                release.await();
+                throw new IOException("connection refused");
+            }));
+            started.await();
+            final Future<String> follower = executor.submit(() -> singleFlight.execute("key", () -> "other"));
+            waitForCoalesced(singleFlight, 1);
+            release.countDown();
+
+            assertThatThrownBy(() -> leader.get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(IOException.class).hasRootCauseMessage("connection refused");
+            assertThatThrownBy(() -> follower.get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(IOException.class).hasRootCauseMessage("connection refused");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCompletedCallsAreNotReused() throws Exception {
+        final SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        final AtomicInteger calls = new AtomicInteger();
+        assertThat(singleFlight.execute("key", calls::incrementAndGet)).isEqualTo(1);
+        assertThat(singleFlight.execute("key", calls::incrementAndGet)).isEqualTo(2);
+        assertThat(singleFlight.coalesced()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDifferentKeysAreNotCoalesced() throws Exception {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        final CompletableFuture<String> first = new CompletableFuture<>();
+        final CompletableFuture<String> second = new CompletableFuture<>();
+        final CompletableFuture<String> a = singleFlight.executeAsync("a", () -> first);
+        final CompletableFuture<String> b = singleFlight.executeAsync("b", () -> second);
+        first.complete("a");
+        second.complete("b");
+        assertThat(a.get()).isEqualTo("a");
+        assertThat(b.get()).isEqualTo("b");
+        assertThat(singleFlight.coalesced()).isEqualTo(0);
+    }
+
+    @Test
+    public void testAsyncCallsShareResult() throws Exception {
+        final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        final CompletableFuture<String> response = new CompletableFuture<>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        final CompletableFuture<String> leader = singleFlight.executeAsync("key", () -> {
+            calls.incrementAndGet();
+            return response;
+        });
+        final CompletableFuture<String> follower = singleFlight.executeAsync("key", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        // cancelling one caller must not affect the others
+        follower.cancel(true);
+        final CompletableFuture<String> another = singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture("other"));
+        response.complete("value");
+
+        assertThat(leader.get()).isEqualTo("value");
+        assertThat(another.get()).isEqualTo("value");
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(singleFlight.coalesced()).isEqualTo(2);
+    }
+
+    private void waitForCoalesced(SingleFlight<?, ?> singleFlight, long expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (singleFlight.coalesced() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SlowQueryLogTests {
+
+    @Test
+    public void testOnlySlowSearchesAreLogged() throws Exception {
+        final SlowQueryLog log = SlowQueryLog.newBuilder().withThreshold(Duration.ofMillis(20)).build();
+        final Trace trace = Trace.start(null);
+        assertThat(log.log("search", "fast", trace)).isFalse();
+        Thread.sleep(20);
+        assertThat(log.log("search", "slow", trace)).isTrue();
+    }
+
+    @Test
+    public void testSampling() {
+        final Trace trace = Trace.start(null);
+        assertThat(SlowQueryLog.newBuilder().withThreshold(Duration.ZERO).withSampleRate(0).build().log("search", "query", trace)).isFalse();
+
+        final SlowQueryLog sampled = SlowQueryLog.newBuilder().withThreshold(Duration.ZERO).withSampleRate(0.5).build();
+        int logged = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (sampled.log("search", "query", trace)) {
+                logged++;
+            }
+        }
+        assertThat(logged).isBetween(350, 650);
+        assertThatThrownBy(() -> SlowQueryLog.newBuilder().withSampleRate(1.5).build()).isInstanceOf(IllegalArgumentException.class);
+    }
+}
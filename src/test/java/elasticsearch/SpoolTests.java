@@ -0,0 +1,286 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import model.Person;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.testcontainers.shaded.com.google.common.base.Charsets;
+
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SpoolTests {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Renderer renderer = new Renderer(mapper);
+    private static final Parser parser = new Parser(mapper);
+
+    @TempDir
+    Path directory;
+
+    private HttpServer httpServer;
+    private ElasticsearchClient client;
+    private final List<String> bulkBodies = new CopyOnWriteArrayList<>();
+    // first names of the persons elasticsearch accepted
+    private final List<String> indexed = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void startWebserver() throws Exception {
+        httpServer = HttpServer.create();
+        httpServer.bind(new InetSocketAddress(Inet4Address.getLocalHost(), 0), 0);
+        httpServer.start();
+        final InetSocketAddress address = httpServer.getAddress();
+        client = ElasticsearchClient.newBuilder(renderer, parser)
+                .withUri("http://" + address.getHostName() + ":" + address.getPort()).build();
+    }
+
+    @AfterEach
+    public void stopWebserver() {
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void testShipsAppendedPersons() throws Exception {
+        respondWith(() -> 201);
+        final List<Person> notified = new CopyOnWriteArrayList<>();
+        client.addIndexListener(notified::addAll);
+        try (Spool spool = createSpool().build()) {
+            spool.append(new Person("first", "last", "employer"));
+            spool.append(new Person("2nd", "2nd last", "2nd employer"));
+            awaitIndexed(2);
+        }
+
+        assertThat(indexed).containsExactly("first", "2nd");
+        assertThat(String.join("", bulkBodies)).isEqualTo("""
+                {"index":{}}
+                { "name" : { "first" : "first", "last" : "last" }, "employer" : "employer" }
+                {"index":{}}
+                { "name" : { "first" : "2nd", "last" : "2nd last" }, "employer" : "2nd employer" }
+                """);
+        assertThat(notified).containsExactly(new Person("first", "last", "employer"), new Person("2nd", "2nd last", "2nd employer"));
+    }
+
+    @Test
+    public void testFailingListenerDoesNotStopShipping() throws Exception {
+        respondWith(() -> 201);
+        final AtomicInteger notifications = new AtomicInteger();
+        client.addIndexListener(persons -> {
+            if (notifications.getAndIncrement() == 0) {
+                throw new IllegalStateException("listener failure");
+            }
+        });
+        try (Spool spool = createSpool().build()) {
+            spool.append(new Person("first", "last", "employer"));
+            awaitIndexed(1);
+            spool.append(new Person("2nd", "2nd last", "2nd employer"));
+            awaitIndexed(2);
+        }
+
+        // the first person is not shipped again after the listener failed
+        assertThat(indexed).containsExactly("first", "2nd");
+        assertThat(notifications.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testShippedSegmentsAreDeleted() throws Exception {
+        respondWith(() -> 201);
+        try (Spool spool = createSpool().withSegmentSize(1024).build()) {
+            for (int i = 0; i < 50; i++) {
+                spool.append(new Person("first" + i, "last", "employer"));
+            }
+            awaitIndexed(50);
+        }
+        assertThat(indexed).hasSize(50).startsWith("first0").endsWith("first49");
+        // only the segment appended to last is kept
+        assertThat(segments()).hasSize(1);
+    }
+
+    @Test
+    public void testShippingContinuesAfterCheckpointFailure() throws Exception {
+        respondWith(() -> 201);
+        // the checkpoint is written to a temporary file first, which cannot be created while a directory is in the way
+        final Path blocker = Files.createDirectories(directory.resolve("checkpoint.tmp"));
+        Files.createFile(blocker.resolve("file"));
+        try (Spool spool = createSpool().build()) {
+            spool.append(new Person("first", "last", "employer"));
+            // shipped again on every attempt, as the checkpoint never moves on
+            awaitIndexed(names -> names.size() >= 2);
+            Files.delete(blocker.resolve("file"));
+            Files.delete(blocker);
+
+            spool.append(new Person("2nd", "2nd last", "2nd employer"));
+            awaitIndexed(names -> names.contains("2nd"));
+        }
+        assertThat(indexed).contains("first").endsWith("2nd");
+        assertThat(indexed.stream().filter("2nd"::equals)).hasSize(1);
+    }
+
+    @Test
+    public void testPersonsAreShippedAfterRestart() throws Exception {
+        final AtomicInteger status = new AtomicInteger(503);
+        respondWith(status::get);
+        try (Spool spool = createSpool().withSegmentSize(1024).build()) {
+            for (int i = 0; i < 20; i++) {
+                spool.append(new Person("first" + i, "last", "employer"));
+            }
+            assertThat(spool.pendingBytes()).isGreaterThan(1024);
+        }
+        assertThat(indexed).isEmpty();
+        assertThat(segments()).hasSizeGreaterThan(1);
+
+        status.set(201);
+        try (Spool spool = createSpool().withSegmentSize(1024).build()) {
+            awaitIndexed(20);
+            spool.append(new Person("after restart", "last", "employer"));
+            awaitIndexed(21);
+        }
+        assertThat(indexed).hasSize(21).startsWith("first0").endsWith("first19", "after restart");
+    }
+
+    @Test
+    public void testPartiallyWrittenRecordIsDropped() throws Exception {
+        final AtomicInteger status = new AtomicInteger(503);
+        respondWith(status::get);
+        int end = 0;
+        try (Spool spool = createSpool().build()) {
+            for (int i = 0; i < 3; i++) {
+                final Person person = new Person("first" + i, "last", "employer");
+                spool.append(person);
+                end += 8 + renderer.person(person).length;
+            }
+        }
+        // as if the app crashed while writing the last document
+        try (RandomAccessFile file = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+            file.seek(end - 1);
+            file.write(0);
+        }
+
+        status.set(201);
+        try (Spool spool = createSpool().build()) {
+            spool.append(new Person("after restart", "last", "employer"));
+            awaitIndexed(3);
+        }
+        assertThat(indexed).containsExactly("first0", "first1", "after restart");
+    }
+
+    @Test
+    public void testRejectedItemsAreRetried() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        respondWith(() -> requests.getAndIncrement() == 0 ? 429 : 201);
+        try (Spool spool = createSpool().build()) {
+            spool.append(new Person("first", "last", "employer"));
+            awaitIndexed(1);
+        }
+        assertThat(bulkBodies).hasSize(2);
+    }
+
+    @Test
+    public void testFailedItemsAreDropped() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        respondWith(() -> requests.getAndIncrement() == 0 ? 400 : 201);
+        try (Spool spool = createSpool().build()) {
+            spool.append(new Person("invalid", "last", "employer"));
+            awaitBulkRequests(1);
+            spool.append(new Person("valid", "last", "employer"));
+            awaitIndexed(1);
+        }
+        assertThat(indexed).containsExactly("valid");
+    }
+
+    @Test
+    public void testSpoolFull() throws Exception {
+        respondWith(() -> 503);
+        try (Spool spool = createSpool().withSegmentSize(1024).withMaxSegments(2).build()) {
+            assertThatThrownBy(() -> {
+                for (int i = 0; i < 100; i++) {
+                    spool.append(new Person("first" + i, "last", "employer"));
+                }
+            }).isInstanceOf(LimitExceededException.class);
+            assertThat(segments()).hasSize(2);
+        }
+    }
+
+    private Spool.Builder createSpool() {
+        return Spool.newBuilder(client, renderer, parser, directory).withBackoff(Duration.ofMillis(10), Duration.ofMillis(50));
+    }
+
+    private List<Path> segments() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("segment-")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private void awaitBulkRequests(int count) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (bulkBodies.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(bulkBodies).hasSize(count);
+    }
+
+    private void awaitIndexed(Predicate<List<String>> condition) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.test(indexed) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(condition.test(indexed)).isTrue();
+    }
+
+    private void awaitIndexed(int count) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (indexed.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(indexed).hasSize(count);
+    }
+
+    // every item gets the status, a status of 503 fails the whole bulk request like an unavailable cluster
+    private void respondWith(IntSupplier status) {
+        httpServer.createContext("/persons/_bulk", exchange -> {
+            final String body = new String(exchange.getRequestBody().readAllBytes(), Charsets.UTF_8);
+            final int itemStatus = status.getAsInt();
+            if (itemStatus == 503) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            bulkBodies.add(body);
+            final String[] lines = body.split("\n");
+            final StringBuilder builder = new StringBuilder("{\"took\":3,\"errors\":").append(itemStatus >= 300).append(",\"items\":[");
+            for (int i = 1; i < lines.length; i += 2) {
+                if (i > 1) {
+                    builder.append(",");
+                }
+                builder.append("{\"index\":{\"_id\":\"").append(i).append("\",\"status\":").append(itemStatus);
+                if (itemStatus >= 300) {
+                    builder.append(",\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}");
+                } else {
+                    indexed.add(mapper.readTree(lines[i]).at("/name/first").asText());
+                }
+                builder.append("}}");
+            }
+            final byte[] response = builder.append("]}").toString().getBytes(Charsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+    }
+}
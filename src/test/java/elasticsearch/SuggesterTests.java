@@ -0,0 +1,73 @@
+package elasticsearch;
+
+import model.Person;
+import model.Suggestion;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SuggesterTests {
+
+    @Test
+    public void testSuggestionsByFrequency() {
+        final Suggester suggester = new Suggester();
+        suggester.add(new Person("Alexander", "Reelsen", "Elastic"));
+        suggester.add(new Person("Alex", "Smith", "Elastic"));
+        suggester.add(new Person("Alexandra", "Ellison", "Acme"));
+        suggester.add(new Person("Alex", "Ellis", "Elastic"));
+
+        assertThat(suggester.suggest("ale", 10)).containsExactly(
+                new Suggestion("Alex", 2), new Suggestion("Alexander", 1), new Suggestion("Alexandra", 1));
+        assertThat(suggester.suggest("el", 10)).containsExactly(
+                new Suggestion("Elastic", 3), new Suggestion("Ellis", 1), new Suggestion("Ellison", 1));
+        assertThat(suggester.suggest("el", 1)).containsExactly(new Suggestion("Elastic", 3));
+        assertThat(suggester.size()).isEqualTo(9);
+    }
+
+    @Test
+    public void testPrefixWithinEdge() {
+        final Suggester suggester = new Suggester();
+        suggester.add(new Person("Alexander", "Reelsen", "Elastic"));
+        // the prefix ends in the middle of a merged edge
+        assertThat(suggester.suggest("alexan", 10)).containsExactly(new Suggestion("Alexander", 1));
+        assertThat(suggester.suggest("alexander", 10)).containsExactly(new Suggestion("Alexander", 1));
+        assertThat(suggester.suggest("alexanders", 10)).isEmpty();
+        assertThat(suggester.suggest("alb", 10)).isEmpty();
+        assertThat(suggester.suggest("x", 10)).isEmpty();
+
+        // splits the edge, both values are still found
+        suggester.add(new Person("Alexa", "Reelsen", "Elastic"));
+        assertThat(suggester.suggest("alexa", 10)).containsExactly(
+                new Suggestion("Alexa", 1), new Suggestion("Alexander", 1));
+        assertThat(suggester.suggest("re", 10)).containsExactly(new Suggestion("Reelsen", 2));
+    }
+
+    @Test
+    public void testIgnoresCase() {
+        final Suggester suggester = new Suggester();
+        suggester.add(new Person("Anna", "Berg", "ACME"));
+        suggester.add(new Person("anna", "Berg", "Acme "));
+        // the first spelling is kept
+        assertThat(suggester.suggest("AN", 10)).containsExactly(new Suggestion("Anna", 2));
+        assertThat(suggester.suggest("acme", 10)).containsExactly(new Suggestion("ACME", 2));
+    }
+
+    @Test
+    public void testIndexedPersons() {
+        final Suggester suggester = new Suggester();
+        suggester.onIndexed(List.of(new Person("Anna", "Berg", null), new Person("Anton", "", "Acme")));
+        assertThat(suggester.suggest("a", 10)).containsExactly(
+                new Suggestion("Acme", 1), new Suggestion("Anna", 1), new Suggestion("Anton", 1));
+        assertThat(suggester.size()).isEqualTo(4);
+    }
+
+    @Test
+    public void testInvalidSize() {
+        final Suggester suggester = new Suggester();
+        assertThatThrownBy(() -> suggester.suggest("a", 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> suggester.suggest("a", Suggester.MAX_SIZE + 1)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
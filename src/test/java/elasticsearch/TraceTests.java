@@ -0,0 +1,51 @@
+package elasticsearch;
+
+import model.SearchResponse;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceTests {
+
+    @Test
+    public void testContinuesIncomingTrace() {
+        final Trace trace = Trace.start("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        assertThat(trace.traceId()).isEqualTo("0af7651916cd43dd8448eb211c80319c");
+        // the request to elasticsearch is a new span of the same trace
+        assertThat(trace.traceparent()).matches("00-0af7651916cd43dd8448eb211c80319c-[0-9a-f]{16}-01").isNotEqualTo("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01");
+        assertThat(Trace.start("00-0AF7651916CD43DD8448EB211C80319C-B7AD6B7169203331-00").traceparent()).startsWith("00-0af7651916cd43dd8448eb211c80319c-").endsWith("-00");
+    }
+
+    @Test
+    public void testStartsNewTrace() {
+        for (String traceparent : new String[]{null, "", "garbage", "00-00000000000000000000000000000000-b7ad6b7169203331-01", "01-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01"}) {
+            final Trace trace = Trace.start(traceparent);
+            assertThat(trace.traceparent()).matches("00-[0-9a-f]{32}-[0-9a-f]{16}-01");
+            assertThat(trace.traceId()).isNotEqualTo("0af7651916cd43dd8448eb211c80319c").isNotEqualTo("0".repeat(32));
+        }
+        assertThat(Trace.start(null).traceId()).isNotEqualTo(Trace.start(null).traceId());
+    }
+
+    @Test
+    public void testStages() throws Exception {
+        final Trace trace = Trace.start(null);
+        long start = System.nanoTime();
+        Thread.sleep(5);
+        start = trace.record(Trace.Stage.RENDER_REQUEST, start);
+        trace.record(Trace.Stage.SEND, start);
+        trace.elasticsearch(new SearchResponse(List.of(), null, 3, true));
+
+        assertThat(trace.nanos(Trace.Stage.RENDER_REQUEST)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(5));
+        assertThat(trace.nanos(Trace.Stage.SEND)).isLessThan(trace.nanos(Trace.Stage.RENDER_REQUEST));
+        assertThat(trace.nanos(Trace.Stage.PARSE_RESPONSE)).isZero();
+        assertThat(trace.elapsedNanos()).isGreaterThanOrEqualTo(trace.nanos(Trace.Stage.RENDER_REQUEST) + trace.nanos(Trace.Stage.SEND));
+        assertThat(trace.took()).isEqualTo(3);
+        assertThat(trace.timedOut()).isTrue();
+        assertThat(trace.toString()).startsWith("trace_id=" + trace.traceId() + " total=")
+                .contains(" render_request=", " send=", " parse_response=0.000ms", " render_response=0.000ms", " other=")
+                .endsWith(" took=3ms timed_out=true");
+    }
+}
@@ -0,0 +1,20 @@
+package elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WarmupTests {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testWarmup() throws Exception {
+        // fails if any of the requests against the stub fails
+        final Duration took = Warmup.newBuilder(new Renderer(mapper), new Parser(mapper)).withIterations(20).build().run();
+        assertThat(took).isPositive();
+    }
+}